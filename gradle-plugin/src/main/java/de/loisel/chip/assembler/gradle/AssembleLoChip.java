@@ -0,0 +1,207 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler.gradle;
+
+import de.loisel.chip.assembler.BuildCache;
+import de.loisel.chip.assembler.OutputFormat;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileType;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.work.ChangeType;
+import org.gradle.work.FileChange;
+import org.gradle.work.InputChanges;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Assembles every .asm file of its sources into the output directory,
+ * mirroring the directories below the source roots.
+ * On incremental runs only the programs that changed or include a changed
+ * file are assembled again and the outputs of deleted programs are removed.
+ * The programs are assembled in parallel in the Gradle daemon with the
+ * Worker API. Outputs are cacheable, because they only depend on the
+ * relative paths and content of the sources. A program may therefore
+ * only include files that are part of the sources.
+ */
+@CacheableTask
+public abstract class AssembleLoChip extends DefaultTask {
+
+    private static final String SOURCE_EXTENSION = ".asm";
+
+    /**
+     * inputs that are skipped when empty are incremental as well
+     */
+    @InputFiles
+    @SkipWhenEmpty
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getSource();
+
+    /**
+     * name or extension of the {@link OutputFormat}
+     */
+    @Input
+    public abstract Property<String> getFormat();
+
+    @Input
+    public abstract Property<Boolean> getOptimize();
+
+    @OutputDirectory
+    public abstract DirectoryProperty getOutputDir();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    public AssembleLoChip() {
+        getFormat().convention("bin");
+        getOptimize().convention(false);
+    }
+
+    @TaskAction
+    public void assemble(InputChanges changes) throws IOException {
+        OutputFormat format = OutputFormat.of(getFormat().get());
+        if(format == null)
+            throw new InvalidUserDataException("Unknown Lo-Chip output format \"" + getFormat().get() + "\".");
+
+        Path outputDir = getOutputDir().get().getAsFile().toPath();
+        if(!changes.isIncremental())
+            clean(outputDir);
+
+        Map<Path, String> programs = programs();
+        Map<Path, Set<Path>> includes = includes(programs.keySet());
+        checkIncludes(includes);
+        Set<Path> affected = new TreeSet<>();
+
+        for (FileChange change : changes.getFileChanges(getSource())) {
+            if(change.getFileType() == FileType.DIRECTORY)
+                continue;
+
+            Path file = change.getFile().toPath().toAbsolutePath().normalize();
+            if(change.getChangeType() == ChangeType.REMOVED) {
+                if(file.toString().endsWith(SOURCE_EXTENSION))
+                    Files.deleteIfExists(output(outputDir, change.getNormalizedPath(), format));
+            } else if(programs.containsKey(file)) {
+                affected.add(file);
+            }
+
+            if(changes.isIncremental()) {
+                for (Map.Entry<Path, Set<Path>> program : includes.entrySet()) {
+                    // a program whose includes are not known may include anything
+                    if(program.getValue() == null || program.getValue().contains(file))
+                        affected.add(program.getKey());
+                }
+            }
+        }
+
+        WorkQueue queue = getWorkerExecutor().noIsolation();
+        for (Path program : affected) {
+            Path output = output(outputDir, programs.get(program), format);
+            queue.submit(AssembleLoChipAction.class, parameters -> {
+                parameters.getSource().set(program.toFile());
+                parameters.getOutput().set(output.toFile());
+                parameters.getFormat().set(format.name());
+                parameters.getOptimize().set(getOptimize().get());
+            });
+        }
+    }
+
+    /**
+     * @return the relative path of every program by its absolute path
+     */
+    private Map<Path, String> programs() {
+        Map<Path, String> programs = new HashMap<>();
+        getSource().getAsFileTree().visit(details -> {
+            if(!details.isDirectory() && details.getName().endsWith(SOURCE_EXTENSION))
+                programs.put(details.getFile().toPath().toAbsolutePath().normalize(),
+                        details.getRelativePath().getPathString());
+        });
+        return programs;
+    }
+
+    /**
+     * @return the files each program includes, null for a program that could not be read
+     */
+    private static Map<Path, Set<Path>> includes(Collection<Path> programs) {
+        Map<Path, Set<Path>> includes = new HashMap<>();
+        for (Path program : programs) {
+            Set<Path> included;
+            try {
+                included = BuildCache.includes(program);
+            } catch (IOException e) {
+                // the assembler reports unreadable programs
+                included = null;
+            }
+            includes.put(program, included);
+        }
+        return includes;
+    }
+
+    /**
+     * fails if a program includes an existing file that is not part of the sources,
+     * because changes to it would neither be seen nor be part of the cache key
+     */
+    private void checkIncludes(Map<Path, Set<Path>> includes) {
+        Set<Path> sources = new HashSet<>();
+        for (File file : getSource().getAsFileTree().getFiles()) {
+            sources.add(file.toPath().toAbsolutePath().normalize());
+        }
+
+        for (Map.Entry<Path, Set<Path>> program : new TreeMap<>(includes).entrySet()) {
+            if(program.getValue() == null)
+                continue;
+            for (Path included : program.getValue()) {
+                if(!sources.contains(included) && Files.exists(included))
+                    throw new InvalidUserDataException("Program " + program.getKey() + " includes " + included
+                            + ", which is not part of the sources of " + getPath() + ".");
+            }
+        }
+    }
+
+    private static Path output(Path outputDir, String relative, OutputFormat format) {
+        String name = relative.substring(0, relative.length() - SOURCE_EXTENSION.length());
+        return outputDir.resolve(name + format.extension());
+    }
+
+    private static void clean(Path outputDir) throws IOException {
+        if(!Files.isDirectory(outputDir))
+            return;
+        try (Stream<Path> files = Files.walk(outputDir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                if(!path.equals(outputDir))
+                    Files.delete(path);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+}
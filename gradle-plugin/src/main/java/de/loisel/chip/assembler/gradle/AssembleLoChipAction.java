@@ -0,0 +1,89 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler.gradle;
+
+import de.loisel.chip.assembler.*;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Assembles one program inside the Gradle daemon.
+ * The assemblers are kept between builds, so the daemon stays warm.
+ */
+public abstract class AssembleLoChipAction implements WorkAction<AssembleLoChipAction.Parameters> {
+
+    public interface Parameters extends WorkParameters {
+
+        RegularFileProperty getSource();
+
+        RegularFileProperty getOutput();
+
+        /**
+         * name of the {@link OutputFormat} constant
+         */
+        Property<String> getFormat();
+
+        Property<Boolean> getOptimize();
+    }
+
+    private static final Logger LOGGER = Logging.getLogger(AssembleLoChipAction.class);
+
+    private static final Assembler ASSEMBLER = new Assembler();
+
+    private static final Assembler OPTIMIZING = new Assembler(InstructionSet.loChip(), Metrics.NONE,
+            IncludeCache.shared(), PeepholeOptimizer.standard());
+
+    @Override
+    public void execute() {
+        Parameters parameters = getParameters();
+        Path source = parameters.getSource().get().getAsFile().toPath();
+        Path output = parameters.getOutput().get().getAsFile().toPath();
+
+        Assembler assembler = parameters.getOptimize().get() ? OPTIMIZING : ASSEMBLER;
+        AssemblyResult result = assembler.assemble(source.toString());
+
+        StringBuilder errors = new StringBuilder();
+        for (Diagnostic diagnostic : result.diagnostics()) {
+            if(diagnostic.isError())
+                errors.append(System.lineSeparator()).append("  ").append(diagnostic);
+            else
+                LOGGER.warn("{}: {}", source, diagnostic);
+        }
+        if(errors.length() > 0)
+            throw new GradleException("Could not assemble " + source + ":" + errors);
+
+        try {
+            Files.createDirectories(output.getParent());
+            new OutputWriter(OutputFormat.valueOf(parameters.getFormat().get()), false)
+                    .write(output, result.buffer());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler.gradle;
+
+import org.gradle.api.Action;
+import org.gradle.api.NamedDomainObjectContainer;
+import org.gradle.api.model.ObjectFactory;
+
+import javax.inject.Inject;
+
+/**
+ * {@code loChip { sourceSets { ... } }} of a build script
+ */
+public abstract class LoChipExtension {
+
+    private final NamedDomainObjectContainer<LoChipSourceSet> sourceSets;
+
+    @Inject
+    public LoChipExtension(ObjectFactory objects) {
+        this.sourceSets = objects.domainObjectContainer(LoChipSourceSet.class);
+    }
+
+    public NamedDomainObjectContainer<LoChipSourceSet> getSourceSets() {
+        return sourceSets;
+    }
+
+    public void sourceSets(Action<? super NamedDomainObjectContainer<LoChipSourceSet>> action) {
+        action.execute(sourceSets);
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler.gradle;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.plugins.BasePlugin;
+import org.gradle.api.tasks.TaskProvider;
+
+/**
+ * Adds the {@code loChip} extension and one {@link AssembleLoChip} task per
+ * Lo-Chip source set. The "main" source set reads {@code src/main/lochip}
+ * and is assembled by {@code assembleLoChip}, every other source set by
+ * {@code assemble<Name>LoChip}. The tasks run as part of {@code assemble}.
+ */
+public class LoChipPlugin implements Plugin<Project> {
+
+    public static final String EXTENSION_NAME = "loChip";
+
+    public static final String MAIN_SOURCE_SET = "main";
+
+    @Override
+    public void apply(Project project) {
+        project.getPluginManager().apply(BasePlugin.class);
+        LoChipExtension extension = project.getExtensions().create(EXTENSION_NAME, LoChipExtension.class);
+
+        extension.getSourceSets().all(sourceSet -> {
+            sourceSet.getFormat().convention("bin");
+            sourceSet.getOptimize().convention(false);
+
+            String name = sourceSet.getName();
+            TaskProvider<AssembleLoChip> task = project.getTasks().register(taskName(name), AssembleLoChip.class, t -> {
+                t.setGroup(BasePlugin.BUILD_GROUP);
+                t.setDescription("Assembles the Lo-Chip programs of the " + name + " source set.");
+                t.getSource().from(sourceSet.getSource());
+                t.getFormat().set(sourceSet.getFormat());
+                t.getOptimize().set(sourceSet.getOptimize());
+                t.getOutputDir().set(project.getLayout().getBuildDirectory().dir("lochip/" + name));
+            });
+            project.getTasks().named(BasePlugin.ASSEMBLE_TASK_NAME).configure(assemble -> assemble.dependsOn(task));
+        });
+
+        extension.getSourceSets().register(MAIN_SOURCE_SET,
+                sourceSet -> sourceSet.getSource().from("src/" + MAIN_SOURCE_SET + "/lochip"));
+    }
+
+    static String taskName(String sourceSet) {
+        if(sourceSet.equals(MAIN_SOURCE_SET))
+            return "assembleLoChip";
+        return "assemble" + Character.toUpperCase(sourceSet.charAt(0)) + sourceSet.substring(1) + "LoChip";
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler.gradle;
+
+import org.gradle.api.Named;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.provider.Property;
+
+/**
+ * Lo-Chip sources that are assembled by one task.
+ * Every .asm file is a program, other files are only included.
+ */
+public interface LoChipSourceSet extends Named {
+
+    /**
+     * directories and files of the source set
+     */
+    ConfigurableFileCollection getSource();
+
+    /**
+     * name or extension of the {@link de.loisel.chip.assembler.OutputFormat}, "bin" by default
+     */
+    Property<String> getFormat();
+
+    /**
+     * true to run the standard peephole optimizer, false by default
+     */
+    Property<Boolean> getOptimize();
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler.gradle;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * runs {@link AssembleLoChip} in real builds of a project in a temporary directory
+ */
+class AssembleLoChipFunctionalTest {
+
+    private static final String TASK = ":assembleLoChip";
+
+    @TempDir
+    Path projectDir;
+
+    private Path sources;
+    private Path outputs;
+
+    @BeforeEach
+    void createProject() throws IOException {
+        Files.writeString(projectDir.resolve("settings.gradle"), "rootProject.name = 'programs'\n");
+        Files.writeString(projectDir.resolve("build.gradle"), "plugins {\n    id 'de.loisel.chip.lochip'\n}\n");
+        sources = Files.createDirectories(projectDir.resolve("src/main/lochip"));
+        outputs = projectDir.resolve("build/lochip/main");
+
+        Files.createDirectories(sources.resolve("lib"));
+        Files.writeString(sources.resolve("lib/lib.inc"), "lib:\n\tCLS\n\tRET\n");
+        Files.createDirectories(sources.resolve("games"));
+        Files.writeString(sources.resolve("games/a.asm"), "\tCALL lib\n\tEXIT\n\tINCLUDE \"../lib/lib.inc\"\n");
+        Files.writeString(sources.resolve("games/b.asm"), "\tCLS\n\tEXIT\n");
+        Files.writeString(sources.resolve("games/c.asm"), "\tRET\n");
+    }
+
+    private BuildResult run(String... arguments) {
+        return runner(arguments).build();
+    }
+
+    private GradleRunner runner(String... arguments) {
+        List<String> args = new ArrayList<>(List.of(arguments));
+        args.add("--stacktrace");
+        return GradleRunner.create()
+                .withProjectDir(projectDir.toFile())
+                .withPluginClasspath()
+                .withArguments(args);
+    }
+
+    @Test
+    void rebuildsOnlyChangedProgramsAndTheirDependents() throws IOException {
+        assertEquals(TaskOutcome.SUCCESS, run("assembleLoChip").task(TASK).getOutcome());
+        assertTrue(Files.exists(outputs.resolve("games/a.bin")));
+        assertTrue(Files.exists(outputs.resolve("games/b.bin")));
+        assertTrue(Files.exists(outputs.resolve("games/c.bin")));
+        assertEquals(TaskOutcome.UP_TO_DATE, run("assembleLoChip").task(TASK).getOutcome());
+
+        // b.bin keeps its old time unless b.asm is assembled again
+        FileTime old = FileTime.fromMillis(1_000_000_000_000L);
+        Files.setLastModifiedTime(outputs.resolve("games/b.bin"), old);
+        byte[] a = Files.readAllBytes(outputs.resolve("games/a.bin"));
+        Files.writeString(sources.resolve("lib/lib.inc"), "lib:\n\tCLS\n\tCLS\n\tRET\n");
+        Files.delete(sources.resolve("games/c.asm"));
+
+        assertEquals(TaskOutcome.SUCCESS, run("assembleLoChip").task(TASK).getOutcome());
+        assertFalse(Files.exists(outputs.resolve("games/c.bin")));
+        assertEquals(a.length + 1, Files.size(outputs.resolve("games/a.bin")));
+        assertEquals(old, Files.getLastModifiedTime(outputs.resolve("games/b.bin")));
+    }
+
+    @Test
+    void outputsComeFromTheBuildCache() throws IOException {
+        // a cache of its own, the one of the test kit outlives the test
+        Files.writeString(projectDir.resolve("settings.gradle"), "buildCache {\n    local {\n"
+                + "        directory = file('build-cache')\n    }\n}\n", StandardOpenOption.APPEND);
+
+        assertEquals(TaskOutcome.SUCCESS, run("assembleLoChip", "--build-cache").task(TASK).getOutcome());
+        run("clean");
+
+        assertEquals(TaskOutcome.FROM_CACHE, run("assembleLoChip", "--build-cache").task(TASK).getOutcome());
+        assertTrue(Files.exists(outputs.resolve("games/a.bin")));
+    }
+
+    @Test
+    void includesOutsideTheSourcesAreRejected() throws IOException {
+        Files.writeString(projectDir.resolve("outside.inc"), "\tRET\n");
+        Files.writeString(sources.resolve("games/b.asm"), "\tINCLUDE \"../../../../outside.inc\"\n");
+
+        BuildResult result = runner("assembleLoChip").buildAndFail();
+        assertTrue(result.getOutput().contains("which is not part of the sources of " + TASK));
+    }
+
+    @Test
+    void errorsOfAProgramFailTheBuild() throws IOException {
+        Files.writeString(sources.resolve("games/b.asm"), "\tCLS\n\tJP nowhere\n");
+
+        BuildResult result = runner("assembleLoChip").buildAndFail();
+        assertEquals(TaskOutcome.FAILED, result.task(TASK).getOutcome());
+        assertTrue(result.getOutput().contains("Could not assemble"));
+        assertTrue(result.getOutput().contains("nowhere"));
+    }
+
+}
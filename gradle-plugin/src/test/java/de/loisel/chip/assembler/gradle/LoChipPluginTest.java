@@ -0,0 +1,56 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler.gradle;
+
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoChipPluginTest {
+
+    @TempDir
+    File projectDir;
+
+    @Test
+    void registersOneTaskPerSourceSet() {
+        Project project = ProjectBuilder.builder().withProjectDir(projectDir).build();
+        project.getPluginManager().apply("de.loisel.chip.lochip");
+
+        LoChipExtension extension = project.getExtensions().getByType(LoChipExtension.class);
+        extension.getSourceSets().register("demos", sourceSet -> {
+            sourceSet.getSource().from("demos");
+            sourceSet.getFormat().set("hex");
+        });
+
+        AssembleLoChip main = (AssembleLoChip) project.getTasks().getByName("assembleLoChip");
+        AssembleLoChip demos = (AssembleLoChip) project.getTasks().getByName("assembleDemosLoChip");
+
+        assertEquals("bin", main.getFormat().get());
+        assertEquals("hex", demos.getFormat().get());
+        assertFalse(demos.getOptimize().get());
+        assertEquals(new File(projectDir, "src/main/lochip"), main.getSource().getFiles().iterator().next());
+        assertTrue(demos.getOutputDir().get().getAsFile().toPath().endsWith("build/lochip/demos"));
+        assertTrue(project.getTasks().getByName("assemble").getDependsOn().size() >= 2);
+    }
+
+}
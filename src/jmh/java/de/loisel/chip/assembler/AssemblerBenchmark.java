@@ -0,0 +1,215 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks every phase of the assembler and the whole run.
+ * Besides ops/s every benchmark reports the source lines and the program
+ * bytes it got through per second, run with "-prof gc" (the jmh task does)
+ * for the allocation rate.
+ * Each phase works on state prepared by the phases before it, so the
+ * phase being measured is the only work done in the benchmark method.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AssemblerBenchmark {
+
+    private static final String GENERATED = "generated-";
+
+    /**
+     * a test resource or "generated-size" for a generated program
+     */
+    @Param({
+            "simple-test.asm",
+            "16b-addFunction.asm",
+            "stack-var-test.asm",
+            "error-test.asm",
+            GENERATED + "4096",
+            GENERATED + "65536"
+    })
+    public String source;
+
+    private final Assembler assembler = new Assembler();
+
+    private final ParallelAssembler parallel = new ParallelAssembler(assembler, ForkJoinPool.commonPool(), 1024);
+
+    private final AssemblyContext context = new AssemblyContext();
+
+    private List<String> lines;
+
+    private String text;
+
+    /**
+     * every statement with its own line buffer, so encoding can run without the lexer
+     */
+    private Statement[] statements;
+
+    /**
+     * a context that holds an encoded program with unresolved labels
+     */
+    private final AssemblyContext encoded = new AssemblyContext();
+
+    private byte[] program;
+
+    private Path output;
+
+    /**
+     * throughput counters, reported per second next to ops/s
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+
+        public long lines;
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lines = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if(source.startsWith(GENERATED)) {
+            int size = Integer.parseInt(source.substring(GENERATED.length()));
+            lines = ProgramGenerator.generate(size, 0x10C417L);
+        } else {
+            lines = Files.readAllLines(Path.of("src", "test", "resources", source));
+        }
+        text = String.join("\n", lines);
+
+        List<Statement> parsed = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            Statement statement = new Statement();
+            if(Lexer.of(List.of(lines.get(i))).next(statement)) {
+                statement.line = i + 1;
+                parsed.add(statement);
+            }
+        }
+        statements = parsed.toArray(new Statement[0]);
+
+        program = assembler.assemble(lines).program();
+        assembler.assemble(new StringReader(text), encoded);
+
+        output = Files.createTempFile("lochip-benchmark", ".bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(output);
+    }
+
+    private void count(Throughput throughput) {
+        throughput.lines += lines.size();
+        throughput.bytes += program.length;
+    }
+
+    /**
+     * splits the source into statements, formerly done by cleanLines
+     */
+    @Benchmark
+    public void lex(Throughput throughput, Blackhole blackhole) throws IOException {
+        Lexer lexer = Lexer.of(lines);
+        Statement statement = context.statement;
+        while (lexer.next(statement)) {
+            blackhole.consume(statement.operandCount);
+        }
+        count(throughput);
+    }
+
+    /**
+     * instruction lookup and encoding of already lexed statements
+     */
+    @Benchmark
+    public int encode(Throughput throughput) {
+        context.reset();
+        context.emitter.emitWord(0x0);
+        for (Statement statement : statements) {
+            assembler.encodeStatement(statement, context);
+        }
+        count(throughput);
+        return context.emitter.position();
+    }
+
+    /**
+     * patches the label addresses into an encoded program
+     */
+    @Benchmark
+    public int fixLabels(Throughput throughput) {
+        encoded.diagnostics.clear();
+        Assembler.insertLabelAddresses(encoded);
+        count(throughput);
+        return encoded.emitter.position();
+    }
+
+    @Benchmark
+    public void writeOutput(Throughput throughput) throws IOException {
+        Assembler.writeOutputFile(output.toString(), program);
+        count(throughput);
+    }
+
+    /**
+     * whole run from a list of lines, as used by the tests
+     */
+    @Benchmark
+    public AssemblyResult assembleLines(Throughput throughput) {
+        AssemblyResult result = assembler.assemble(lines);
+        count(throughput);
+        return result;
+    }
+
+    /**
+     * whole run with the chunks of the source encoded on all cores
+     */
+    @Benchmark
+    public AssemblyResult assembleParallel(Throughput throughput) {
+        AssemblyResult result = parallel.assemble(lines);
+        count(throughput);
+        return result;
+    }
+
+    /**
+     * whole run from a streamed source, as used for files
+     */
+    @Benchmark
+    public AssemblyResult assembleStream(Throughput throughput) throws IOException {
+        AssemblyResult result = assembler.assemble(new StringReader(text));
+        count(throughput);
+        return result;
+    }
+
+}
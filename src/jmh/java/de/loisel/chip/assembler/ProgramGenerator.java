@@ -0,0 +1,130 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates reproducible Lo-Chip programs of a given size for the benchmarks.
+ * The programs mix register, immediate, label and data statements with
+ * comments and blank lines, roughly like hand written code.
+ */
+final class ProgramGenerator {
+
+    /**
+     * statements between two labels
+     */
+    private static final int BLOCK_SIZE = 8;
+
+    private ProgramGenerator() {
+    }
+
+    /**
+     * @param size size of the assembled program in bytes including the reset vector,
+     *             at most the 64KB of Lo-Chip's memory
+     */
+    static List<String> generate(int size, long seed) {
+        if(size < 16 || size > CodeEmitter.CAPACITY)
+            throw new IllegalArgumentException("Program size " + size + " is out of range.");
+
+        Random random = new Random(seed);
+        List<String> lines = new ArrayList<>(size / 2);
+        int blocks = 0;
+        int referenced = 0;
+
+        // reset vector
+        int bytes = 2;
+
+        lines.add("; generated program of " + size + " bytes");
+        while (bytes + 6 <= size) {
+            if(lines.size() % BLOCK_SIZE == 1) {
+                lines.add("");
+                lines.add("block_" + blocks++ + ":");
+            }
+
+            int target = random.nextInt(blocks + 4);
+            referenced = Math.max(referenced, target + 1);
+            switch (random.nextInt(12)) {
+                case 0:
+                    lines.add("\tCALL block_" + target);
+                    bytes += 3;
+                    break;
+                case 1:
+                    lines.add("\tJP block_" + target);
+                    bytes += 3;
+                    break;
+                case 2:
+                    lines.add("\tLD I, block_" + target + " ; address of a block");
+                    bytes += 3;
+                    break;
+                case 3:
+                    lines.add("\tLD Rx, " + hex(random.nextInt(0x100)));
+                    bytes += 2;
+                    break;
+                case 4:
+                    lines.add("\tADD Ry, " + hex(random.nextInt(0x100)));
+                    bytes += 2;
+                    break;
+                case 5:
+                    lines.add("\tJE Rx, " + hex(random.nextInt(0x100)));
+                    bytes += 2;
+                    break;
+                case 6:
+                    lines.add("\tDRW Rx, Ry, " + hex(random.nextInt(0x10)));
+                    bytes += 2;
+                    break;
+                case 7:
+                    lines.add("\tDB " + hex(random.nextInt(0x100)) + ", " + hex(random.nextInt(0x100)));
+                    bytes += 2;
+                    break;
+                case 8:
+                    lines.add("\tLD Rx, Ry");
+                    bytes += 1;
+                    break;
+                case 9:
+                    lines.add("\tADD I, Rx");
+                    bytes += 1;
+                    break;
+                case 10:
+                    lines.add("\t; " + random.nextInt());
+                    break;
+                default:
+                    lines.add("\tRET");
+                    bytes += 1;
+                    break;
+            }
+        }
+
+        // define every label that was referenced ahead
+        while (blocks < referenced) {
+            lines.add("block_" + blocks++ + ":");
+        }
+        while (bytes < size) {
+            lines.add("\tCLS");
+            bytes++;
+        }
+        return lines;
+    }
+
+    private static String hex(int value) {
+        return String.format("$%02X", value);
+    }
+
+}
@@ -17,559 +17,1049 @@
 package de.loisel.chip.assembler;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.*;
 
 /**
- * A simple Assembler for the LoChip's Assembly language
+ * A simple Assembler for the LoChip's Assembly language.
+ * An assembler holds no state of its own and can be shared between threads,
+ * everything that belongs to a single run lives in an {@link AssemblyContext}.
  */
 public class Assembler {
 
-    private static final String HEX_REGEX = "[$][0-9a-fA-F]+";
+    /**
+     * version of the assembler's output. Has to change whenever
+     * the same source would be assembled differently.
+     */
+    public static final String VERSION = "1.1";
+
+    /**
+     * maximum number of macro expansions inside each other
+     */
+    private static final int MAX_MACRO_DEPTH = 64;
+
+    /**
+     * instructions "--run" executes before it stops the emulator
+     */
+    static final long RUN_STEPS = 100_000_000;
+
+    public static final int NO_ERROR_LIMIT = Integer.MAX_VALUE;
+
+    private final InstructionSet instructions;
 
-    private List<String> asmFile;
+    private final Metrics metrics;
 
-    Map<String, Label> labels = new HashMap<>();
-    List<Byte> programBuff = new ArrayList<>();
+    private final IncludeCache includes;
 
-    private final List<String> mnemonics = List.of(
-            "DB", "define" // Only for assembler. Puts the following hex byte in program
-            // instructions:
-            , "CLS", "RET", "JP", "CALL", "JE"
-            , "JNE", "LD", "ADD", "OR", "AND"
-            , "XOR", "SUB", "SHR", "SUBN", "SHL"
-            , "RND", "DRW", "JKP", "JKNP", "EXIT"
-    );
+    /**
+     * optimizer of whole programs or null
+     */
+    private final PeepholeOptimizer optimizer;
+
+    /**
+     * errors after which a run stops
+     */
+    private final int maxErrors;
 
-    public byte[] assemble(String inputFileName) {
-        this.asmFile = readInputFile(inputFileName);
-        assemble();
-        return copyProgram();
+    /**
+     * one reusable context per thread, shared by all assemblers since a context does not
+     * depend on the settings of the assembler that runs in it
+     */
+    private static final ThreadLocal<AssemblyContext> CONTEXTS = ThreadLocal.withInitial(AssemblyContext::new);
+
+    public Assembler() {
+        this(InstructionSet.loChip());
     }
 
-    public byte[] assemble(String inputFileName, String outputFileName) {
-        this.asmFile = readInputFile(inputFileName);
-        assemble();
-        byte[] program = copyProgram();
-        writeOutputFile(outputFileName, program);
-        return program;
+    public Assembler(InstructionSet instructions) {
+        this(instructions, Metrics.NONE);
     }
 
-    public byte[] assemble(List<String> file) {
-        this.asmFile = file;
-        assemble();
-        return copyProgram();
+    /**
+     * @param metrics receives the statistics of every run
+     */
+    public Assembler(InstructionSet instructions, Metrics metrics) {
+        this(instructions, metrics, IncludeCache.shared());
     }
 
-    public byte[] assemble(List<String> file, String outputFileName) {
-        this.asmFile = file;
-        assemble();
-        byte[] program = copyProgram();
-        writeOutputFile(outputFileName, program);
-        return program;
+    /**
+     * @param includes keeps the lexed content of included files
+     */
+    public Assembler(InstructionSet instructions, Metrics metrics, IncludeCache includes) {
+        this(instructions, metrics, includes, null);
     }
 
-    public byte[] copyProgram() {
-        byte[] program = new byte[programBuff.size()];
+    /**
+     * @param optimizer rewrites every program before its labels are patched in, null for none
+     */
+    public Assembler(InstructionSet instructions, Metrics metrics, IncludeCache includes,
+                     PeepholeOptimizer optimizer) {
+        this(instructions, metrics, includes, optimizer, NO_ERROR_LIMIT);
+    }
 
-        for (int i = 0; i < programBuff.size(); i++) {
-            program[i] = programBuff.get(i);
-        }
+    private Assembler(InstructionSet instructions, Metrics metrics, IncludeCache includes,
+                      PeepholeOptimizer optimizer, int maxErrors) {
+        this.instructions = instructions;
+        this.metrics = metrics;
+        this.includes = includes;
+        this.optimizer = optimizer;
+        this.maxErrors = maxErrors;
+    }
 
-        return program;
+    /**
+     * @return a copy of this assembler that stops a run after reporting the given number of errors.
+     * Batches of broken sources then do not spend their time on errors nobody reads.
+     */
+    public Assembler withMaxErrors(int maxErrors) {
+        if(maxErrors < 1)
+            throw new IllegalArgumentException("At least one error has to be reported.");
+        return new Assembler(instructions, metrics, includes, optimizer, maxErrors);
     }
 
-    private void assemble() {
-        boolean firstCommand = true;
+    /**
+     * @return errors after which a run stops, {@link #NO_ERROR_LIMIT} if it does not stop
+     */
+    public int maxErrors() {
+        return maxErrors;
+    }
 
-        // clean lines for later parsing
-        List<String> cleaned = cleanLines();
+    public InstructionSet instructions() {
+        return instructions;
+    }
 
-        // get all labels from file
-        getLabels(cleaned);
+    /**
+     * @return the optimizer or null
+     */
+    public PeepholeOptimizer optimizer() {
+        return optimizer;
+    }
 
-        // make room to add the reset vector later
-        programBuff.add((byte) 0x0); programBuff.add((byte) 0x0);
-
-        // parse commands line by line
-        for(int lineNum = 1; lineNum <= cleaned.size(); lineNum++) {
-            String line = cleaned.get(lineNum - 1);
-
-            if(mnemonics.contains(line.split(" ")[0])) {
-
-                // set reset vector to first opcode
-                if(firstCommand
-                        && !line.split(" ")[0].equals("DB")
-                        && !line.split(" ")[0].equals("define")
-                ) {
-                    programBuff.set(0, (byte)(programBuff.size() >>> 8));
-                    programBuff.set(1, (byte)(programBuff.size() & 0xFF));
-                    firstCommand = false;
-                }
+    public AssemblyResult assemble(String inputFileName) {
+        return assemble(inputFileName, null);
+    }
 
-                // next command
-                writeBinForCmd(line, lineNum);
+    public AssemblyResult assemble(String inputFileName, String outputFileName) {
+        AssemblyContext context = acquire();
+        try {
+            Path path = Path.of(inputFileName);
+            try (Reader reader = MappedSourceReader.open(path)) {
+                context.files.push(path.toAbsolutePath().normalize());
+                assemble(new Lexer(reader), context);
+            } catch (IOException e) {
+                context.report(DiagnosticCode.READ_FAILED, 0, 0, inputFileName, e.getMessage());
+            }
+            return finish(context, inputFileName, outputFileName);
+        } finally {
+            release(context);
+        }
+    }
 
-            } else if (!line.equals("") && line.charAt(line.length() - 1) == ':') {
+    public AssemblyResult assemble(List<String> file) {
+        return assemble(file, null);
+    }
 
-                // new label
-                String name = line.replace(":", "").strip();
-                labels.get(name).destAddr = (short) (programBuff.size());
+    public AssemblyResult assemble(List<String> file, String outputFileName) {
+        return assembleLines(file, null, outputFileName);
+    }
 
-            } else if(!line.equals("") && line.charAt(line.length() - 1) != ':') {
+    /**
+     * @param origin file the lines were read from, includes are resolved against it
+     */
+    AssemblyResult assembleLines(List<String> file, Path origin, String outputFileName) {
+        AssemblyContext context = acquire();
+        try {
+            try {
+                if(origin != null)
+                    context.files.push(origin.toAbsolutePath().normalize());
+                assemble(Lexer.of(file), context);
+            } catch (IOException e) {
+                context.report(DiagnosticCode.MESSAGE, 0, 0, e.getMessage());
+            }
+            return finish(context, null, outputFileName);
+        } finally {
+            release(context);
+        }
+    }
 
-                // command not found
-                System.err.println("The command \"" + line + "\" at line " + lineNum + " was not found and ignored.");
+    /**
+     * assembles the source while it is read.
+     * Labels are resolved when the end of the source is reached,
+     * so only the labels and the program are kept in memory.
+     */
+    public AssemblyResult assemble(Reader source) throws IOException {
+        AssemblyContext context = acquire();
+        try {
+            assemble(new Lexer(source), context);
+            return complete(context, null);
+        } finally {
+            release(context);
+        }
+    }
 
-            } // else empty line
+    /**
+     * assembles the source with a caller owned context.
+     * The context is reset before it is used.
+     */
+    public AssemblyResult assemble(Reader source, AssemblyContext context) throws IOException {
+        context.reset();
+        begin(context);
+        assemble(new Lexer(source), context);
+        return complete(context, null);
+    }
 
-            if(programBuff.size() > 0x10000) {
-                System.err.println("Error: the assembled binary is too large to fit in Lo-Chip's memory.\n"
-                + "Assembling was disrupted!.");
-                break;
-            }
+    /**
+     * assembles an UTF-8 encoded source while it is read
+     */
+    public AssemblyResult assemble(InputStream source) throws IOException {
+        return assemble(new InputStreamReader(source, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * assembles a source file. Large files are memory mapped.
+     */
+    public AssemblyResult assemble(Path source) throws IOException {
+        AssemblyContext context = acquire();
+        try (Reader reader = MappedSourceReader.open(source)) {
+            context.files.push(source.toAbsolutePath().normalize());
+            assemble(new Lexer(reader), context);
+            return complete(context, source.toString());
+        } finally {
+            release(context);
         }
+    }
 
-        // put the label addresses into the binary
-        insertLabelAddresses();
+    /**
+     * assembles a source into a relocatable module for the {@link Linker}.
+     * Labels that are not defined in the source become imports.
+     */
+    public ObjectModule assembleModule(String name, Reader source) throws IOException {
+        return assembleModule(name, source, null);
+    }
 
-        // Assembling should be finished
+    private ObjectModule assembleModule(String name, Reader source, Path file) throws IOException {
+        AssemblyContext context = acquire();
+        try {
+            if(file != null)
+                context.files.push(file.toAbsolutePath().normalize());
+            encodeAll(new Lexer(source), context);
+            return ObjectModule.of(name, context);
+        } finally {
+            release(context);
+        }
     }
 
-    private void insertLabelAddresses() {
-        labels.forEach((name, label) -> {
-            for (Short callLocation : label.callLocations) {
-                programBuff.set(callLocation, (byte)(label.destAddr >>> 8));
-                programBuff.set(callLocation + 1, (byte)(label.destAddr & 0xFF));
-            }
-        });
-    }
-
-    private void writeBinForCmd(String line, int lineNum) {
-        String command = line.split(" ")[0];
-        String[] args = getArgs(line);
-
-        switch (command) {
-            case "DB": {        // put hex bytes into program
-                if(hasArgs(args, lineNum, 1, command))
-                    for (String strVal : args) {
-                        if(strVal.matches(HEX_REGEX))
-                            addByte(strVal);
-                        else
-                            System.err.println("Could not parse hex value \"" + strVal + "\" at line" + lineNum + ".");
-                    }
-                break;
-            }
-            case "CLS": {
-                if(noArgs(args, lineNum))
-                    addOpcode(0xE0);                                                  // $E0 - CLS
-                break;
-            }
-            case "RET": {
-                if(noArgs(args, lineNum))
-                    addOpcode(0xEE);                                                  // $EE - RET
-                break;
-            }
-            case "JP": {
-                if(hasArgs(args, lineNum, 1, command)) {
-                    if(args[0].equals("I") && args[1].equals("F")) {
-                        addOpcode(0x11);                                              // $11 - JP I, F
-                    } else if(args[0].equals("Rx")) {
-                        addOpcode(0xB0);                                              // $B0 - JP Rx, addr
-                        addWord(args[1]);
-                    } else if(labels.containsKey(args[0])) {
-                        addOpcode(0x10);                                              // $10 - JP label
-                        addLabel(args[0]);
-                    } else {
-                        addOpcode(0x10);                                              // $10 - JP addr
-                        addWord(args[0]);
-                    }
-                }
-                break;
-            }
-            case "CALL": {
-                if(hasArgs(args, lineNum, 1, command)) {
-                    addOpcode(0x20);                                       
-                    if(labels.containsKey(args[0]))                                   // $20 - CALL label
-                        addLabel(args[0]);
-                    else                                                              // $20 - CALL addr
-                        addWord(args[0]);
-                }
-                break;
-            }
-            case "JE": {
-                if(hasArgs(args, lineNum, 2, command)) {
-                    if(argsMatch(args, "Rx", "Ry"))                              // $50 - JE Rx, Ry
-                        addOpcode(0x50);
-                    else {                                                              // $30 - JE Rx, b1
-                        addOpcode(0x30);
-                        addByte(args[0]);
-                    }
-                }
-                break;
-            }
-            case "JNE": {
-                if(hasArgs(args, lineNum, 2, command)) {
-                    if(argsMatch(args, "Rx", "Ry"))
-                        addOpcode(0x51);                                                // $51 - JNE Rx, Ry
-                    else {
-                        addOpcode(0x31);                                                // $31 - JNE Rx, b1
-                        addByte(args[0]);
-                    }
-                }
-                break;
-            }
-            case "LD": {
-                if(hasArgs(args, lineNum, 2, command)) {
-
-                    if(     args.length > 2
-                            && args[0].equals("I")
-                            && args[1].equals("Rx")
-                            && args[2].equals("Ry")) {                                  // $FD - LD I, Rx, Ry
-                        addOpcode(0xFD);
-                    }
-                    else if(args.length > 2
-                            && args[0].equals("Rx")
-                            && args[1].equals("Ry")
-                            && args[2].equals("I")) {                                  // $FE - LD Rx, Ry, I
-                        addOpcode(0xFE);
-                    }
-                    else if(argsMatch(args, "Rx", HEX_REGEX)) {                     // $60 - LD Rx, b1
-                        addOpcode(0x60);
-                        addByte(args[1]);
-                    }
-                    else if(argsMatch(args, "Ry", HEX_REGEX)) {                     // $61 - LD Ry, b1
-                        addOpcode(0x61);
-                        addByte(args[1]);
-                    }
-                    else if(argsMatch(args, "Rx", "I")) {                       // $62 - LD Rx, I
-                        addOpcode(0x62);
-                    }
-                    else if(argsMatch(args, "Ry", "I")) {                       // $63 - LD Ry, I
-                        addOpcode(0x63);
-                    }
-                    else if(argsMatch(args, "I", "Rx")) {                       // $64 - LD I, Rx
-                        addOpcode(0x64);
-                    }
-                    else if(argsMatch(args, "I", "Ry")) {                       // $65 - LD I, Ry
-                        addOpcode(0x65);
-                    }
-                    else if(argsMatch(args, "Rx", "Ry")) {                      // $80 - LD Rx, Ry
-                        addOpcode(0x80);
-                    }
-                    else if(argsMatch(args, "Ry", "Rx")) {                      // $8A - LD Ry, Rx
-                        addOpcode(0x8A);
-                    }
-                    else if(argsMatch(args, "I", HEX_REGEX)) {                     // $A0 - LD I, addr
-                        addOpcode(0xA0);
-                        addWord(args[1]);
-                    }
-                    else if(args[0].matches("I")
-                            && labels.containsKey(args[1])) {                         // $A0 - LD I, label
-                        addOpcode(0xA0);
-                        addLabel(args[1]);
-                    }
-                    else if(argsMatch(args, "I", "RxRy")) {                     // $A1 - LD I, RxRy
-                        addOpcode(0xA1);
-                    }
-                    else if(argsMatch(args, "Rx", "DT")) {                      // $F1 - LD Rx, DT
-                        addOpcode(0xF1);
-                    }
-                    else if(argsMatch(args, "Rx", "K")) {                       // $F2 - LD Rx, K
-                        addOpcode(0xF2);
-                    }
-                    else if(argsMatch(args, "DT", "Rx")) {                      // $F3 - LD DT, Rx
-                        addOpcode(0xF3);
-                    }
-                    else if(argsMatch(args, "ST", "Rx")) {                      // $F4 - LD ST, Rx
-                        addOpcode(0xF4);
-                    }
-                    else if(argsMatch(args, "B", "Rx")) {                       // $FC - LD B, Rx
-                        addOpcode(0xFC);
-                    }
+    /**
+     * assembles a source file into a module named like the file without its extension
+     */
+    public ObjectModule assembleModule(Path source) throws IOException {
+        String name = source.getFileName().toString();
+        if(name.endsWith(".asm"))
+            name = name.substring(0, name.length() - 4);
+        try (Reader reader = MappedSourceReader.open(source)) {
+            return assembleModule(name, reader, source);
+        }
+    }
 
-                }
-                break;
-            }
-            case "ADD": {
-                if(hasArgs(args, lineNum, 2, command)) {
-                    if(argsMatch(args, "Rx", HEX_REGEX)) {                          // $70 - ADD Rx, b1
-                        addOpcode(0x70);
-                        addByte(args[1]);
-                    }
-                    else if (argsMatch(args, "Ry", HEX_REGEX)) {                   // $71 - ADD Ry, b1
-                        addOpcode(0x71);
-                        addByte(args[1]);
-                    }
-                    else if (argsMatch(args, "Rx", "Ry")) {                     // $84 - ADD Rx, Ry
-                        addOpcode(0x84);
-                    }
-                    else if (argsMatch(args, "I", "Rx")) {                      // $FA - ADD I, Rx
-                        addOpcode(0xFA);
-                    }
-                }
-                break;
-            }
-            case "OR": {
-                if(hasArgs(args, lineNum, 2, command)
-                        && argsMatch(args, "Rx", "Ry")) {                       // $81 - OR Rx, Ry
-                    addOpcode(0x81);
-                } else if(hasArgs(args, lineNum, 2, command)
-                        && !argsMatch(args, "Rx", "Ry")) {
-                    System.err.println("Wrong args for command \"OR\" in line " + lineNum + ".");
-                }
-                break;
-            }
-            case "AND": {
-                if(hasArgs(args, lineNum, 2, command)
-                        && argsMatch(args, "Rx", "Ry")) {                       // $82 - AND Rx, Ry
-                    addOpcode(0x82);
-                } else if(hasArgs(args, lineNum, 2, command)
-                        && !argsMatch(args, "Rx", "Ry")) {
-                    System.err.println("Wrong args for command \"AND\" in line " + lineNum + ".");
-                }
-                break;
-            }
-            case "XOR": {
-                if(hasArgs(args, lineNum, 2, command)
-                        && argsMatch(args, "Rx", "Ry")) {                       // $83 - XOR Rx, Ry
-                    addOpcode(0x83);
-                } else if(hasArgs(args, lineNum, 2, command)
-                        && !argsMatch(args, "Rx", "Ry")) {
-                    System.err.println("Wrong args for command \"XOR\" in line " + lineNum + ".");
-                }
-                break;
-            }
-            case "SUB": {
-                if(hasArgs(args, lineNum, 2, command)
-                        && argsMatch(args, "Rx", "Ry")) {                       // $85 - SUB Rx, Ry
-                    addOpcode(0x85);
-                } else if(hasArgs(args, lineNum, 2, command)
-                        && !argsMatch(args, "Rx", "Ry")) {
-                    System.err.println("Wrong args for command \"SUB\" in line " + lineNum + ".");
-                }
-                break;
-            }
-            case "SHR": {   // Todo: implement multiple shifts in one command
-                if(hasArgs(args, lineNum, 2, command)
-                        && argsMatch(args, "Rx", "1")) {                        // $86 - SHR Rx, 1
-                    addOpcode(0x86);
-                } else if(hasArgs(args, lineNum, 2, command)
-                        && !argsMatch(args, "Rx", "1")) {
-                    System.err.println("Wrong args for command \"SHR\" in line " + lineNum + ".");
-                }
-                break;
-            }
-            case "SUBN": {
-                if(hasArgs(args, lineNum, 2, command)
-                        && argsMatch(args, "Rx", "Ry")) {                       // $87 - SUBN Rx, Ry
-                    addOpcode(0x87);
-                } else if(hasArgs(args, lineNum, 2, command)
-                        && !argsMatch(args, "Rx", "Ry")) {
-                    System.err.println("Wrong args for command \"SUBN\" in line " + lineNum + ".");
-                }
-                break;
-            }
-            case "SHL": {
-                if(hasArgs(args, lineNum, 2, command)
-                        && argsMatch(args, "Rx", "1")) {                        // $8E - SHL Rx, 1
-                    addOpcode(0x8E);
-                } else if(hasArgs(args, lineNum, 2, command)
-                        && !argsMatch(args, "Rx", "1")) {
-                    System.err.println("Wrong args for command \"SHL\" in line " + lineNum + ".");
-                }
-                break;
-            }
-            case "RND": {
-                if(hasArgs(args, lineNum, 2, command)
-                        && argsMatch(args, "Rx", HEX_REGEX)) {                      // $C0 - RND Rx, b1
-                    addOpcode(0xC0);
-                    addByte(args[1]);
-                } else if(hasArgs(args, lineNum, 2, command)
-                        && !argsMatch(args, "Rx", HEX_REGEX)) {
-                    System.err.println("Wrong args for command \"RND\" in line " + lineNum + ".");
-                }
-                break;
-            }
-            case "DRW": {
-                if(hasArgs(args, lineNum, 2, command)) {
-                    if(   args.length > 2
-                            && argsMatch(args, "Rx", "Ry")
-                            && args[2].matches(HEX_REGEX)) {                            // $D0 - DRW Rx, Ry, b1
-                        addOpcode(0xD0);
-                        addByte(args[2]);
-                    }
-                    else if(argsMatch(args, "Rx", "Ry")) {                       // $D1 - DRW Rx, Ry
-                        addOpcode(0xD1);
-                    }
-                }
-                break;
-            }
-            case "JKP": {
-                if(hasArgs(args, lineNum, 1, command)
-                        && args[0].matches("Rx")) {                               // $E1 - JKP Rx
-                    addOpcode(0xE1);
-                }
-                break;
-            }
-            case "JKNP": {
-                if(hasArgs(args, lineNum, 1, command)
-                        && args[0].matches("Rx")) {                               // $E2 - JKNP Rx
-                    addOpcode(0xE2);
-                }
-                break;
-            }
-            case "EXIT": {
-                if(noArgs(args, lineNum)) {                                            // $AA - EXIT
-                    addOpcode(0xAA);
-                }
-                break;
+    /**
+     * borrows the context of the current thread,
+     * or a fresh one if that is already in use
+     */
+    private AssemblyContext acquire() {
+        AssemblyContext context = CONTEXTS.get();
+        if(context.inUse)
+            context = new AssemblyContext();
+        context.inUse = true;
+        context.reset();
+        begin(context);
+        return context;
+    }
+
+    /**
+     * applies the error limit and turns on timing if anyone is interested in it
+     */
+    private void begin(AssemblyContext context) {
+        context.maxErrors = maxErrors;
+        boolean recording = AssemblerEvents.enabled();
+        context.instrumented = metrics != Metrics.NONE || recording;
+        if(context.instrumented) {
+            context.started = System.nanoTime();
+            if(recording) {
+                context.event = new AssemblerEvents.AssemblyEvent();
+                context.event.begin();
             }
-            default:
-                System.err.println("Command \"" + command + "\" at line "
-                        + lineNum +" is not implemented and was ignored");
-                break;
         }
     }
 
-    private boolean argsMatch(String[] args, String a1, String a2) {
-        return args[0].matches(a1) && args[1].matches(a2);
+    private static void release(AssemblyContext context) {
+        context.inUse = false;
     }
-    
-    private void addOpcode(int opcode) {
-        programBuff.add((byte) opcode);
+
+    private AssemblyResult finish(AssemblyContext context, String source, String outputFileName) {
+        if(outputFileName != null) {
+            long start = context.instrumented ? System.nanoTime() : 0;
+            try {
+                writeOutputFile(outputFileName, context.emitter);
+            } catch (IOException e) {
+                context.report(DiagnosticCode.WRITE_FAILED, 0, 0, outputFileName, e.getMessage());
+            }
+            if(context.instrumented)
+                context.lap(Phase.IO, start);
+        }
+        return complete(context, source);
     }
 
-    private void addLabel(String name) {
-        addOpcode(0x00); addOpcode(0x00); // placeholder. Gets filled later in insertLabelAddresses()
-        labels.get(name).callLocations.add((short) (programBuff.size() - 2));
+    /**
+     * @param source name of the source for the statistics or null
+     */
+    private AssemblyResult complete(AssemblyContext context, String source) {
+        AssemblyResult result = context.toResult();
+        if(context.instrumented)
+            report(context.toStats(source), context.event);
+        return result;
     }
 
-    private void addByte(String byteStr) {
-        byte byt = HexFormat.of().withPrefix("$").parseHex(byteStr)[0];
-        programBuff.add(byt);
+    private void report(AssemblyStats stats, AssemblerEvents.AssemblyEvent event) {
+        metrics.record(stats);
+        if(event == null)
+            return;
+
+        for (Phase phase : Phase.values()) {
+            AssemblerEvents.PhaseEvent phaseEvent = AssemblerEvents.phase(phase);
+            if(stats.nanos(phase) > 0 && phaseEvent.isEnabled()) {
+                phaseEvent.source = stats.source;
+                phaseEvent.time = stats.nanos(phase);
+                phaseEvent.commit();
+            }
+        }
+
+        event.end();
+        if(event.shouldCommit()) {
+            event.source = stats.source;
+            event.lines = stats.lines;
+            event.bytes = stats.bytes;
+            event.labels = stats.labels;
+            event.fixups = stats.fixups;
+            event.removed = stats.removed;
+            event.warnings = stats.warnings;
+            event.errors = stats.errors;
+            event.commit();
+        }
     }
 
-    private void addWord(String wordStr) {
-        wordStr = wordStr.substring(wordStr.indexOf('$') + 1);
-        byte[] addr = HexFormat.of().parseHex(wordStr);
-        if(addr.length == 1) {
-            addOpcode(0x0);
-            programBuff.add(addr[0]);
-        } else if(addr.length == 2) {
-            programBuff.add(addr[0]);
-            programBuff.add(addr[1]);
+    /**
+     * assembles in a single pass. Labels that are used before their
+     * definition get a placeholder that is patched when the pass ends.
+     */
+    private void assemble(Lexer lexer, AssemblyContext context) throws IOException {
+        CodeEmitter emitter = context.emitter;
+
+        // make room to add the reset vector later
+        emitter.emitWord(0x0);
+
+        context.optimizing = optimizer != null;
+        // code that is stripped later does not have to fit
+        if(context.optimizing && optimizer.stripsUnreachable())
+            emitter.setLimit(PeepholeOptimizer.MAX_UNSTRIPPED_SIZE);
+        encodeAll(lexer, context);
+
+        if(context.optimizing && !emitter.overflowed() && !context.aborted) {
+            long start = context.instrumented ? System.nanoTime() : 0;
+            context.removed = optimizer.optimize(context, instructions);
+            if(context.instrumented)
+                context.lap(Phase.OPTIMIZE, start);
+        }
+        if(!emitter.fits()) {
+            if(!emitter.overflowed())
+                context.report(DiagnosticCode.TOO_LARGE, 0, 0);
+            emitter.truncate();
         }
+
+        // set reset vector to first opcode
+        if(context.entry >= 0)
+            emitter.patchWord(0, context.entry);
+
+        // put the label addresses into the binary
+        long time = context.instrumented ? System.nanoTime() : 0;
+        insertLabelAddresses(context);
+        if(context.instrumented)
+            context.lap(Phase.FIXUP, time);
+
+        // Assembling should be finished
     }
 
-    private static boolean hasArgs(String[] args, int lineNum, int amount, String command) {
-        if(args != null && args.length >= amount) {
+    /**
+     * encodes every statement of the source behind the code already emitted.
+     * Label definitions and the entry point are recorded in the context,
+     * label references are left as placeholders with pending fixups.
+     */
+    void encodeAll(Lexer lexer, AssemblyContext context) throws IOException {
+        // parse commands line by line, timing lexing and encoding separately if instrumented
+        boolean instrumented = context.instrumented;
+        long time = instrumented ? System.nanoTime() : 0;
+        Statement statement = context.statement;
+        while (lexer.next(statement)) {
+            if(instrumented)
+                time = context.lap(Phase.LEX, time);
+
+            boolean fits = encodeLine(statement, context);
+            if(instrumented)
+                time = context.lap(Phase.ENCODE, time);
+            if(!fits)
+                break;
+        }
+
+        if(instrumented)
+            context.lap(Phase.LEX, time);
+        context.lines = lexer.lineNumber();
+
+        Macro macro = context.macro;
+        if(macro != null)
+            context.report(DiagnosticCode.MACRO_WITHOUT_ENDM, macro.source, macro.line, 0, macro.name, macro.line);
+    }
+
+    /**
+     * defines the label of a statement and emits its command
+     * @return false if the program does not fit into memory any more
+     */
+    private boolean encodeLine(Statement statement, AssemblyContext context) {
+        CodeEmitter emitter = context.emitter;
+        Mnemonic mnemonic = statement.mnemonic;
+
+        // the body of a macro is only assembled where the macro is used
+        if(context.macro != null && mnemonic != Mnemonic.ENDM && mnemonic != Mnemonic.MACRO) {
+            context.macro.add(statement);
             return true;
+        }
+
+        if(statement.label != null) {
+            // new label
+            SymbolTable symbols = context.symbols;
+            int id = symbols.intern(statement.label, context.source, statement.line);
+            if(symbols.isDefined(id))
+                context.report(DiagnosticCode.SYMBOL_DEFINED, statement.line, 0, statement.label, statement.line);
+            else
+                symbols.define(id, emitter.position());
+        }
+
+        // remember the first opcode for the reset vector
+        if(context.entry < 0 && mnemonic != null && !mnemonic.directive)
+            context.entry = emitter.position();
+
+        // next command, includes and macros report an overflow inside of them themselves
+        boolean nested = false;
+        if(mnemonic == null) {
+            nested = statement.unknown && expand(statement, context);
+            if(!nested)
+                encodeStatement(statement, context);
         } else {
-            System.err.println("Missing args for command \"" + command
-            + "\" in line: " + lineNum);
+            context.statements[mnemonic.ordinal()]++;
+            switch (mnemonic) {
+                case INCLUDE:
+                    include(statement, context);
+                    nested = true;
+                    break;
+                case DEFINE:
+                case EQU:
+                    defineConstant(statement, context);
+                    break;
+                case MACRO:
+                    beginMacro(statement, context);
+                    break;
+                case ENDM:
+                    if(context.macro == null)
+                        context.report(DiagnosticCode.ENDM_WITHOUT_MACRO, statement.line, statement.column(),
+                                statement.line);
+                    context.macro = null;
+                    break;
+                default:
+                    encodeStatement(statement, context);
+                    break;
+            }
+        }
+
+        if(emitter.overflowed()) {
+            if(!nested)
+                context.report(DiagnosticCode.TOO_LARGE_DISRUPTED, statement.line, 0);
             return false;
         }
+        return !context.aborted;
     }
 
-    private static boolean noArgs(String[] args, int lineNum) {
-        if(args != null && args.length > 0) {
-            System.err.println("Unexpected arguments \"" + Arrays.toString(args) + "\" at line " + lineNum + ".");
+    /**
+     * assembles the statements of an included file in place.
+     * The path is relative to the file that includes it.
+     */
+    private void include(Statement statement, AssemblyContext context) {
+        int lineNum = statement.line;
+        if(statement.operandCount == 0) {
+            context.report(DiagnosticCode.MISSING_ARGS, lineNum, statement.column(), Mnemonic.INCLUDE.name, lineNum);
+            return;
+        }
+        if(statement.operandCount != 1 || statement.kinds[0] != OperandKind.STRING) {
+            context.report(DiagnosticCode.WRONG_ARGS, lineNum, statement.operandColumn(0), Mnemonic.INCLUDE.name,
+                    lineNum);
+            return;
+        }
+
+        String name = statement.stringValue(0);
+        Path including = context.files.peek();
+        Path path;
+        try {
+            path = (including == null ? Path.of(name) : including.resolveSibling(name)).toAbsolutePath().normalize();
+        } catch (InvalidPathException e) {
+            context.report(DiagnosticCode.INVALID_FILE_NAME, lineNum, statement.operandColumn(0), name, lineNum);
+            return;
+        }
+
+        if(context.files.contains(path)) {
+            StringBuilder cycle = new StringBuilder();
+            for (Iterator<Path> it = context.files.descendingIterator(); it.hasNext(); ) {
+                cycle.append(it.next().getFileName()).append(" -> ");
+            }
+            cycle.append(path.getFileName());
+            context.report(DiagnosticCode.INCLUDE_CYCLE, lineNum, statement.operandColumn(0), lineNum,
+                    cycle.toString());
+            return;
+        }
+
+        IncludeCache.Source source;
+        try {
+            source = includes.get(path);
+        } catch (IOException e) {
+            context.report(DiagnosticCode.INCLUDE_FAILED, lineNum, statement.operandColumn(0), name, lineNum,
+                    e.getMessage());
+            return;
+        }
+
+        String includingSource = context.source;
+        context.files.push(path);
+        context.source = path.toString();
+        try {
+            for (Statement included : source.statements) {
+                if(!encodeLine(included, context))
+                    break;
+            }
+        } finally {
+            context.files.pop();
+            context.source = includingSource;
+        }
+    }
+
+    /**
+     * defines a constant with "define NAME value" or "NAME EQU value".
+     * The value has to be known at this point, it may use numbers and earlier constants.
+     */
+    private static void defineConstant(Statement statement, AssemblyContext context) {
+        Mnemonic command = statement.mnemonic;
+        int lineNum = statement.line;
+        if(statement.operandCount == 0) {
+            context.report(DiagnosticCode.MISSING_ARGS, lineNum, statement.column(), command.name, lineNum);
+            return;
+        }
+        if(statement.operandCount != 2 || statement.kinds[0] != OperandKind.IDENT) {
+            context.report(DiagnosticCode.WRONG_ARGS, lineNum, statement.operandColumn(0), command.name, lineNum);
+            return;
+        }
+
+        String name = statement.operandText(0);
+        Expression value = parseExpression(statement, 1, context);
+        if(value == null)
+            return;
+        if(!value.isConstant()) {
+            context.report(DiagnosticCode.CONSTANT_NOT_KNOWN, lineNum, statement.operandColumn(1), value, name,
+                    lineNum);
+            return;
+        }
+        if(!Expression.fits(value.value(), 2)) {
+            context.report(DiagnosticCode.OUT_OF_RANGE, lineNum, statement.operandColumn(1), value, lineNum);
+            return;
+        }
+
+        SymbolTable symbols = context.symbols;
+        int id = symbols.intern(name, context.source, lineNum);
+        if(symbols.isDefined(id))
+            context.report(DiagnosticCode.SYMBOL_DEFINED, lineNum, statement.operandColumn(0), name, lineNum);
+        else
+            symbols.defineConstant(id, value.value());
+    }
+
+    /**
+     * starts to record the body of a macro with "MACRO name param, ..."
+     */
+    private static void beginMacro(Statement statement, AssemblyContext context) {
+        int lineNum = statement.line;
+        if(context.macro != null) {
+            context.report(DiagnosticCode.NESTED_MACRO, lineNum, statement.column(), lineNum, context.macro.name);
+            return;
+        }
+
+        String[] parameters = new String[Math.max(statement.operandCount - 1, 0)];
+        boolean valid = statement.operandCount > 0;
+        for (int i = 0; i < statement.operandCount; i++) {
+            valid &= statement.kinds[i] == OperandKind.IDENT;
+            if(i > 0)
+                parameters[i - 1] = statement.operandText(i);
+        }
+        String name = valid ? statement.operandText(0) : "";
+
+        // the body of an invalid macro is recorded as well, so it is not assembled
+        Macro macro = new Macro(name, parameters, context.source, lineNum);
+        context.macro = macro;
+        if(statement.operandCount == 0)
+            context.report(DiagnosticCode.MISSING_ARGS, lineNum, statement.column(), Mnemonic.MACRO.name, lineNum);
+        else if(!valid)
+            context.report(DiagnosticCode.WRONG_ARGS, lineNum, statement.operandColumn(0), Mnemonic.MACRO.name,
+                    lineNum);
+        else if(Mnemonic.of(name) != null)
+            context.report(DiagnosticCode.MACRO_IS_COMMAND, lineNum, statement.operandColumn(0), name, lineNum);
+        else if(context.macros.putIfAbsent(name, macro) != null)
+            context.report(DiagnosticCode.MACRO_DEFINED, lineNum, statement.operandColumn(0), name, lineNum);
+    }
+
+    /**
+     * assembles the expansion of a macro in place of the statement that uses it
+     * @return false if the statement does not use a macro
+     */
+    private boolean expand(Statement statement, AssemblyContext context) {
+        if(context.macros.isEmpty())
             return false;
-        } else {
+
+        String text = statement.text();
+        int nameEnd = 0;
+        while (nameEnd < text.length() && OperandKind.isIdentifierPart(text.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        Macro macro = context.macros.get(text.substring(0, nameEnd));
+        if(macro == null || (nameEnd < text.length() && !Character.isWhitespace(text.charAt(nameEnd))))
+            return false;
+
+        List<String> arguments = new ArrayList<>(macro.parameters.length);
+        String rest = text.substring(nameEnd).trim();
+        if(!rest.isEmpty()) {
+            for (String argument : rest.split(",", -1)) {
+                arguments.add(argument.trim());
+            }
+        }
+
+        int lineNum = statement.line;
+        if(arguments.size() != macro.parameters.length) {
+            context.report(DiagnosticCode.MACRO_ARGS, lineNum, statement.column(), macro.name, lineNum,
+                    macro.parameters.length);
+            return true;
+        }
+        if(context.depth == MAX_MACRO_DEPTH) {
+            context.report(DiagnosticCode.MACRO_TOO_DEEP, lineNum, statement.column(), macro.name, lineNum);
             return true;
         }
+
+        context.depth++;
+        try {
+            for (Statement expanded : macro.expand(arguments, ++context.invocations)) {
+                // diagnostics point to the line that uses the macro
+                expanded.line = lineNum;
+                if(!encodeLine(expanded, context))
+                    break;
+            }
+        } finally {
+            context.depth--;
+        }
+        return true;
     }
 
-    private static String[] getArgs(String line) {
-        if(line.indexOf(' ') == -1)
-            return new String[0];
-        String[] args = line.substring(line.indexOf(' ')).split(",");
-        for (int i = 0; i < args.length; i++) {
-            args[i] = args[i].trim();
+    static void insertLabelAddresses(AssemblyContext context) {
+        SymbolTable symbols = context.symbols;
+        for (int id = 0; id < symbols.size(); id++) {
+            if(!symbols.isDefined(id))
+                context.report(DiagnosticCode.LABEL_NOT_FOUND, symbols.source(id), symbols.line(id), 0,
+                        symbols.name(id), symbols.line(id));
+        }
+        context.fixups += symbols.resolve(context.emitter);
+
+        for (Expression.Fixup fixup : symbols.expressionFixups()) {
+            int value = fixup.resolve(symbols::value, context::add);
+            if(value != SymbolTable.UNDEFINED) {
+                if(fixup.width == 1)
+                    context.emitter.patch(fixup.location, value);
+                else
+                    context.emitter.patchWord(fixup.location, value);
+                context.fixups++;
+            }
         }
-        return args;
     }
 
-    private void getLabels(List<String> cleaned) {
-        labels = new HashMap<>();
+    /**
+     * emits the command of a statement. Labels referenced by the command
+     * are recorded in the context, label definitions are left to the caller.
+     */
+    void encodeStatement(Statement statement, AssemblyContext context) {
+        if(statement.mnemonic != null) {
+            writeBinForCmd(statement, context);
+        } else if(statement.unknown) {
+            // command not found
+            context.report(DiagnosticCode.UNKNOWN_COMMAND, statement.line, statement.column(), statement.text(),
+                    statement.line);
+        }
+    }
 
-        for (int i = 1; i <= cleaned.size(); i++) {
-            String line = cleaned.get(i - 1);
+    private void writeBinForCmd(Statement statement, AssemblyContext context) {
+        Mnemonic command = statement.mnemonic;
+        int lineNum = statement.line;
+        int count = statement.operandCount;
 
-            if(line.indexOf(':') == line.length() - 1 && line.length() > 1) {
-                String name = line.split(" ")[0].split(":")[0];
-                labels.put(
-                        name,
-                        new Label(name, i
-                ));
+        if(command == Mnemonic.DB) {        // put hex bytes into program
+            if(count == 0)
+                context.report(DiagnosticCode.MISSING_ARGS, lineNum, statement.column(), command.name, lineNum);
+            resolveOperands(statement, context);
+            int start = context.emitter.position();
+            for (int i = 0; i < count; i++) {
+                int value = context.values[i];
+                if(context.kinds[i] == OperandKind.HEX && value >= 0 && value <= 0xFF)
+                    context.emitter.emit(value);
+                else if(context.kinds[i] == OperandKind.IDENT)
+                    addValue(statement, i, 1, context);
+                else if(statement.kinds[i] != OperandKind.EXPR)   // invalid expressions are reported already
+                    context.report(DiagnosticCode.INVALID_HEX, lineNum, statement.operandColumn(i),
+                            statement.operandText(i), lineNum);
             }
+            if(context.optimizing && context.emitter.position() > start)
+                context.code.add(start, null, context.emitter.position() - start, context.source, lineNum);
+            return;
         }
+
+        if(!instructions.hasInstructions(command)) {
+            context.report(DiagnosticCode.NOT_IMPLEMENTED, lineNum, statement.column(), command.name, lineNum);
+            return;
+        }
+
+        if(!resolveOperands(statement, context))
+            return;
+        Instruction instruction = instructions.find(command, context.kinds, count);
+
+        if(instruction == null) {
+            if(count == 0)
+                context.report(DiagnosticCode.MISSING_ARGS, lineNum, statement.column(), command.name, lineNum);
+            else if(instructions.find(command, context.kinds, 0) != null)
+                context.report(DiagnosticCode.UNEXPECTED_ARGS, lineNum, statement.operandColumn(0),
+                        Arrays.toString(statement.operandTexts()), lineNum);
+            else
+                context.report(DiagnosticCode.WRONG_ARGS, lineNum, statement.operandColumn(0), command.name,
+                        lineNum);
+            return;
+        }
+
+        if(checkOperands(instruction, statement, context))
+            encode(instruction, statement, context);
     }
 
     /**
-     * clean the lines from comments, leading and trailing whitespaces,
-     * multiple whitespaces and indentations.
+     * folds constants and constant expressions of the operands into the context.
+     * Operands that depend on symbols which are not known as constants yet
+     * become {@link OperandKind#IDENT}, with the id of a plain symbol if it
+     * is known or the expression to evaluate once the labels are known.
+     * @return false if an operand is an invalid expression
      */
-    private List<String> cleanLines() {
-        List<String> cleaned = new ArrayList<>();
+    private static boolean resolveOperands(Statement statement, AssemblyContext context) {
+        int count = statement.operandCount;
+        context.ensureOperands(count);
+        SymbolTable symbols = context.symbols;
+        boolean valid = true;
 
-        for (String line : asmFile) {
-            if(line.contains(";"))
-                line = line.substring(0, line.indexOf(';'));
-            line = line.strip();
-            line = line.replace('\t', ' ');
-            line = line.replaceAll("\s{2,}", " ");
+        for (int i = 0; i < count; i++) {
+            OperandKind kind = statement.kinds[i];
+            int value = statement.values[i];
+            Expression expression = null;
+
+            if(kind == OperandKind.IDENT) {
+                value = symbols.find(statement.source(), statement.operandStart(i), statement.operandEnd(i));
+                if(value >= 0 && symbols.isConstant(value)) {
+                    kind = OperandKind.HEX;
+                    value = symbols.address(value);
+                }
+            } else if(kind == OperandKind.EXPR) {
+                expression = parseExpression(statement, i, context);
+                if(expression == null) {
+                    kind = OperandKind.INVALID;
+                    valid = false;
+                } else if(expression.isConstant()) {
+                    kind = OperandKind.HEX;
+                    value = Expression.fits(expression.value(), 2) ? expression.value() : -1;
+                    expression = null;
+                } else {
+                    kind = OperandKind.IDENT;
+                }
+            }
 
-            cleaned.add(line);
+            context.kinds[i] = kind;
+            context.values[i] = value;
+            context.expressions[i] = expression;
         }
+        return valid;
+    }
 
-        return cleaned;
+    /**
+     * @return the expression of an operand or null after reporting why it is not valid
+     */
+    private static Expression parseExpression(Statement statement, int operand, AssemblyContext context) {
+        int lineNum = statement.line;
+        try {
+            Expression expression = Expression.parse(statement.source(), statement.operandStart(operand),
+                    statement.operandEnd(operand), context.symbols);
+            if(expression == null)
+                context.report(DiagnosticCode.INVALID_EXPRESSION, lineNum, statement.operandColumn(operand),
+                        statement.operandText(operand), lineNum);
+            return expression;
+        } catch (ArithmeticException e) {
+            context.report(DiagnosticCode.DIVISION_BY_ZERO, lineNum, statement.operandColumn(operand),
+                    statement.operandText(operand), lineNum);
+            return null;
+        }
     }
 
-    private static List<String> readInputFile(String inputFileName) {
-        List<String> strProgram = new ArrayList<>();
+    /**
+     * checks the values of the operands before anything gets emitted
+     */
+    private static boolean checkOperands(Instruction instruction, Statement statement, AssemblyContext context) {
+        for (int i = 0; i < statement.operandCount; i++) {
+            OperandKind kind = context.kinds[i];
+            int value = context.values[i];
 
-        try(BufferedReader br = new BufferedReader(new FileReader(inputFileName))) {
-            for(String line; (line = br.readLine()) != null; ) {
-                strProgram.add(line);
+            if(kind == OperandKind.HEX
+                    && (value < 0 || (instruction.operands[i] == Instruction.Operand.BYTE && value > 0xFF))) {
+                context.report(DiagnosticCode.OUT_OF_RANGE, statement.line, statement.operandColumn(i),
+                        statement.operandText(i), statement.line);
+                return false;
             }
+        }
+        return true;
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static void encode(Instruction instruction, Statement statement, AssemblyContext context) {
+        CodeEmitter emitter = context.emitter;
+        if(context.optimizing)
+            context.code.add(emitter.position(), instruction, instruction.size, context.source, statement.line);
+        emitter.emit(instruction.opcode);
+
+        for (int i = 0; i < statement.operandCount; i++) {
+            boolean symbolic = context.kinds[i] == OperandKind.IDENT;
+            switch (instruction.operands[i]) {
+                case BYTE:
+                    if(symbolic)
+                        addValue(statement, i, 1, context);
+                    else
+                        emitter.emit(context.values[i]);
+                    break;
+                case ADDRESS:
+                    if(!symbolic)
+                        emitter.emitWord(context.values[i]);
+                    else if(context.expressions[i] == null)
+                        addLabel(statement, i, context);
+                    else
+                        addValue(statement, i, 2, context);
+                    break;
+                default:        // keyword operands are part of the opcode
+                    break;
+            }
         }
+    }
 
-        return strProgram;
+    /**
+     * emits a placeholder for the address of the label in an operand
+     */
+    private static void addLabel(Statement statement, int operand, AssemblyContext context) {
+        int id = context.values[operand];
+        if(id < 0)
+            id = context.symbols.intern(statement.source(), statement.operandStart(operand),
+                    statement.operandEnd(operand), context.source, statement.line);
+        context.symbols.addFixup(id, context.emitter.position());
+        context.emitter.emitWord(0x0); // placeholder. Gets filled later in insertLabelAddresses()
     }
 
-    private static void writeOutputFile(String outputFile, byte[] program) {
+    /**
+     * emits a placeholder for the value of a symbol or expression that is not known yet
+     * @param width 1 for a byte, 2 for a word
+     */
+    private static void addValue(Statement statement, int operand, int width, AssemblyContext context) {
+        Expression expression = context.expressions[operand];
+        if(expression == null)
+            expression = Expression.symbol(statement.operandText(operand));
 
-        try {
-            File delFile = new File(outputFile);
-            Files.deleteIfExists(delFile.toPath());
-        } catch (IOException e) {
-            e.printStackTrace();
+        SymbolTable symbols = context.symbols;
+        for (int i = 0; i < expression.symbolCount(); i++) {
+            symbols.intern(expression.symbol(i), context.source, statement.line);
         }
+        symbols.addFixup(new Expression.Fixup(expression, context.emitter.position(), width,
+                context.source, statement.line));
 
-        try (FileOutputStream outputStream = new FileOutputStream(outputFile)) {
-            outputStream.write(program);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // placeholder. Gets filled later in insertLabelAddresses()
+        if(width == 1)
+            context.emitter.emit(0x0);
+        else
+            context.emitter.emitWord(0x0);
+    }
+
+    private static void writeOutputFile(String outputFile, CodeEmitter program) throws IOException {
+        OutputWriter.raw().write(Path.of(outputFile), program.buffer());
+    }
+
+    static void writeOutputFile(String outputFile, byte[] program) throws IOException {
+        OutputWriter.raw().write(Path.of(outputFile), ByteBuffer.wrap(program));
+    }
+
+    /**
+     * prints diagnostics to stderr with a single write
+     */
+    static void printDiagnostics(List<Diagnostic> diagnostics) {
+        printDiagnostics(diagnostics, Diagnostic.Format.TEXT);
+    }
+
+    static void printDiagnostics(List<Diagnostic> diagnostics, Diagnostic.Format format) {
+        if(!diagnostics.isEmpty())
+            System.err.print(format.render(diagnostics));
     }
 
     /**
      * takes the input and output file name from args and
      * generates a binary file for the Lo-Chip.
-     * Ignores every additional argument
+     * Ignores every additional argument.
+     * "--cache dir" and "--cache-size MB" in front of the file names
+     * enable the {@link BuildCache}, "--parallel" encodes a large
+     * file on all cores with the {@link ParallelAssembler} and "--optimize"
+     * runs the standard rules of the {@link PeepholeOptimizer}, "--strip"
+     * strips unreachable code as well and prints how many bytes that saved.
+     * "--format bin|img|hex|h" picks an {@link OutputFormat} for the output
+     * and "--fsync" forces it to the disk before it replaces the old one.
+     * "--diagnostics text|json" picks the {@link Diagnostic.Format} of the
+     * problems printed to stderr and "--max-errors n" stops after n errors.
+     * "--run" executes the program in the {@link Emulator} for up to
+     * {@link #RUN_STEPS} instructions and prints its hot spots.
+     * With "--batch" as first argument all following arguments are
+     * handed to the {@link BatchAssembler}, "--link output modules..."
+     * links modules with the {@link Linker}, "--watch dirs..." keeps
+     * re-assembling with a {@link SourceWatcher}, "--daemon socket" starts an
+     * {@link AssemblerDaemon}, both print their metrics on exit with "--metrics".
+     * "--client socket input output" sends the input to it with an
+     * {@link AssemblerClient}, "--disassemble" hands the following arguments
+     * to the {@link Disassembler} and "-c input output" writes the input as an
+     * {@link ObjectModule}.
      * @throws ArgumentsMissingException when there are less than 2 arguments
      */
-    public static void main(String[] args) throws ArgumentsMissingException {
-        if(args != null && args.length >= 1) {
+    public static void main(String[] args) throws ArgumentsMissingException, IOException {
+        if(args != null && args.length >= 1 && args[0].equals("--batch")) {
+            int failed = BatchAssembler.main(Arrays.asList(args).subList(1, args.length));
+            if(failed > 0)
+                System.exit(1);
+            return;
+        }
+        if(args != null && args.length >= 1 && args[0].equals("--link")) {
+            if(!Linker.main(Arrays.asList(args).subList(1, args.length)))
+                System.exit(1);
+            return;
+        }
+        if(args != null && args.length >= 1 && args[0].equals("--watch")) {
+            SourceWatcher.main(Arrays.asList(args).subList(1, args.length));
+            return;
+        }
+        if(args != null && args.length >= 1 && args[0].equals("--daemon")) {
+            AssemblerDaemon.main(Arrays.asList(args).subList(1, args.length));
+            return;
+        }
+        if(args != null && args.length >= 1 && args[0].equals("--client")) {
+            AssemblerClient.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if(args != null && args.length >= 1 && args[0].equals("--disassemble")) {
+            if(Disassembler.main(Arrays.asList(args).subList(1, args.length)) > 0)
+                System.exit(1);
+            return;
+        }
+        if(args != null && args.length >= 1 && args[0].equals("-c")) {
+            if(args.length < 3)
+                throw new ArgumentsMissingException("Input file and output file missing in arguments!");
+            ObjectModule module = new Assembler().assembleModule(Path.of(args[1]));
+            Linker.write(module, Path.of(args[2]));
+            printDiagnostics(module.diagnostics());
+            return;
+        }
+
+        List<String> files = new ArrayList<>();
+        BuildCache cache = args == null ? null : BuildCache.fromArgs(Arrays.asList(args), files);
+        boolean parallel = files.remove("--parallel");
+        boolean optimize = files.remove("--optimize");
+        boolean strip = files.remove("--strip");
+        boolean run = files.remove("--run");
+        boolean fsync = files.remove("--fsync");
+        OutputFormat format = OutputFormat.BIN;
+        String name = removeOption(files, "--format");
+        if(name != null) {
+            format = OutputFormat.of(name);
+            if(format == null)
+                throw new IllegalArgumentException("Unknown output format \"" + name + "\".");
+        }
+        Diagnostic.Format diagnostics = Diagnostic.Format.TEXT;
+        name = removeOption(files, "--diagnostics");
+        if(name != null) {
+            diagnostics = Diagnostic.Format.of(name);
+            if(diagnostics == null)
+                throw new IllegalArgumentException("Unknown diagnostics format \"" + name + "\".");
+        }
+        String maxErrors = removeOption(files, "--max-errors");
+        OutputWriter writer = format == OutputFormat.BIN && !fsync
+                ? OutputWriter.raw()
+                : new OutputWriter(format, fsync);
+
+        if(files.size() >= 2) {
             Assembler assembler = new Assembler();
-            assembler.assemble(args[0], args[1]);
+            if(strip) {
+                assembler = new Assembler(InstructionSet.loChip(), stats -> System.err.println(
+                        "Removed " + stats.removed + " bytes."), IncludeCache.shared(),
+                        PeepholeOptimizer.standard().stripUnreachable());
+            } else if(optimize) {
+                assembler = new Assembler(InstructionSet.loChip(), Metrics.NONE, IncludeCache.shared(),
+                        PeepholeOptimizer.standard());
+            }
+            if(maxErrors != null)
+                assembler = assembler.withMaxErrors(Integer.parseInt(maxErrors));
+            AssemblyResult result;
+            if(cache != null) {
+                result = cache.assemble(assembler, Path.of(files.get(0)), Path.of(files.get(1)), writer);
+            } else if(parallel) {
+                result = new ParallelAssembler(assembler).assemble(Path.of(files.get(0)));
+                writer.write(Path.of(files.get(1)), result.buffer());
+            } else if(writer == OutputWriter.raw()) {
+                result = assembler.assemble(files.get(0), files.get(1));
+            } else {
+                result = assembler.assemble(files.get(0));
+                writer.write(Path.of(files.get(1)), result.buffer());
+            }
+            printDiagnostics(result.diagnostics(), diagnostics);
+
+            if(run && !result.hasErrors()) {
+                Emulator emulator = new Emulator();
+                emulator.load(result.program());
+                emulator.run(RUN_STEPS);
+                System.out.print(emulator.profile(result.symbols(), 10));
+            }
         } else {
             throw new ArgumentsMissingException("Input file and output file missing in arguments!");
         }
     }
+
+    /**
+     * removes an option and its value from the arguments
+     * @return the value or null if the option is not given
+     */
+    private static String removeOption(List<String> args, String option) throws ArgumentsMissingException {
+        int index = args.indexOf(option);
+        if(index < 0)
+            return null;
+        if(index + 1 >= args.size())
+            throw new ArgumentsMissingException("Missing value for " + option + "!");
+        String value = args.remove(index + 1);
+        args.remove(index);
+        return value;
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.*;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Connection to an {@link AssemblerDaemon}.
+ * Requests on one connection are answered in order, so a client is not
+ * meant to be shared between threads.
+ */
+public class AssemblerClient implements Closeable {
+
+    private final SocketChannel channel;
+
+    private final DataInputStream in;
+
+    private final DataOutputStream out;
+
+    private AssemblerClient(SocketChannel channel) {
+        this.channel = channel;
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    /**
+     * @param address path of a Unix domain socket or a port on the loopback interface
+     */
+    public static AssemblerClient connect(String address) throws IOException {
+        SocketAddress socketAddress = AssemblerDaemon.address(address);
+        SocketChannel channel = SocketChannel.open(AssemblerDaemon.family(socketAddress));
+        try {
+            channel.connect(socketAddress);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new AssemblerClient(channel);
+    }
+
+    /**
+     * lets the daemon read and assemble a source file
+     */
+    public AssemblyResult assemble(Path source) throws IOException {
+        return request(AssemblerDaemon.PATH, source.toAbsolutePath().toString());
+    }
+
+    /**
+     * sends the source text to the daemon
+     */
+    public AssemblyResult assemble(String source) throws IOException {
+        return request(AssemblerDaemon.SOURCE, source);
+    }
+
+    private AssemblyResult request(byte kind, String text) throws IOException {
+        out.writeInt(AssemblerDaemon.PROTOCOL);
+        out.writeByte(kind);
+        AssemblerDaemon.writeString(out, text);
+        out.flush();
+
+        if(in.readByte() != AssemblerDaemon.OK)
+            throw new IOException("Daemon failed: " + in.readUTF());
+        return AssemblyResult.readFrom(in);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * client of the command line: {@code <socket path | port> input output}.
+     * Only loads the classes needed to talk to the daemon.
+     */
+    public static void main(String[] args) throws ArgumentsMissingException, IOException {
+        if(args.length < 3)
+            throw new ArgumentsMissingException(
+                    "Socket path or port, input file and output file missing in arguments!");
+
+        AssemblyResult result;
+        try (AssemblerClient client = connect(args[0])) {
+            result = client.assemble(Path.of(args[1]));
+        }
+        Files.write(Path.of(args[2]), result.program());
+        Assembler.printDiagnostics(result.diagnostics());
+        if(result.hasErrors())
+            System.exit(1);
+    }
+
+}
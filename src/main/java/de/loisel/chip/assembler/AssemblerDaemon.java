@@ -0,0 +1,261 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a warmed up assembler resident, so a build does not pay for JVM
+ * startup and JIT warm-up per file. Requests come in over a Unix domain
+ * socket or a TCP port on the loopback interface. Every connection is
+ * served on its own thread and may send any number of requests.
+ * A request is {@link #PROTOCOL}, a kind and a string: the path of a
+ * source file the daemon reads or the source text itself. The response is
+ * {@link #OK} followed by the {@link AssemblyResult}, or {@link #FAILED}
+ * followed by a message.
+ */
+public class AssemblerDaemon implements Closeable {
+
+    /**
+     * version of the protocol, sent in front of every request
+     */
+    public static final int PROTOCOL = 2;
+
+    // kinds of requests
+    public static final byte PATH = 0;
+    public static final byte SOURCE = 1;
+
+    // status of responses
+    public static final byte OK = 0;
+    public static final byte FAILED = 1;
+
+    /**
+     * longest string a request may carry, far above the size of any source that fits into memory
+     */
+    public static final int MAX_STRING_BYTES = 64 << 20;
+
+    private final Assembler assembler;
+
+    private final ServerSocketChannel server;
+
+    private final SocketAddress address;
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "lochip-daemon-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private AssemblerDaemon(Assembler assembler, ServerSocketChannel server) throws IOException {
+        this.assembler = assembler;
+        this.server = server;
+        this.address = server.getLocalAddress();
+    }
+
+    /**
+     * binds the address and starts to accept connections
+     * @param address path of a Unix domain socket or a port on the loopback interface, 0 picks a free port
+     */
+    public static AssemblerDaemon start(Assembler assembler, String address) throws IOException {
+        SocketAddress socketAddress = address(address);
+        ServerSocketChannel server = ServerSocketChannel.open(family(socketAddress));
+        try {
+            server.bind(socketAddress);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+
+        AssemblerDaemon daemon = new AssemblerDaemon(assembler, server);
+        Thread acceptor = new Thread(daemon::accept, "lochip-daemon");
+        acceptor.start();
+        return daemon;
+    }
+
+    /**
+     * @return a port on the loopback interface if the address is a number, else a Unix domain socket
+     */
+    public static SocketAddress address(String address) {
+        if(!address.isEmpty() && address.chars().allMatch(Character::isDigit))
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        return UnixDomainSocketAddress.of(address);
+    }
+
+    static StandardProtocolFamily family(SocketAddress address) {
+        return address instanceof UnixDomainSocketAddress ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET;
+    }
+
+    /**
+     * @return the bound address, with the actual port if port 0 was requested
+     */
+    public SocketAddress address() {
+        return address;
+    }
+
+    /**
+     * @return number of requests answered so far
+     */
+    public long requests() {
+        return requests.get();
+    }
+
+    private void accept() {
+        try {
+            while (server.isOpen()) {
+                SocketChannel channel = server.accept();
+                workers.execute(() -> serve(channel));
+            }
+        } catch (ClosedChannelException e) {
+            // closed by close()
+        } catch (IOException e) {
+            System.err.println("Daemon stopped: " + e.getMessage());
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            while (true) {
+                int protocol;
+                try {
+                    protocol = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if(protocol != PROTOCOL) {
+                    out.writeByte(FAILED);
+                    out.writeUTF("Unsupported protocol " + protocol + ", expected " + PROTOCOL + ".");
+                    out.flush();
+                    return;
+                }
+
+                byte kind = in.readByte();
+                String text;
+                try {
+                    text = readString(in);
+                } catch (ProtocolException e) {
+                    // the rest of the request can not be found any more
+                    out.writeByte(FAILED);
+                    out.writeUTF(e.getMessage());
+                    out.flush();
+                    return;
+                }
+                AssemblyResult result;
+                try {
+                    if(kind == PATH)
+                        result = assembler.assemble(text);
+                    else if(kind == SOURCE)
+                        result = assembler.assemble(new StringReader(text));
+                    else
+                        throw new IllegalArgumentException("Unknown request kind " + kind + ".");
+                } catch (IOException | RuntimeException e) {
+                    out.writeByte(FAILED);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                    out.flush();
+                    continue;
+                }
+
+                requests.incrementAndGet();
+                out.writeByte(OK);
+                result.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    /**
+     * strings are sent as length and UTF-8 bytes, because source text may exceed the limit of writeUTF
+     */
+    static void writeString(DataOutput out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @throws ProtocolException if the length is negative or above {@link #MAX_STRING_BYTES}
+     */
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if(length < 0 || length > MAX_STRING_BYTES)
+            throw new ProtocolException("Invalid string length " + length + ", at most " + MAX_STRING_BYTES
+                    + " bytes are allowed.");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * stops accepting connections, drops open ones and removes the socket file
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        workers.shutdownNow();
+        if(address instanceof UnixDomainSocketAddress)
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+    }
+
+    /**
+     * daemon of the command line: {@code [--metrics] <socket path | port>}.
+     * Runs until the process is stopped, with "--metrics" it then prints
+     * the statistics of all requests.
+     */
+    public static void main(List<String> args) throws ArgumentsMissingException, IOException {
+        List<String> remaining = new ArrayList<>(args);
+        MetricsRegistry metrics = remaining.remove("--metrics") ? new MetricsRegistry() : null;
+        if(remaining.isEmpty())
+            throw new ArgumentsMissingException("Socket path or port missing in arguments!");
+
+        Assembler assembler = new Assembler(InstructionSet.loChip(), metrics == null ? Metrics.NONE : metrics);
+        AssemblerDaemon daemon = start(assembler, remaining.get(0));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            } catch (IOException e) {
+                // exiting anyway
+            }
+            if(metrics != null)
+                metrics.report(System.out);
+        }));
+        System.out.println("Listening on " + daemon.address());
+    }
+
+}
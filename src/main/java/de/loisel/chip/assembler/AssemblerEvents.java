@@ -0,0 +1,158 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder events of the assembler.
+ * Lexing and encoding take turns line by line, so phase events are
+ * committed at the end of a run and carry the time spent in the phase
+ * as a field instead of their own duration.
+ */
+final class AssemblerEvents {
+
+    private static final String CATEGORY = "Lo-Chip Assembler";
+
+    @Category(CATEGORY)
+    @StackTrace(false)
+    abstract static class PhaseEvent extends Event {
+
+        @jdk.jfr.Label("Source")
+        String source;
+
+        @jdk.jfr.Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("de.loisel.chip.assembler.Lex")
+    @jdk.jfr.Label("Lexing")
+    static final class LexEvent extends PhaseEvent {
+    }
+
+    @Name("de.loisel.chip.assembler.Encode")
+    @jdk.jfr.Label("Encoding")
+    static final class EncodeEvent extends PhaseEvent {
+    }
+
+    @Name("de.loisel.chip.assembler.Optimize")
+    @jdk.jfr.Label("Optimization")
+    static final class OptimizeEvent extends PhaseEvent {
+    }
+
+    @Name("de.loisel.chip.assembler.Fixup")
+    @jdk.jfr.Label("Label Fixup")
+    static final class FixupEvent extends PhaseEvent {
+    }
+
+    @Name("de.loisel.chip.assembler.Output")
+    @jdk.jfr.Label("Output")
+    static final class IoEvent extends PhaseEvent {
+    }
+
+    /**
+     * one assembler run, its duration is the time of the whole run
+     */
+    @Name("de.loisel.chip.assembler.Assembly")
+    @jdk.jfr.Label("Assembly")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class AssemblyEvent extends Event {
+
+        @jdk.jfr.Label("Source")
+        String source;
+
+        @jdk.jfr.Label("Lines")
+        int lines;
+
+        @jdk.jfr.Label("Bytes")
+        @DataAmount
+        int bytes;
+
+        @jdk.jfr.Label("Labels")
+        int labels;
+
+        @jdk.jfr.Label("Fixups")
+        int fixups;
+
+        @jdk.jfr.Label("Removed Bytes")
+        @DataAmount
+        int removed;
+
+        @jdk.jfr.Label("Warnings")
+        int warnings;
+
+        @jdk.jfr.Label("Errors")
+        int errors;
+    }
+
+    /**
+     * registers the events on first use, after the flight recorder is up
+     */
+    private static final class Types {
+
+        static final EventType[] ALL = {
+                EventType.getEventType(AssemblyEvent.class),
+                EventType.getEventType(LexEvent.class),
+                EventType.getEventType(EncodeEvent.class),
+                EventType.getEventType(OptimizeEvent.class),
+                EventType.getEventType(FixupEvent.class),
+                EventType.getEventType(IoEvent.class)
+        };
+    }
+
+    private AssemblerEvents() {
+    }
+
+    /**
+     * @return true if a recording wants any of the events
+     */
+    static boolean enabled() {
+        if(!FlightRecorder.isInitialized())
+            return false;
+        for (EventType type : Types.ALL) {
+            if(type.isEnabled())
+                return true;
+        }
+        return false;
+    }
+
+    static PhaseEvent phase(Phase phase) {
+        switch (phase) {
+            case LEX:
+                return new LexEvent();
+            case ENCODE:
+                return new EncodeEvent();
+            case OPTIMIZE:
+                return new OptimizeEvent();
+            case FIXUP:
+                return new FixupEvent();
+            default:
+                return new IoEvent();
+        }
+    }
+
+}
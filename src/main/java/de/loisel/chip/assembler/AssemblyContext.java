@@ -0,0 +1,245 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mutable state of a single assembler run.
+ * A context is owned by one thread at a time and
+ * can be reused for the next run after {@link #reset()}.
+ */
+public class AssemblyContext {
+
+    final CodeEmitter emitter = new CodeEmitter();
+
+    final SymbolTable symbols = new SymbolTable();
+
+    final Statement statement = new Statement();
+
+    final List<Diagnostic> diagnostics = new ArrayList<>();
+
+    /**
+     * errors after which the run stops, set by the assembler for every run
+     */
+    int maxErrors = Integer.MAX_VALUE;
+
+    int errors;
+
+    /**
+     * true once {@link #maxErrors} errors were reported, nothing else is reported or encoded then
+     */
+    boolean aborted;
+
+    /**
+     * position of the first instruction that may start the program, -1 until there is one
+     */
+    int entry = -1;
+
+    /**
+     * files that are being assembled, the innermost include first.
+     * Empty for sources that are not read from a file.
+     */
+    final Deque<Path> files = new ArrayDeque<>();
+
+    /**
+     * included file the current statement comes from, null for the assembled source
+     */
+    String source;
+
+    /**
+     * macros defined so far by name
+     */
+    final Map<String, Macro> macros = new HashMap<>();
+
+    /**
+     * macro whose body is being read, null outside of a definition
+     */
+    Macro macro;
+
+    /**
+     * number of macro expansions the current statement is nested in
+     */
+    int depth;
+
+    /**
+     * macro invocations so far, numbers the labels of each expansion
+     */
+    int invocations;
+
+    /**
+     * where every instruction starts, only recorded if the program is optimized
+     */
+    final InstructionList code = new InstructionList();
+
+    /**
+     * true if the run records its instructions for the {@link PeepholeOptimizer}
+     */
+    boolean optimizing;
+
+    /**
+     * operands of the current statement after folding constants and expressions.
+     * Operands that still depend on symbols are {@link OperandKind#IDENT},
+     * with an expression unless they are a plain symbol.
+     */
+    OperandKind[] kinds = new OperandKind[InstructionSet.MAX_OPERANDS];
+    int[] values = new int[InstructionSet.MAX_OPERANDS];
+    Expression[] expressions = new Expression[InstructionSet.MAX_OPERANDS];
+
+    /**
+     * true while the context is borrowed from an assembler's pool
+     */
+    boolean inUse;
+
+    /**
+     * true if the phases of this run are timed
+     */
+    boolean instrumented;
+
+    /**
+     * start of the run if it is instrumented
+     */
+    long started;
+
+    /**
+     * flight recorder event of the run or null
+     */
+    AssemblerEvents.AssemblyEvent event;
+
+    int lines;
+
+    int fixups;
+
+    /**
+     * bytes the optimizer removed
+     */
+    int removed;
+
+    /**
+     * statements per mnemonic, indexed by ordinal
+     */
+    final int[] statements = new int[Mnemonic.values().length];
+
+    /**
+     * time per phase, indexed by ordinal
+     */
+    final long[] phaseNanos = new long[Phase.values().length];
+
+    /**
+     * clears everything from the previous run
+     */
+    public void reset() {
+        emitter.reset();
+        symbols.clear();
+        diagnostics.clear();
+        maxErrors = Integer.MAX_VALUE;
+        errors = 0;
+        aborted = false;
+        entry = -1;
+        files.clear();
+        source = null;
+        macros.clear();
+        macro = null;
+        depth = 0;
+        invocations = 0;
+        code.clear();
+        optimizing = false;
+        instrumented = false;
+        event = null;
+        lines = 0;
+        fixups = 0;
+        removed = 0;
+        Arrays.fill(statements, 0);
+        Arrays.fill(phaseNanos, 0);
+    }
+
+    /**
+     * makes room for the operands of a statement
+     */
+    void ensureOperands(int count) {
+        if(count > kinds.length) {
+            kinds = Arrays.copyOf(kinds, count);
+            values = Arrays.copyOf(values, count);
+            expressions = Arrays.copyOf(expressions, count);
+        }
+    }
+
+    /**
+     * adds the time since {@code since} to a phase
+     * @return the current time
+     */
+    long lap(Phase phase, long since) {
+        long now = System.nanoTime();
+        phaseNanos[phase.ordinal()] += now - since;
+        return now;
+    }
+
+    /**
+     * reports a problem of the current source unless the run was stopped
+     * @param column column starting at 1, 0 if the problem is not bound to one
+     * @param args values for the template of the code, they have to be immutable
+     */
+    void report(DiagnosticCode code, int line, int column, Object... args) {
+        report(code, source, line, column, args);
+    }
+
+    void report(DiagnosticCode code, String source, int line, int column, Object... args) {
+        if(!aborted)
+            add(new Diagnostic(code, source, line, column, args));
+    }
+
+    /**
+     * adds a diagnostic and stops the run once there are {@link #maxErrors} errors
+     */
+    void add(Diagnostic diagnostic) {
+        if(aborted)
+            return;
+        diagnostics.add(diagnostic);
+        if(diagnostic.isError() && ++errors >= maxErrors) {
+            diagnostics.add(new Diagnostic(DiagnosticCode.TOO_MANY_ERRORS, null, 0, 0, errors));
+            aborted = true;
+        }
+    }
+
+    /**
+     * @return an immutable copy of the outcome of this run
+     */
+    AssemblyResult toResult() {
+        return AssemblyResult.of(emitter.toByteArray(), symbols.toMap(), diagnostics);
+    }
+
+    AssemblyStats toStats(String source) {
+        int warnings = 0;
+        int errors = 0;
+        for (Diagnostic diagnostic : diagnostics) {
+            if(diagnostic.isError())
+                errors++;
+            else
+                warnings++;
+        }
+        return new AssemblyStats(source, lines, emitter.size(), symbols.size(), fixups, removed, warnings, errors,
+                System.nanoTime() - started, statements, phaseNanos);
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable outcome of one assembler run
+ */
+public final class AssemblyResult {
+
+    private final byte[] program;
+
+    private final Map<String, Integer> symbols;
+
+    private final List<Diagnostic> diagnostics;
+
+    /**
+     * @param program copied, later changes to the array do not change the result
+     */
+    public AssemblyResult(byte[] program, Map<String, Integer> symbols, List<Diagnostic> diagnostics) {
+        this(symbols, diagnostics, program.clone());
+    }
+
+    private AssemblyResult(Map<String, Integer> symbols, List<Diagnostic> diagnostics, byte[] program) {
+        this.program = program;
+        this.symbols = Map.copyOf(symbols);
+        this.diagnostics = List.copyOf(diagnostics);
+    }
+
+    /**
+     * takes over a program array without copying it, nobody may change it afterwards
+     */
+    static AssemblyResult of(byte[] program, Map<String, Integer> symbols, List<Diagnostic> diagnostics) {
+        return new AssemblyResult(symbols, diagnostics, program);
+    }
+
+    /**
+     * @return the assembled binary including the reset vector
+     */
+    public byte[] program() {
+        return program.clone();
+    }
+
+    /**
+     * @return a read only view on the assembled binary without copying it
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(program).asReadOnlyBuffer();
+    }
+
+    public int size() {
+        return program.length;
+    }
+
+    /**
+     * @return address of every defined label by name
+     */
+    public Map<String, Integer> symbols() {
+        return symbols;
+    }
+
+    public List<Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
+    public boolean hasErrors() {
+        for (Diagnostic diagnostic : diagnostics) {
+            if(diagnostic.isError())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * writes program, symbols and diagnostics in the format {@link #readFrom(DataInput)} reads
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(program.length);
+        out.write(program);
+
+        out.writeInt(symbols.size());
+        for (Map.Entry<String, Integer> symbol : symbols.entrySet()) {
+            out.writeUTF(symbol.getKey());
+            out.writeInt(symbol.getValue());
+        }
+
+        out.writeInt(diagnostics.size());
+        for (Diagnostic diagnostic : diagnostics) {
+            diagnostic.writeTo(out);
+        }
+    }
+
+    public static AssemblyResult readFrom(DataInput in) throws IOException {
+        byte[] program = new byte[in.readInt()];
+        in.readFully(program);
+
+        Map<String, Integer> symbols = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            String name = in.readUTF();
+            symbols.put(name, in.readInt());
+        }
+
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            diagnostics.add(Diagnostic.readFrom(in));
+        }
+        return of(program, symbols, diagnostics);
+    }
+
+}
@@ -0,0 +1,682 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Incremental assembler for editors and live reload.
+ * The session keeps the encoding and label references of every source line.
+ * Lines are grouped into blocks, a line only knows its row and offset in its
+ * block, so an edit only re-encodes the edited lines, lays out their block again
+ * and moves the start of the blocks behind it. The code behind the edit is
+ * moved in one copy and the references to labels that moved are re-patched.
+ * Every line is assembled on its own, so includes, constants and
+ * macros are left to the {@link Assembler}.
+ */
+public class AssemblySession {
+
+    /**
+     * bytes in front of the program that hold the reset vector
+     */
+    private static final int HEADER_SIZE = 2;
+
+    /**
+     * lines a block is cut into, a block is split when it holds twice as many
+     */
+    private static final int BLOCK_LINES = 64;
+
+    private static final String[] NO_REFS = new String[0];
+    private static final int[] NO_OFFSETS = new int[0];
+    private static final Expression.Fixup[] NO_VALUES = new Expression.Fixup[0];
+
+    /**
+     * state of one source line
+     */
+    private static class Line {
+
+        Block block;
+
+        /**
+         * index in the block
+         */
+        int row;
+
+        /**
+         * address relative to the start of the block
+         */
+        int offset;
+
+        /**
+         * line number the diagnostics and expressions were made with
+         */
+        int encodedLine;
+
+        byte[] code;
+
+        /**
+         * label defined on this line or null
+         */
+        String label;
+
+        /**
+         * true if this line holds an instruction that may start the program
+         */
+        boolean executable;
+
+        /**
+         * referenced labels and the offsets of their placeholders in code
+         */
+        String[] refs = NO_REFS;
+        int[] refOffsets = NO_OFFSETS;
+
+        /**
+         * expressions over labels and the offsets of their placeholders in code
+         */
+        Expression.Fixup[] values = NO_VALUES;
+
+        List<Diagnostic> diagnostics = List.of();
+
+        String text;
+
+        int index() {
+            return block.first + row;
+        }
+
+        int address() {
+            return block.address + offset;
+        }
+    }
+
+    /**
+     * consecutive lines with their place in the source and in the program
+     */
+    private static class Block {
+
+        final List<Line> lines = new ArrayList<>(BLOCK_LINES);
+
+        /**
+         * index of the first line in the source
+         */
+        int first;
+
+        /**
+         * address of the first line in the program
+         */
+        int address;
+
+        /**
+         * bytes of all lines
+         */
+        int size;
+
+        /**
+         * lines that define a label
+         */
+        int labels;
+
+        /**
+         * lines that may start the program
+         */
+        int executables;
+
+        /**
+         * numbers the rows and offsets of the lines again
+         */
+        void layout() {
+            size = 0;
+            labels = 0;
+            executables = 0;
+            for (int row = 0; row < lines.size(); row++) {
+                Line line = lines.get(row);
+                line.block = this;
+                line.row = row;
+                line.offset = size;
+                size += line.code.length;
+                if(line.label != null)
+                    labels++;
+                if(line.executable)
+                    executables++;
+            }
+        }
+    }
+
+    private final Assembler assembler;
+
+    private final AssemblyContext scratch = new AssemblyContext();
+
+    private final List<Block> blocks = new ArrayList<>();
+
+    private int lineCount;
+
+    private final byte[] image = new byte[CodeEmitter.CAPACITY];
+
+    /**
+     * end of the program in the image
+     */
+    private int end = HEADER_SIZE;
+
+    private boolean overflow;
+
+    /**
+     * lines encoded since the session was opened
+     */
+    int encodedLines;
+
+    /**
+     * lines that define each label, in no particular order
+     */
+    private final Map<String, List<Line>> definitions = new HashMap<>();
+
+    /**
+     * lines that reference each label
+     */
+    private final Map<String, Set<Line>> references = new HashMap<>();
+
+    /**
+     * address each label was last patched with
+     */
+    private final Map<String, Integer> patched = new HashMap<>();
+
+    public AssemblySession(Assembler assembler, List<String> source) {
+        this.assembler = assembler;
+        replace(0, 0, source);
+    }
+
+    public int lineCount() {
+        return lineCount;
+    }
+
+    /**
+     * replaces a single line
+     * @param lineNum line number starting at 1
+     */
+    public void update(int lineNum, String text) {
+        replace(lineNum - 1, lineNum, List.of(text));
+    }
+
+    /**
+     * replaces the lines {@code from} (inclusive) to {@code to} (exclusive),
+     * both counted from 0, with new lines. Inserts if from == to,
+     * deletes if the new lines are empty.
+     */
+    public void replace(int from, int to, List<String> newLines) {
+        if(from < 0 || to < from || to > lineCount)
+            throw new IndexOutOfBoundsException("Lines " + from + " to " + to + " of " + lineCount);
+
+        int first = blockOf(from);
+        Block block = blocks.get(first);
+        int row = from - block.first;
+        int start = row < block.lines.size() ? block.lines.get(row).address() : end;
+
+        // take the old lines out of their blocks
+        Set<String> moved = new HashSet<>();
+        int oldSize = 0;
+        int last = first;
+        for (int count = to - from, r = row; count > 0; last++, r = 0) {
+            List<Line> part = blocks.get(last).lines;
+            List<Line> removed = part.subList(r, Math.min(part.size(), r + count));
+            for (Line line : removed) {
+                oldSize += line.code.length;
+                unregister(line);
+                if(line.label != null)
+                    moved.add(line.label);
+            }
+            count -= removed.size();
+            removed.clear();
+        }
+
+        List<Line> added = new ArrayList<>(newLines.size());
+        int newSize = 0;
+        for (int i = 0; i < newLines.size(); i++) {
+            Line line = new Line();
+            line.encodedLine = from + i + 1;
+            encode(line, newLines.get(i));
+            newSize += line.code.length;
+            added.add(line);
+        }
+        block.lines.addAll(row, added);
+        lineCount += added.size() - (to - from);
+
+        // lay out the touched blocks and move the ones behind them
+        int touched = Math.max(last, first + 1);
+        for (int i = first; i < touched; i++) {
+            Block part = blocks.get(i);
+            if(part.lines.isEmpty() && blocks.size() > 1) {
+                blocks.remove(i--);
+                touched--;
+            } else {
+                touched += split(i) - 1;
+                part.layout();
+            }
+        }
+        for (int i = first; i < blocks.size(); i++) {
+            Block part = blocks.get(i);
+            Block previous = i == 0 ? null : blocks.get(i - 1);
+            part.first = previous == null ? 0 : previous.first + previous.lines.size();
+            part.address = previous == null ? HEADER_SIZE : previous.address + previous.size;
+        }
+        for (Line line : added) {
+            register(line);
+            if(line.label != null)
+                moved.add(line.label);
+        }
+
+        // move the code behind the edit
+        int delta = newSize - oldSize;
+        int tail = start + oldSize;
+        if(delta != 0 && end > tail) {
+            int length = Math.min(end - tail, image.length - Math.max(tail, tail + delta));
+            if(length > 0)
+                System.arraycopy(image, tail, image, tail + delta, length);
+        }
+        boolean overflowed = overflow;
+        end += delta;
+        overflow = end > image.length;
+
+        for (Line line : added) {
+            copyIntoImage(line);
+        }
+
+        if(overflowed || overflow) {
+            // code that did not fit was dropped from the image
+            rebuildImage();
+        } else {
+            for (Line line : added) {
+                patchReferences(line);
+            }
+            if(delta != 0)
+                collectLabelsBehind(from + added.size(), moved);
+            repatch(moved);
+        }
+        updateResetVector();
+    }
+
+    /**
+     * @return a read only view on the program without copying it
+     */
+    public ByteBuffer program() {
+        return ByteBuffer.wrap(image, 0, Math.min(end, image.length)).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the current state as an immutable result
+     */
+    public AssemblyResult result() {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        for (Block block : blocks) {
+            for (Line line : block.lines) {
+                if(line.encodedLine != line.index() + 1)
+                    renumber(line);
+                diagnostics.addAll(line.diagnostics);
+            }
+        }
+
+        for (Map.Entry<String, List<Line>> definition : definitions.entrySet()) {
+            Line first = definition(definition.getKey());
+            for (Line line : definition.getValue()) {
+                if(line != first)
+                    diagnostics.add(new Diagnostic(DiagnosticCode.SYMBOL_DEFINED, null, line.index() + 1, 0,
+                            definition.getKey(), line.index() + 1));
+            }
+        }
+
+        for (Map.Entry<String, Set<Line>> reference : references.entrySet()) {
+            if(definition(reference.getKey()) == null) {
+                int lineNum = Integer.MAX_VALUE;
+                for (Line line : reference.getValue()) {
+                    lineNum = Math.min(lineNum, line.index() + 1);
+                }
+                diagnostics.add(new Diagnostic(DiagnosticCode.LABEL_NOT_FOUND, null, lineNum, 0,
+                        reference.getKey(), lineNum));
+            }
+        }
+
+        for (Block block : blocks) {
+            for (Line line : block.lines) {
+                for (Expression.Fixup fixup : line.values) {
+                    fixup.resolve(this::address, diagnostics::add);
+                }
+            }
+        }
+
+        if(overflow)
+            diagnostics.add(new Diagnostic(DiagnosticCode.TOO_LARGE, null, 0, 0));
+
+        Map<String, Integer> symbols = new HashMap<>();
+        for (String name : definitions.keySet()) {
+            Line line = definition(name);
+            if(line != null)
+                symbols.put(name, line.address());
+        }
+
+        return AssemblyResult.of(Arrays.copyOf(image, Math.min(end, image.length)), symbols, diagnostics);
+    }
+
+    /**
+     * @return index of the block that holds the line, the last block for the end of the source
+     */
+    private int blockOf(int index) {
+        if(blocks.isEmpty()) {
+            Block block = new Block();
+            block.address = HEADER_SIZE;
+            blocks.add(block);
+        }
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if(blocks.get(middle).first <= index)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    /**
+     * cuts a block that grew too large into blocks of {@link #BLOCK_LINES} lines
+     * @return the number of blocks it was cut into
+     */
+    private int split(int index) {
+        Block block = blocks.get(index);
+        if(block.lines.size() <= 2 * BLOCK_LINES)
+            return 1;
+
+        int count = 0;
+        for (int from = BLOCK_LINES; from < block.lines.size(); from += BLOCK_LINES) {
+            Block part = new Block();
+            part.lines.addAll(block.lines.subList(from, Math.min(from + BLOCK_LINES, block.lines.size())));
+            part.layout();
+            blocks.add(index + ++count, part);
+        }
+        block.lines.subList(BLOCK_LINES, block.lines.size()).clear();
+        return count + 1;
+    }
+
+    private void encode(Line line, String text) {
+        encodedLines++;
+        line.text = text;
+        scratch.reset();
+        try {
+            Lexer lexer = Lexer.of(List.of(text));
+            Statement statement = scratch.statement;
+            if(!lexer.next(statement)) {
+                line.code = new byte[0];
+                line.label = null;
+                line.executable = false;
+                line.refs = NO_REFS;
+                line.refOffsets = NO_OFFSETS;
+                line.values = NO_VALUES;
+                line.diagnostics = List.of();
+                return;
+            }
+
+            statement.line = line.encodedLine;
+            assembler.encodeStatement(statement, scratch);
+            line.label = statement.label;
+            line.executable = statement.mnemonic != null && !statement.mnemonic.directive;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        line.code = scratch.emitter.toByteArray();
+        line.diagnostics = List.copyOf(scratch.diagnostics);
+
+        SymbolTable symbols = scratch.symbols;
+        int count = symbols.fixupCount();
+        line.refs = count == 0 ? NO_REFS : new String[count];
+        line.refOffsets = count == 0 ? NO_OFFSETS : new int[count];
+        for (int i = 0; i < count; i++) {
+            line.refs[i] = symbols.name(symbols.fixupId(i));
+            line.refOffsets[i] = symbols.fixupLocation(i);
+        }
+        line.values = symbols.expressionFixups().toArray(NO_VALUES);
+    }
+
+    /**
+     * gives the diagnostics and expressions of a line its current line number.
+     * Only lines with diagnostics are encoded again.
+     */
+    private void renumber(Line line) {
+        int lineNum = line.index() + 1;
+        if(!line.diagnostics.isEmpty()) {
+            String[] refs = line.refs;
+            int[] refOffsets = line.refOffsets;
+            Expression.Fixup[] values = line.values;
+            line.encodedLine = lineNum;
+            encode(line, line.text);
+            line.refs = refs;
+            line.refOffsets = refOffsets;
+            line.values = values;
+        }
+        for (int i = 0; i < line.values.length; i++) {
+            Expression.Fixup fixup = line.values[i];
+            line.values[i] = new Expression.Fixup(fixup.expression, fixup.location, fixup.width, fixup.source,
+                    lineNum);
+        }
+        line.encodedLine = lineNum;
+    }
+
+    private void register(Line line) {
+        if(line.label != null)
+            definitions.computeIfAbsent(line.label, name -> new ArrayList<>(1)).add(line);
+        for (String ref : line.refs) {
+            references.computeIfAbsent(ref, name -> new HashSet<>()).add(line);
+        }
+        for (Expression.Fixup fixup : line.values) {
+            for (int i = 0; i < fixup.expression.symbolCount(); i++) {
+                references.computeIfAbsent(fixup.expression.symbol(i), name -> new HashSet<>()).add(line);
+            }
+        }
+    }
+
+    private void unregister(Line line) {
+        if(line.label != null) {
+            List<Line> defs = definitions.get(line.label);
+            defs.remove(line);
+            if(defs.isEmpty())
+                definitions.remove(line.label);
+        }
+        for (String ref : line.refs) {
+            unregisterReference(ref, line);
+        }
+        for (Expression.Fixup fixup : line.values) {
+            for (int i = 0; i < fixup.expression.symbolCount(); i++) {
+                unregisterReference(fixup.expression.symbol(i), line);
+            }
+        }
+    }
+
+    private void unregisterReference(String ref, Line line) {
+        Set<Line> refs = references.get(ref);
+        if(refs != null) {
+            refs.remove(line);
+            if(refs.isEmpty())
+                references.remove(ref);
+        }
+    }
+
+    /**
+     * @return the line that defines the label, the first one if there are several
+     */
+    private Line definition(String name) {
+        List<Line> defs = definitions.get(name);
+        if(defs == null)
+            return null;
+        Line first = null;
+        for (Line line : defs) {
+            if(first == null || line.index() < first.index())
+                first = line;
+        }
+        return first;
+    }
+
+    /**
+     * @return the address of a label or {@link SymbolTable#UNDEFINED}
+     */
+    private int address(String name) {
+        Line line = definition(name);
+        return line == null ? SymbolTable.UNDEFINED : line.address();
+    }
+
+    /**
+     * adds the labels defined from the line on, which moved with the code behind an edit
+     */
+    private void collectLabelsBehind(int index, Set<String> labels) {
+        for (int i = blockOf(index); i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            if(block.labels == 0)
+                continue;
+            for (int row = Math.max(index - block.first, 0); row < block.lines.size(); row++) {
+                String label = block.lines.get(row).label;
+                if(label != null)
+                    labels.add(label);
+            }
+        }
+    }
+
+    private void copyIntoImage(Line line) {
+        int address = line.address();
+        int length = Math.min(line.code.length, image.length - address);
+        if(length > 0)
+            System.arraycopy(line.code, 0, image, address, length);
+    }
+
+    private void rebuildImage() {
+        for (Block block : blocks) {
+            for (Line line : block.lines) {
+                copyIntoImage(line);
+            }
+        }
+        patched.clear();
+        repatch(definitions.keySet());
+    }
+
+    private void patchReferences(Line line) {
+        int address = line.address();
+        for (int i = 0; i < line.refs.length; i++) {
+            Line target = definition(line.refs[i]);
+            if(target != null)
+                patchWord(address + line.refOffsets[i], target.address());
+        }
+        patchValues(line);
+    }
+
+    /**
+     * writes the values of the line's expressions that are known and fit,
+     * {@link #result()} reports the others
+     */
+    private void patchValues(Line line) {
+        for (Expression.Fixup fixup : line.values) {
+            OptionalInt value;
+            try {
+                value = fixup.expression.evaluate(this::address);
+            } catch (ArithmeticException e) {
+                continue;
+            }
+            if(value.isEmpty() || !Expression.fits(value.getAsInt(), fixup.width))
+                continue;
+
+            patchValue(line.address() + fixup.location, fixup.width, value.getAsInt());
+        }
+    }
+
+    private void patchValue(int location, int width, int value) {
+        if(width == 1) {
+            if(location < image.length)
+                image[location] = (byte) value;
+        } else {
+            patchWord(location, value);
+        }
+    }
+
+    /**
+     * re-patches every reference to one of the labels if its address changed.
+     * References to a label that is not defined any more get the placeholder
+     * a full assembly leaves for an unknown label.
+     */
+    private void repatch(Collection<String> labels) {
+        for (String name : labels) {
+            Line definition = definition(name);
+            if(definition == null) {
+                if(patched.remove(name) != null)
+                    clearReferences(name);
+                continue;
+            }
+
+            int address = definition.address();
+            Integer previous = patched.put(name, address);
+            if(previous == null || previous != address) {
+                Set<Line> refs = references.getOrDefault(name, Set.of());
+                for (Line line : refs) {
+                    int location = line.address();
+                    for (int i = 0; i < line.refs.length; i++) {
+                        if(line.refs[i].equals(name))
+                            patchWord(location + line.refOffsets[i], address);
+                    }
+                    patchValues(line);
+                }
+            }
+        }
+    }
+
+    private void clearReferences(String name) {
+        for (Line line : references.getOrDefault(name, Set.of())) {
+            int location = line.address();
+            for (int i = 0; i < line.refs.length; i++) {
+                if(line.refs[i].equals(name))
+                    patchWord(location + line.refOffsets[i], 0);
+            }
+            for (Expression.Fixup fixup : line.values) {
+                for (int i = 0; i < fixup.expression.symbolCount(); i++) {
+                    if(fixup.expression.symbol(i).equals(name)) {
+                        patchValue(location + fixup.location, fixup.width, 0);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void updateResetVector() {
+        int address = 0;
+        for (Block block : blocks) {
+            if(block.executables > 0) {
+                for (Line line : block.lines) {
+                    if(line.executable) {
+                        address = line.address();
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        patchWord(0, address);
+    }
+
+    private void patchWord(int location, int value) {
+        if(location + 1 < image.length) {
+            image[location] = (byte) (value >>> 8);
+            image[location + 1] = (byte) value;
+        }
+    }
+
+}
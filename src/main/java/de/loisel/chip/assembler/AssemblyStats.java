@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+/**
+ * Immutable counters and phase timings of one assembler run
+ */
+public final class AssemblyStats {
+
+    /**
+     * name of the source or null if it has none
+     */
+    public final String source;
+
+    /**
+     * source lines, including blank and comment lines
+     */
+    public final int lines;
+
+    /**
+     * size of the program including the reset vector
+     */
+    public final int bytes;
+
+    public final int labels;
+
+    /**
+     * label addresses patched into the program
+     */
+    public final int fixups;
+
+    /**
+     * bytes the optimizer removed from the program
+     */
+    public final int removed;
+
+    public final int warnings;
+
+    public final int errors;
+
+    /**
+     * time of the whole run
+     */
+    public final long nanos;
+
+    private final int[] statements;
+
+    private final long[] phaseNanos;
+
+    AssemblyStats(String source, int lines, int bytes, int labels, int fixups, int removed, int warnings, int errors,
+                  long nanos, int[] statements, long[] phaseNanos) {
+        this.source = source;
+        this.lines = lines;
+        this.bytes = bytes;
+        this.labels = labels;
+        this.fixups = fixups;
+        this.removed = removed;
+        this.warnings = warnings;
+        this.errors = errors;
+        this.nanos = nanos;
+        this.statements = statements.clone();
+        this.phaseNanos = phaseNanos.clone();
+    }
+
+    /**
+     * @return number of statements with this mnemonic, valid or not
+     */
+    public int statements(Mnemonic mnemonic) {
+        return statements[mnemonic.ordinal()];
+    }
+
+    /**
+     * @return time spent in a phase
+     */
+    public long nanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+}
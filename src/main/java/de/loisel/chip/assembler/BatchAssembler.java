@@ -0,0 +1,351 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Assembles many source files in one process on a pool of worker threads.
+ * Sources are given as directories, glob patterns or manifest files
+ * ("@file", one directory, glob or file per line).
+ */
+public class BatchAssembler {
+
+    private static final String SOURCE_EXTENSION = ".asm";
+    private static final String OUTPUT_EXTENSION = ".bin";
+
+    /**
+     * a source file together with the root its output path is mirrored from
+     */
+    public static class Source {
+
+        public final Path root;
+
+        public final Path file;
+
+        public Source(Path root, Path file) {
+            this.root = root;
+            this.file = file;
+        }
+    }
+
+    /**
+     * outcome of one source file
+     */
+    public static class Entry {
+
+        public final Source source;
+
+        public final Path output;
+
+        /**
+         * outcome of the assembler, an empty program with the reason if it failed unexpectedly
+         */
+        public final AssemblyResult result;
+
+        public final long nanos;
+
+        Entry(Source source, Path output, AssemblyResult result, long nanos) {
+            this.source = source;
+            this.output = output;
+            this.result = result;
+            this.nanos = nanos;
+        }
+
+        public boolean failed() {
+            return result == null || result.hasErrors();
+        }
+    }
+
+    private final Assembler assembler;
+
+    private final int parallelism;
+
+    /**
+     * directory the sources are mirrored into, null to write next to the sources
+     */
+    private final Path outputDir;
+
+    /**
+     * build cache or null
+     */
+    private final BuildCache cache;
+
+    public BatchAssembler(Assembler assembler, int parallelism, Path outputDir) {
+        this(assembler, parallelism, outputDir, null);
+    }
+
+    public BatchAssembler(Assembler assembler, int parallelism, Path outputDir, BuildCache cache) {
+        this.assembler = assembler;
+        this.parallelism = parallelism;
+        this.outputDir = outputDir;
+        this.cache = cache;
+    }
+
+    /**
+     * assembles all sources on the worker pool
+     * @return one entry per source in the order of the sources
+     */
+    public List<Entry> run(List<Source> sources) {
+        List<Callable<Entry>> tasks = new ArrayList<>(sources.size());
+        for (Source source : sources) {
+            tasks.add(() -> assemble(source));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Entry> entries = new ArrayList<>(sources.size());
+            List<Future<Entry>> futures = pool.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    entries.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    // the pool wraps exceptions it rethrows from another thread
+                    Throwable cause = e.getCause();
+                    while (cause.getClass() == RuntimeException.class && cause.getCause() != null) {
+                        cause = cause.getCause();
+                    }
+                    AssemblyResult failure = new AssemblyResult(new byte[0], Map.of(), List.of(new Diagnostic(
+                            DiagnosticCode.ASSEMBLY_FAILED, null, 0, 0, cause.toString())));
+                    entries.add(new Entry(sources.get(i), null, failure, 0));
+                }
+            }
+            return entries;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Batch was interrupted", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Entry assemble(Source source) throws IOException {
+        long start = System.nanoTime();
+        Path output = outputFor(source);
+        Path parent = output.toAbsolutePath().getParent();
+        if(parent != null)
+            Files.createDirectories(parent);
+
+        AssemblyResult result = cache == null
+                ? assembler.assemble(source.file.toString(), output.toString())
+                : cache.assemble(assembler, source.file, output);
+        return new Entry(source, output, result, System.nanoTime() - start);
+    }
+
+    /**
+     * @return the output path for a source, either next to it
+     * or mirrored from its root into the output directory
+     */
+    public Path outputFor(Source source) {
+        String name = source.file.getFileName().toString();
+        if(name.endsWith(SOURCE_EXTENSION))
+            name = name.substring(0, name.length() - SOURCE_EXTENSION.length());
+        name += OUTPUT_EXTENSION;
+
+        if(outputDir == null)
+            return source.file.resolveSibling(name);
+
+        Path relative = source.root.relativize(source.file);
+        return outputDir.resolve(relative).resolveSibling(name);
+    }
+
+    /**
+     * expands directories, glob patterns and manifests into source files
+     */
+    public static List<Source> collectSources(List<String> specs) throws IOException {
+        return collectFiles(specs, SOURCE_EXTENSION);
+    }
+
+    /**
+     * expands directories, glob patterns and manifests into files,
+     * directories are searched for files with the given extension
+     */
+    public static List<Source> collectFiles(List<String> specs, String extension) throws IOException {
+        List<Source> sources = new ArrayList<>();
+        for (String spec : specs) {
+            collect(spec, Path.of(""), extension, sources);
+        }
+        return sources;
+    }
+
+    private static void collect(String spec, Path base, String extension, List<Source> sources)
+            throws IOException {
+        if(spec.startsWith("@")) {
+            Path manifest = base.resolve(spec.substring(1));
+            Path manifestDir = manifest.toAbsolutePath().getParent();
+            for (String line : Files.readAllLines(manifest)) {
+                line = line.strip();
+                if(!line.isEmpty() && !line.startsWith("#"))
+                    collect(line, manifestDir, extension, sources);
+            }
+            return;
+        }
+
+        int glob = firstGlobChar(spec);
+        if(glob >= 0) {
+            int slash = Math.max(spec.lastIndexOf('/', glob), spec.lastIndexOf('\\', glob));
+            Path root = base.resolve(slash < 0 ? "" : spec.substring(0, slash + 1));
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + spec.substring(slash + 1));
+            walk(root, file -> matcher.matches(root.relativize(file)), sources);
+            return;
+        }
+
+        Path path = base.resolve(spec);
+        if(Files.isDirectory(path))
+            walk(path, file -> file.getFileName().toString().endsWith(extension), sources);
+        else
+            sources.add(new Source(path.toAbsolutePath().getParent(), path));
+    }
+
+    private static void walk(Path root, Predicate<Path> filter, List<Source> sources)
+            throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files.filter(Files::isRegularFile).filter(filter).sorted().collect(Collectors.toList())) {
+                sources.add(new Source(root, file));
+            }
+        }
+    }
+
+    private static int firstGlobChar(String spec) {
+        for (int i = 0; i < spec.length(); i++) {
+            char c = spec.charAt(i);
+            if(c == '*' || c == '?' || c == '[' || c == '{')
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * prints the diagnostics of failed files and a timing summary
+     * @return number of failed files
+     */
+    public static int printSummary(List<Entry> entries, long wallNanos, PrintStream out) {
+        return printSummary(entries, wallNanos, out, Diagnostic.Format.TEXT);
+    }
+
+    /**
+     * prints the diagnostics of failed files in the format and a timing summary.
+     * JSON diagnostics name the file they belong to.
+     * @return number of failed files
+     */
+    public static int printSummary(List<Entry> entries, long wallNanos, PrintStream out, Diagnostic.Format format) {
+        StringBuilder report = new StringBuilder();
+        int failed = 0;
+        long bytes = 0;
+        long cpuNanos = 0;
+
+        for (Entry entry : entries) {
+            cpuNanos += entry.nanos;
+            if(entry.result != null)
+                bytes += entry.result.size();
+            if(entry.failed()) {
+                failed++;
+                if(format == Diagnostic.Format.TEXT)
+                    report.append("FAILED ").append(entry.source.file).append(System.lineSeparator());
+                if(entry.result != null)
+                    for (Diagnostic diagnostic : entry.result.diagnostics()) {
+                        if(format == Diagnostic.Format.TEXT)
+                            report.append("  ");
+                        format.append(report, entry.source.file.toString(), diagnostic);
+                        report.append(System.lineSeparator());
+                    }
+            }
+        }
+        out.print(report);
+
+        double seconds = wallNanos / 1e9;
+        out.printf("Assembled %d files (%d failed), %d bytes in %.1f ms, %.0f files/s, %.1f ms cpu per file%n",
+                entries.size(), failed, bytes, wallNanos / 1e6,
+                seconds > 0 ? entries.size() / seconds : 0.0,
+                entries.isEmpty() ? 0.0 : cpuNanos / 1e6 / entries.size());
+        return failed;
+    }
+
+    /**
+     * batch mode of the command line:
+     * {@code [-j threads] [-o outputDir] [--metrics] [--max-errors n] [--diagnostics text|json]
+     * [--cache dir [--cache-size MB]] <dir | glob | @manifest>...}
+     * @return number of failed files
+     */
+    public static int main(List<String> arguments) throws ArgumentsMissingException, IOException {
+        List<String> args = new ArrayList<>();
+        BuildCache cache = BuildCache.fromArgs(arguments, args);
+
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        Path outputDir = null;
+        MetricsRegistry metrics = null;
+        int maxErrors = Assembler.NO_ERROR_LIMIT;
+        Diagnostic.Format format = Diagnostic.Format.TEXT;
+        List<String> specs = new ArrayList<>();
+
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if((arg.equals("-j") || arg.equals("-o") || arg.equals("--max-errors") || arg.equals("--diagnostics"))
+                    && i + 1 >= args.size())
+                throw new ArgumentsMissingException("Missing value for " + arg + "!");
+
+            if(arg.equals("-j"))
+                parallelism = Integer.parseInt(args.get(++i));
+            else if(arg.equals("-o"))
+                outputDir = Path.of(args.get(++i));
+            else if(arg.equals("--metrics"))
+                metrics = new MetricsRegistry();
+            else if(arg.equals("--max-errors"))
+                maxErrors = Integer.parseInt(args.get(++i));
+            else if(arg.equals("--diagnostics")) {
+                String name = args.get(++i);
+                format = Diagnostic.Format.of(name);
+                if(format == null)
+                    throw new IllegalArgumentException("Unknown diagnostics format \"" + name + "\".");
+            }
+            else
+                specs.add(arg);
+        }
+
+        if(specs.isEmpty())
+            throw new ArgumentsMissingException("No source directories, globs or manifests given!");
+
+        long start = System.nanoTime();
+        List<Source> sources = collectSources(specs);
+        Assembler assembler = new Assembler(InstructionSet.loChip(), metrics == null ? Metrics.NONE : metrics);
+        if(maxErrors != Assembler.NO_ERROR_LIMIT)
+            assembler = assembler.withMaxErrors(maxErrors);
+        List<Entry> entries = new BatchAssembler(assembler, parallelism, outputDir, cache).run(sources);
+        int failed = printSummary(entries, System.nanoTime() - start, System.out, format);
+        if(cache != null)
+            System.out.println("Build cache: " + cache.hits() + " hits, " + cache.misses() + " misses");
+        if(metrics != null)
+            metrics.report(System.out);
+        return failed;
+    }
+
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content addressed on-disk cache of assembled programs.
+ * Entries are keyed by a hash of the normalized source together with
+ * the assembler and instruction table version, so a hit costs one
+ * hash computation. The cache is trimmed to a maximum size by
+ * evicting the least recently used entries.
+ */
+public class BuildCache {
+
+    private static final int FORMAT = 4;
+
+    private static final String ENTRY_EXTENSION = ".entry";
+
+    private static final long DEFAULT_MAX_MEGABYTES = 256;
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    private final AtomicLong size = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public BuildCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        for (Path entry : entries()) {
+            size.addAndGet(Files.size(entry));
+        }
+    }
+
+    /**
+     * reads "--cache dir" and "--cache-size MB" from command line arguments
+     * @param remaining receives all other arguments
+     * @return the cache or null if no cache directory was given
+     */
+    public static BuildCache fromArgs(List<String> args, List<String> remaining)
+            throws ArgumentsMissingException, IOException {
+        Path directory = null;
+        long megabytes = DEFAULT_MAX_MEGABYTES;
+
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if(arg.equals("--cache") || arg.equals("--cache-size")) {
+                if(i + 1 >= args.size())
+                    throw new ArgumentsMissingException("Missing value for " + arg + "!");
+                if(arg.equals("--cache"))
+                    directory = Path.of(args.get(++i));
+                else
+                    megabytes = Long.parseLong(args.get(++i));
+            } else {
+                remaining.add(arg);
+            }
+        }
+
+        return directory == null ? null : new BuildCache(directory, megabytes << 20);
+    }
+
+    /**
+     * assembles a source file unless an entry for its content exists.
+     * The output file is only rewritten if its content differs.
+     * @param output output file or null
+     */
+    public AssemblyResult assemble(Assembler assembler, Path source, Path output) throws IOException {
+        return assemble(assembler, source, output, OutputWriter.raw());
+    }
+
+    /**
+     * assembles a source file unless an entry for its content exists
+     * and writes the output with the writer.
+     * Binary outputs are only rewritten if their content differs.
+     * @param output output file or null
+     */
+    public AssemblyResult assemble(Assembler assembler, Path source, Path output, OutputWriter writer)
+            throws IOException {
+        String key = key(assembler, source);
+        AssemblyResult result = lookup(key);
+
+        if(result == null) {
+            misses.incrementAndGet();
+            result = assembler.assemble(source);
+            store(key, result);
+        } else {
+            hits.incrementAndGet();
+        }
+
+        if(output != null && (writer.format() != OutputFormat.BIN || !contentEquals(output, result)))
+            writer.write(output, result.buffer());
+        return result;
+    }
+
+    /**
+     * @return the cached result or null
+     */
+    public AssemblyResult lookup(String key) {
+        Path entry = entryPath(key);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if(in.readInt() != FORMAT)
+                return null;
+
+            AssemblyResult result = AssemblyResult.readFrom(in);
+
+            // mark as recently used
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return result;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void store(String key, AssemblyResult result) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(result.size() + 256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(FORMAT);
+            result.writeTo(out);
+        }
+
+        Path entry = entryPath(key);
+        Files.createDirectories(entry.getParent());
+        Path temp = Files.createTempFile(entry.getParent(), key, ".tmp");
+        try {
+            Files.write(temp, bytes.toByteArray());
+            long previous = Files.exists(entry) ? Files.size(entry) : 0;
+            Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            size.addAndGet(bytes.size() - previous);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        if(size.get() > maxBytes)
+            evict();
+    }
+
+    /**
+     * deletes the least recently used entries until the cache fits into its size limit
+     */
+    public synchronized void evict() throws IOException {
+        if(size.get() <= maxBytes)
+            return;
+
+        List<Path> entries = entries();
+        Map<Path, FileTime> used = new HashMap<>();
+        for (Path entry : entries) {
+            used.put(entry, Files.getLastModifiedTime(entry));
+        }
+        entries.sort(Comparator.comparing(used::get));
+
+        long total = 0;
+        for (Path entry : entries) {
+            total += Files.size(entry);
+        }
+        for (Iterator<Path> it = entries.iterator(); it.hasNext() && total > maxBytes; ) {
+            Path entry = it.next();
+            long entrySize = Files.size(entry);
+            if(Files.deleteIfExists(entry))
+                total -= entrySize;
+        }
+        size.set(total);
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the cache key of a source file
+     */
+    public static String key(InstructionSet instructions, Path source) throws IOException {
+        return key(instructions.fingerprint(), source);
+    }
+
+    /**
+     * @return the cache key of a source file assembled with the instructions and optimizer of the assembler
+     */
+    public static String key(Assembler assembler, Path source) throws IOException {
+        String configuration = assembler.instructions().fingerprint();
+        if(assembler.optimizer() != null)
+            configuration += assembler.optimizer() + "\n";
+        if(assembler.maxErrors() != Assembler.NO_ERROR_LIMIT)
+            configuration += "max-errors " + assembler.maxErrors() + "\n";
+        return key(configuration, source);
+    }
+
+    private static String key(String configuration, Path source) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(("lochip-asm " + Assembler.VERSION + " " + FORMAT + "\n").getBytes(StandardCharsets.UTF_8));
+        digest.update(configuration.getBytes(StandardCharsets.UTF_8));
+
+        Deque<Path> files = new ArrayDeque<>();
+        files.push(source.toAbsolutePath().normalize());
+        normalize(files, digest);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * feeds the source into the digest without comments and without
+     * trailing whitespace. Line breaks and indentation are kept, so the
+     * lines and columns of cached diagnostics stay valid.
+     * Included files are fed in after the line that includes them.
+     * @param files the file to feed on top of the files that include it
+     */
+    private static void normalize(Deque<Path> files, MessageDigest digest) throws IOException {
+        ByteBuffer content;
+        try (FileChannel channel = FileChannel.open(files.peek(), StandardOpenOption.READ)) {
+            content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        byte[] line = new byte[256];
+        int length = 0;
+        boolean comment = false;
+
+        while (content.hasRemaining()) {
+            byte b = content.get();
+            if(b == '\n') {
+                normalizeLine(line, trimmedLength(line, length), files, digest);
+                digest.update((byte) '\n');
+                length = 0;
+                comment = false;
+            } else if(b == ';') {
+                comment = true;
+            } else if(!comment) {
+                if(length == line.length)
+                    line = Arrays.copyOf(line, length * 2);
+                line[length++] = b;
+            }
+        }
+        normalizeLine(line, trimmedLength(line, length), files, digest);
+    }
+
+    private static void normalizeLine(byte[] line, int length, Deque<Path> files, MessageDigest digest)
+            throws IOException {
+        digest.update(line, 0, length);
+
+        String name = includedFile(line, length);
+        if(name == null)
+            return;
+
+        Path path;
+        try {
+            path = files.peek().resolveSibling(name).normalize();
+        } catch (InvalidPathException e) {
+            return;
+        }
+        // the assembler reports cycles and missing files, the key only has to differ
+        if(files.contains(path) || !Files.isRegularFile(path)) {
+            digest.update((byte) 0);
+            return;
+        }
+
+        digest.update((byte) '{');
+        files.push(path);
+        try {
+            normalize(files, digest);
+        } finally {
+            files.pop();
+        }
+        digest.update((byte) '}');
+    }
+
+    /**
+     * @return the files the source includes directly or through other includes,
+     * including files that do not exist (yet)
+     */
+    public static Set<Path> includes(Path source) throws IOException {
+        Set<Path> found = new LinkedHashSet<>();
+        Deque<Path> files = new ArrayDeque<>();
+        files.push(source.toAbsolutePath().normalize());
+        collectIncludes(files, found);
+        return found;
+    }
+
+    private static void collectIncludes(Deque<Path> files, Set<Path> found) throws IOException {
+        for (String text : MappedSourceReader.readAllLines(files.peek())) {
+            int comment = text.indexOf(';');
+            byte[] line = (comment < 0 ? text : text.substring(0, comment)).strip().getBytes(StandardCharsets.UTF_8);
+            String name = includedFile(line, line.length);
+            if(name == null)
+                continue;
+
+            Path path;
+            try {
+                path = files.peek().resolveSibling(name).normalize();
+            } catch (InvalidPathException e) {
+                continue;
+            }
+            if(files.contains(path) || !found.add(path) || !Files.isRegularFile(path))
+                continue;
+
+            files.push(path);
+            try {
+                collectIncludes(files, found);
+            } finally {
+                files.pop();
+            }
+        }
+    }
+
+    /**
+     * @return the file name of an INCLUDE line, which may start with a label, or null
+     */
+    private static String includedFile(byte[] line, int length) {
+        int pos = 0;
+        while (pos < length && line[pos] != ':' && line[pos] != '"') {
+            pos++;
+        }
+        pos = pos < length && line[pos] == ':' ? pos + 1 : 0;
+        while (pos < length && isWhitespace(line[pos])) {
+            pos++;
+        }
+
+        byte[] keyword = Mnemonic.INCLUDE.name.getBytes(StandardCharsets.US_ASCII);
+        if(length - pos <= keyword.length || !isWhitespace(line[pos + keyword.length]))
+            return null;
+        for (int i = 0; i < keyword.length; i++) {
+            if(line[pos + i] != keyword[i])
+                return null;
+        }
+        pos += keyword.length;
+        while (pos < length && isWhitespace(line[pos])) {
+            pos++;
+        }
+
+        if(length - pos < 2 || line[pos] != '"' || line[length - 1] != '"')
+            return null;
+        return new String(line, pos + 1, length - pos - 2, StandardCharsets.UTF_8);
+    }
+
+    private static int trimmedLength(byte[] line, int length) {
+        while (length > 0 && isWhitespace(line[length - 1])) {
+            length--;
+        }
+        return length;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path entryPath(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + ENTRY_EXTENSION);
+    }
+
+    private List<Path> entries() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(ENTRY_EXTENSION))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean contentEquals(Path output, AssemblyResult result) {
+        try {
+            return Files.size(output) == result.size()
+                    && Arrays.equals(Files.readAllBytes(output), result.program());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+}
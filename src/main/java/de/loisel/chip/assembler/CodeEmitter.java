@@ -0,0 +1,193 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fixed capacity output buffer for the assembled program.
+ * Backed by a primitive array covering Lo-Chip's whole address space,
+ * so emitting a byte never allocates.
+ * The buffer only grows beyond its capacity if a limit is set,
+ * for programs that shrink before they have to fit.
+ */
+public class CodeEmitter {
+
+    /**
+     * size of Lo-Chip's address space
+     */
+    public static final int CAPACITY = 0x10000;
+
+    private byte[] buffer;
+
+    private final int capacity;
+
+    /**
+     * number of bytes that are kept, at least the capacity
+     */
+    private int limit;
+
+    private int position;
+
+    private boolean overflow;
+
+    public CodeEmitter() {
+        this(CAPACITY);
+    }
+
+    public CodeEmitter(int capacity) {
+        this.buffer = new byte[capacity];
+        this.capacity = capacity;
+        this.limit = capacity;
+    }
+
+    /**
+     * appends the lower 8 bits of the value.
+     * Bytes beyond the limit are dropped and mark the emitter as overflowed.
+     */
+    public void emit(int value) {
+        if(position < buffer.length) {
+            buffer[position] = (byte) value;
+        } else {
+            grow(value);
+        }
+        position++;
+    }
+
+    private void grow(int value) {
+        if(position < limit) {
+            buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 2L, limit));
+            buffer[position] = (byte) value;
+        } else {
+            overflow = true;
+        }
+    }
+
+    /**
+     * keeps up to {@code limit} bytes until the next {@link #reset()}.
+     * Use {@link #fits()} to find out if the program fits into the capacity.
+     */
+    public void setLimit(int limit) {
+        this.limit = Math.max(limit, capacity);
+    }
+
+    /**
+     * appends the lower 16 bits of the value, high byte first
+     */
+    public void emitWord(int value) {
+        emit(value >>> 8);
+        emit(value);
+    }
+
+    /**
+     * overwrites an already emitted byte
+     */
+    public void patch(int location, int value) {
+        if(location >= 0 && location < Math.min(position, buffer.length))
+            buffer[location] = (byte) value;
+    }
+
+    /**
+     * overwrites two already emitted bytes, high byte first
+     */
+    public void patchWord(int location, int value) {
+        patch(location, value >>> 8);
+        patch(location + 1, value);
+    }
+
+    /**
+     * address of the next emitted byte
+     */
+    public int position() {
+        return position;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return true if more bytes were emitted than the emitter keeps
+     */
+    public boolean overflowed() {
+        return overflow;
+    }
+
+    /**
+     * @return true if the program fits into the capacity
+     */
+    public boolean fits() {
+        return position <= capacity;
+    }
+
+    /**
+     * drops every byte beyond the capacity
+     */
+    public void truncate() {
+        if(position > capacity) {
+            position = capacity;
+            overflow = true;
+        }
+    }
+
+    public void reset() {
+        position = 0;
+        overflow = false;
+        limit = capacity;
+        if(buffer.length > capacity)
+            buffer = new byte[capacity];
+    }
+
+    /**
+     * @return number of valid bytes in the buffer
+     */
+    public int size() {
+        return Math.min(position, buffer.length);
+    }
+
+    /**
+     * copies the emitted bytes into an array
+     */
+    public void copyTo(byte[] destination, int offset) {
+        System.arraycopy(buffer, 0, destination, offset, size());
+    }
+
+    /**
+     * @return a read only view on the emitted bytes without copying them
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(buffer, 0, size()).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a copy of the emitted bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size());
+    }
+
+    /**
+     * writes the emitted bytes straight from the buffer
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size());
+    }
+
+}
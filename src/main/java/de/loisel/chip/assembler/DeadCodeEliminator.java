@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.util.Arrays;
+
+/**
+ * Strips the labelled blocks of a program that can not be reached.
+ * A block runs from one label to the next. Starting with the block of the
+ * entry point, a block is kept if a kept block references one of its labels,
+ * jumps or calls into it, points I at it with LD I or falls through into it.
+ * The conditional jumps go to the address in I, so they are covered by LD I.
+ * Data is kept along with the label in front of it, a routine that reads
+ * past the end of that block has to reference the next label as well.
+ */
+final class DeadCodeEliminator {
+
+    private DeadCodeEliminator() {
+    }
+
+    /**
+     * removes the instructions and data of every block that can not be reached
+     * @param code decoded program
+     * @return number of bytes removed
+     */
+    static int strip(InstructionList code, AssemblyContext context) {
+        SymbolTable symbols = context.symbols;
+        if(code.size() == 0 || context.entry < 0)
+            return 0;
+
+        // every label starts a block, so does the first instruction
+        int[] starts = new int[symbols.size() + 1];
+        int blockCount = 0;
+        starts[blockCount++] = code.address(0);
+        for (int id = 0; id < symbols.size(); id++) {
+            if(symbols.isDefined(id) && !symbols.isConstant(id)
+                    && targetBlock(code, starts, 1, symbols.address(id)) >= 0)
+                starts[blockCount++] = symbols.address(id);
+        }
+        Arrays.sort(starts, 0, blockCount);
+        int unique = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if(unique == 0 || starts[unique - 1] != starts[i])
+                starts[unique++] = starts[i];
+        }
+        blockCount = unique;
+
+        // references between blocks as pairs of (block, address)
+        int[] edges = new int[64];
+        int edgeCount = 0;
+        for (int i = 0; i < symbols.fixupCount(); i++) {
+            edges = add(edges, edgeCount++, block(starts, blockCount, symbols.fixupLocation(i)),
+                    symbols.address(symbols.fixupId(i)));
+        }
+        for (Expression.Fixup fixup : symbols.expressionFixups()) {
+            for (int i = 0; i < fixup.expression.symbolCount(); i++) {
+                int id = symbols.find(fixup.expression.symbol(i));
+                if(id >= 0 && !symbols.isConstant(id))
+                    edges = add(edges, edgeCount++, block(starts, blockCount, fixup.location), symbols.address(id));
+            }
+        }
+        for (int op = 0; op < code.size(); op++) {
+            Instruction instruction = code.instruction(op);
+            for (int i = 0; instruction != null && i < instruction.operands.length; i++) {
+                if(instruction.operands[i] == Instruction.Operand.ADDRESS && !code.isLabel(op, i)
+                        && !code.isExpression(op, i))
+                    edges = add(edges, edgeCount++, block(starts, blockCount, code.address(op)), code.value(op, i));
+            }
+        }
+
+        // group the referenced blocks by the block that references them
+        int[] offsets = new int[blockCount + 1];
+        for (int i = 0; i < edgeCount; i++) {
+            offsets[edges[2 * i] + 1]++;
+        }
+        for (int block = 0; block < blockCount; block++) {
+            offsets[block + 1] += offsets[block];
+        }
+        int[] targets = new int[edgeCount];
+        int[] next = Arrays.copyOf(offsets, blockCount);
+        for (int i = 0; i < edgeCount; i++) {
+            targets[next[edges[2 * i]]++] = targetBlock(code, starts, blockCount, edges[2 * i + 1]);
+        }
+
+        // walk the blocks from the entry point
+        boolean[] kept = new boolean[blockCount];
+        int[] pending = new int[blockCount];
+        int pendingCount = 0;
+        int first = block(starts, blockCount, context.entry);
+        kept[first] = true;
+        pending[pendingCount++] = first;
+        while (pendingCount > 0) {
+            int block = pending[--pendingCount];
+            for (int i = offsets[block]; i < offsets[block + 1]; i++) {
+                int target = targets[i];
+                if(target >= 0 && !kept[target]) {
+                    kept[target] = true;
+                    pending[pendingCount++] = target;
+                }
+            }
+            if(block + 1 < blockCount && !kept[block + 1] && fallsThrough(code, starts[block + 1])) {
+                kept[block + 1] = true;
+                pending[pendingCount++] = block + 1;
+            }
+        }
+
+        int removed = 0;
+        for (int op = 0; op < code.size(); op++) {
+            if(!kept[block(starts, blockCount, code.address(op))] && !code.isRemoved(op)) {
+                code.remove(op);
+                removed += code.length(op);
+            }
+        }
+        return removed;
+    }
+
+    private static int[] add(int[] edges, int index, int block, int address) {
+        if(2 * index + 2 > edges.length)
+            edges = Arrays.copyOf(edges, edges.length * 2);
+        edges[2 * index] = block;
+        edges[2 * index + 1] = address;
+        return edges;
+    }
+
+    /**
+     * @return the block that contains the address
+     */
+    private static int block(int[] starts, int blockCount, int address) {
+        int block = Arrays.binarySearch(starts, 0, blockCount, address);
+        return block >= 0 ? block : Math.max(-block - 2, 0);
+    }
+
+    /**
+     * @return the block a reference leads into, -1 if it points outside of the program
+     */
+    private static int targetBlock(InstructionList code, int[] starts, int blockCount, int address) {
+        int op = code.indexOf(address);
+        return op < 0 || op == code.size() ? -1 : block(starts, blockCount, address);
+    }
+
+    /**
+     * @return true if the code in front of the address may run into it
+     */
+    private static boolean fallsThrough(InstructionList code, int address) {
+        int op = code.indexOf(address) - 1;
+        Instruction last = code.instruction(op);
+        if(last == null)
+            return false;
+        switch (last.mnemonic) {
+            case RET:
+            case EXIT:
+                return false;
+            case JP:
+                // JP I, F only jumps if the flag is set
+                return last.operands[0] == Instruction.Operand.I;
+            default:
+                return true;
+        }
+    }
+
+}
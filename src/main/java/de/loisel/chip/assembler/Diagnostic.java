@@ -0,0 +1,221 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A problem found while assembling.
+ * The message is formatted from the template of its {@link DiagnosticCode}
+ * the first time it is needed, so runs that only count errors never format one.
+ */
+public class Diagnostic {
+
+    public enum Severity {
+        WARNING, ERROR
+    }
+
+    /**
+     * how diagnostics are rendered for people or tools
+     */
+    public enum Format {
+        /**
+         * one message per line, prefixed with the included file it was found in
+         */
+        TEXT,
+        /**
+         * one JSON object per line
+         */
+        JSON;
+
+        /**
+         * @return the format with the name in any case or null
+         */
+        public static Format of(String name) {
+            for (Format format : values()) {
+                if(format.name().equalsIgnoreCase(name))
+                    return format;
+            }
+            return null;
+        }
+
+        /**
+         * @return the diagnostics, each followed by a line break
+         */
+        public String render(List<Diagnostic> diagnostics) {
+            StringBuilder out = new StringBuilder(diagnostics.size() * 80);
+            for (Diagnostic diagnostic : diagnostics) {
+                append(out, null, diagnostic);
+                out.append(System.lineSeparator());
+            }
+            return out.toString();
+        }
+
+        /**
+         * appends a diagnostic without a line break
+         * @param file file that was assembled, only rendered as JSON, or null
+         */
+        public void append(StringBuilder out, String file, Diagnostic diagnostic) {
+            if(this == TEXT) {
+                out.append(diagnostic);
+                return;
+            }
+
+            out.append('{');
+            if(file != null)
+                appendString(out.append("\"file\":"), file).append(',');
+            out.append("\"severity\":\"").append(diagnostic.severity.name().toLowerCase(Locale.ROOT))
+                    .append("\",\"code\":\"").append(diagnostic.code.name()).append("\",\"source\":");
+            if(diagnostic.source == null)
+                out.append("null");
+            else
+                appendString(out, diagnostic.source);
+            out.append(",\"line\":").append(diagnostic.line).append(",\"column\":").append(diagnostic.column)
+                    .append(",\"message\":");
+            appendString(out, diagnostic.message()).append('}');
+        }
+
+        private static StringBuilder appendString(StringBuilder out, String text) {
+            out.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '"': out.append("\\\""); break;
+                    case '\\': out.append("\\\\"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\t': out.append("\\t"); break;
+                    default:
+                        if(c < 0x20)
+                            out.append(String.format("\\u%04x", (int) c));
+                        else
+                            out.append(c);
+                }
+            }
+            return out.append('"');
+        }
+    }
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    public final Severity severity;
+
+    public final DiagnosticCode code;
+
+    /**
+     * included file the problem was found in, null for the assembled source itself
+     */
+    public final String source;
+
+    /**
+     * line in asm file, 0 if the problem is not bound to a line
+     */
+    public final int line;
+
+    /**
+     * column in the line starting at 1, 0 if the problem is not bound to a column
+     */
+    public final int column;
+
+    /**
+     * values for the template of the code, they have to be immutable
+     */
+    private final Object[] args;
+
+    /**
+     * formatted message, null until it is needed
+     */
+    private String message;
+
+    public Diagnostic(Severity severity, int line, String message) {
+        this(severity, null, line, message);
+    }
+
+    public Diagnostic(Severity severity, String source, int line, String message) {
+        this(severity, DiagnosticCode.MESSAGE, source, line, 0, NO_ARGS);
+        this.message = message;
+    }
+
+    /**
+     * @param args values for the template of the code, they have to be immutable
+     */
+    public Diagnostic(DiagnosticCode code, String source, int line, int column, Object... args) {
+        this(code.severity, code, source, line, column, args);
+    }
+
+    private Diagnostic(Severity severity, DiagnosticCode code, String source, int line, int column, Object[] args) {
+        this.severity = severity;
+        this.code = code;
+        this.source = source;
+        this.line = line;
+        this.column = column;
+        this.args = args;
+    }
+
+    public String message() {
+        String formatted = message;
+        if(formatted == null) {
+            formatted = String.format(Locale.ROOT, code.template, args);
+            message = formatted;
+        }
+        return formatted;
+    }
+
+    public boolean isError() {
+        return severity == Severity.ERROR;
+    }
+
+    /**
+     * writes the diagnostic with its formatted message for {@link #readFrom(DataInput)}
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(severity.ordinal());
+        out.writeUTF(code.name());
+        out.writeBoolean(source != null);
+        if(source != null)
+            out.writeUTF(source);
+        out.writeInt(line);
+        out.writeInt(column);
+        out.writeUTF(message());
+    }
+
+    public static Diagnostic readFrom(DataInput in) throws IOException {
+        Severity severity = Severity.values()[in.readByte()];
+        DiagnosticCode code;
+        try {
+            code = DiagnosticCode.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown diagnostic code", e);
+        }
+        String source = in.readBoolean() ? in.readUTF() : null;
+        int line = in.readInt();
+        int column = in.readInt();
+        Diagnostic diagnostic = new Diagnostic(severity, code, source, line, column, NO_ARGS);
+        diagnostic.message = in.readUTF();
+        return diagnostic;
+    }
+
+    @Override
+    public String toString() {
+        return source == null ? message() : source + ": " + message();
+    }
+
+}
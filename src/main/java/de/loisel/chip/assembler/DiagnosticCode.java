@@ -0,0 +1,91 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+/**
+ * Every kind of problem the assembler, linker and disassembler report.
+ * The name of a code is stable, so tools can match it instead of the message.
+ * Messages are formatted from the template only when they are rendered.
+ */
+public enum DiagnosticCode {
+
+    /**
+     * message without a code of its own
+     */
+    MESSAGE(Diagnostic.Severity.ERROR, "%s"),
+
+    READ_FAILED(Diagnostic.Severity.ERROR, "Could not read \"%s\": %s"),
+    ASSEMBLY_FAILED(Diagnostic.Severity.ERROR, "Could not assemble the file: %s"),
+    WRITE_FAILED(Diagnostic.Severity.ERROR, "Could not write \"%s\": %s"),
+    TOO_LARGE(Diagnostic.Severity.ERROR, "Error: the assembled binary is too large to fit in Lo-Chip's memory."),
+    TOO_LARGE_DISRUPTED(Diagnostic.Severity.ERROR,
+            "Error: the assembled binary is too large to fit in Lo-Chip's memory.\nAssembling was disrupted!."),
+    TOO_MANY_ERRORS(Diagnostic.Severity.ERROR, "Assembling was stopped after %d errors."),
+
+    UNKNOWN_COMMAND(Diagnostic.Severity.ERROR, "The command \"%s\" at line %d was not found and ignored."),
+    NOT_IMPLEMENTED(Diagnostic.Severity.WARNING, "Command \"%s\" at line %d is not implemented and was ignored"),
+    MISSING_ARGS(Diagnostic.Severity.ERROR, "Missing args for command \"%s\" in line: %d"),
+    WRONG_ARGS(Diagnostic.Severity.ERROR, "Wrong args for command \"%s\" in line %d."),
+    UNEXPECTED_ARGS(Diagnostic.Severity.ERROR, "Unexpected arguments \"%s\" at line %d."),
+    INVALID_HEX(Diagnostic.Severity.ERROR, "Could not parse hex value \"%s\" at line%d."),
+    INVALID_EXPRESSION(Diagnostic.Severity.ERROR, "Invalid expression \"%s\" at line %d."),
+    DIVISION_BY_ZERO(Diagnostic.Severity.ERROR, "Division by zero in \"%s\" at line %d."),
+    OUT_OF_RANGE(Diagnostic.Severity.ERROR, "Value \"%s\" at line %d is out of range."),
+
+    SYMBOL_DEFINED(Diagnostic.Severity.ERROR, "Symbol \"%s\" at line %d is already defined."),
+    CONSTANT_NOT_KNOWN(Diagnostic.Severity.ERROR,
+            "Value \"%s\" of constant \"%s\" at line %d has to be known when it is defined."),
+    LABEL_NOT_FOUND(Diagnostic.Severity.ERROR, "Label \"%s\" at line %d was not found."),
+
+    INVALID_FILE_NAME(Diagnostic.Severity.ERROR, "Invalid file name \"%s\" at line %d."),
+    INCLUDE_CYCLE(Diagnostic.Severity.ERROR, "Include cycle at line %d: %s."),
+    INCLUDE_FAILED(Diagnostic.Severity.ERROR, "Could not include \"%s\" at line %d: %s"),
+
+    MACRO_WITHOUT_ENDM(Diagnostic.Severity.ERROR, "Macro \"%s\" at line %d has no ENDM."),
+    ENDM_WITHOUT_MACRO(Diagnostic.Severity.ERROR, "\"ENDM\" at line %d has no MACRO."),
+    NESTED_MACRO(Diagnostic.Severity.ERROR, "\"MACRO\" at line %d is inside of macro \"%s\"."),
+    MACRO_IS_COMMAND(Diagnostic.Severity.ERROR, "Macro \"%s\" at line %d has the name of a command."),
+    MACRO_DEFINED(Diagnostic.Severity.ERROR, "Macro \"%s\" at line %d is already defined."),
+    MACRO_ARGS(Diagnostic.Severity.ERROR, "Macro \"%s\" at line %d takes %d args."),
+    MACRO_TOO_DEEP(Diagnostic.Severity.ERROR, "Macro \"%s\" at line %d is nested too deep."),
+
+    ADDRESS_MOVED(Diagnostic.Severity.WARNING,
+            "Address $%04X at line %d points to code that was moved by the optimizer."),
+
+    AMBIGUOUS_IMPORT(Diagnostic.Severity.ERROR,
+            "Label \"%s\" used in module %s is defined in module %s and in module %s."),
+    LINKED_TOO_LARGE(Diagnostic.Severity.ERROR, "Error: the linked binary is too large to fit in Lo-Chip's memory."),
+    IMPORT_NOT_FOUND(Diagnostic.Severity.ERROR, "Label \"%s\" used in module %s was not found."),
+    MODULE_OUT_OF_RANGE(Diagnostic.Severity.ERROR, "Value \"%s\" used in module %s is out of range."),
+    MODULE_DIVISION_BY_ZERO(Diagnostic.Severity.ERROR, "Division by zero in \"%s\" used in module %s."),
+
+    BINARY_READ_FAILED(Diagnostic.Severity.ERROR, "Could not read the binary: %s"),
+    VERIFY_FAILED(Diagnostic.Severity.ERROR, "Could not verify the binary: %s");
+
+    public final Diagnostic.Severity severity;
+
+    /**
+     * {@link String#format} template of the message
+     */
+    public final String template;
+
+    DiagnosticCode(Diagnostic.Severity severity, String template) {
+        this.severity = severity;
+        this.template = template;
+    }
+
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Turns Lo-Chip binaries back into source that assembles to the same bytes.
+ * Opcodes are decoded with the {@link InstructionSet} the assembler encodes
+ * with. Code is found by following the control flow from the reset vector,
+ * everything that is never reached is written as DB. Conditional jumps go to
+ * the address in I, so their targets are only known if I was loaded with
+ * "LD I, addr" earlier in the same block. The entries of a "JP Rx, table"
+ * jump table are followed as long as they are "JP addr".
+ * Instructions in front of the reset vector are written as DB as well,
+ * because the assembler starts the program at its first instruction.
+ */
+public class Disassembler {
+
+    private static final String BINARY_EXTENSION = ".bin";
+
+    /**
+     * bytes in front of the program that hold the reset vector
+     */
+    private static final int HEADER_SIZE = 2;
+
+    private static final int BYTES_PER_DB = 8;
+
+    private static final int COMMENT_COLUMN = 24;
+
+    // flags of an address
+    private static final byte START = 1;
+    private static final byte BODY = 2;
+    private static final byte REFERENCED = 4;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * outcome of a round trip of one binary
+     */
+    public static class Verification {
+
+        /**
+         * null if the binary was not read from a file
+         */
+        public final Path file;
+
+        public final int size;
+
+        /**
+         * first offset at which the reassembled binary differs or -1
+         */
+        public final int mismatch;
+
+        /**
+         * diagnostics of the reassembly
+         */
+        public final List<Diagnostic> diagnostics;
+
+        public final long nanos;
+
+        Verification(Path file, int size, int mismatch, List<Diagnostic> diagnostics, long nanos) {
+            this.file = file;
+            this.size = size;
+            this.mismatch = mismatch;
+            this.diagnostics = diagnostics;
+            this.nanos = nanos;
+        }
+
+        public boolean failed() {
+            return mismatch >= 0 || diagnostics.stream().anyMatch(Diagnostic::isError);
+        }
+    }
+
+    private final InstructionSet instructions;
+
+    private final Assembler assembler;
+
+    public Disassembler() {
+        this(InstructionSet.loChip());
+    }
+
+    public Disassembler(InstructionSet instructions) {
+        this.instructions = instructions;
+        this.assembler = new Assembler(instructions);
+    }
+
+    /**
+     * @return the listing of a binary file, which is mapped into memory instead of read
+     */
+    public List<String> disassemble(Path binary) throws IOException {
+        return disassemble(map(binary), Map.of());
+    }
+
+    /**
+     * @param image the binary from its position to its limit, starting with the reset vector
+     * @param symbols names for the addresses that get a label, may be empty
+     * @return the listing, one source line per entry
+     */
+    public List<String> disassemble(ByteBuffer image, Map<String, Integer> symbols) {
+        ByteBuffer code = image.slice();
+        int size = code.limit();
+        byte[] flags = new byte[size + 1];
+        int entry = size >= HEADER_SIZE ? word(code, 0) : -1;
+
+        int[] work = new int[16];
+        int pending = 0;
+        work[pending++] = entry;
+        while (pending > 0) {
+            int[] targets = trace(code, work[--pending], flags);
+            for (int target : targets) {
+                if(pending == work.length)
+                    work = Arrays.copyOf(work, pending * 2);
+                work[pending++] = target;
+            }
+        }
+
+        Map<Integer, String> names = new HashMap<>();
+        for (Map.Entry<String, Integer> symbol : symbols.entrySet()) {
+            names.merge(symbol.getValue(), symbol.getKey(), (a, b) -> a.compareTo(b) <= 0 ? a : b);
+        }
+
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder(64);
+        line.append("; ").append(size).append(" bytes, reset vector ");
+        if(entry >= 0)
+            appendHex(line.append('$'), entry, 4);
+        else
+            line.append("missing");
+        lines.add(line.toString());
+
+        int address = HEADER_SIZE;
+        while (address <= size) {
+            if(isLabel(flags, address))
+                lines.add(label(names, address) + ":");
+            if(address == size)
+                break;
+
+            line.setLength(0);
+            line.append('\t');
+            Instruction instruction = (flags[address] & START) != 0 ? instructions.decode(code.get(address)) : null;
+            int length;
+            if(instruction != null && address >= entry) {
+                appendInstruction(line, code, address, instruction, flags, names);
+                length = instruction.size;
+            } else if(instruction != null) {
+                // in front of the reset vector
+                appendData(line, code, address, instruction.size);
+                appendComment(line, address);
+                line.append(' ');
+                appendInstruction(line, code, address, instruction, flags, names);
+                lines.add(line.toString());
+                address += instruction.size;
+                continue;
+            } else {
+                length = 1;
+                while (length < BYTES_PER_DB && address + length < size
+                        && (flags[address + length] & START) == 0 && !isLabel(flags, address + length)) {
+                    length++;
+                }
+                appendData(line, code, address, length);
+            }
+            appendComment(line, address);
+            lines.add(line.toString());
+            address += length;
+        }
+        return lines;
+    }
+
+    /**
+     * decodes the block starting at an address until the control flow leaves it
+     * @return addresses the block may continue at
+     */
+    private int[] trace(ByteBuffer code, int address, byte[] flags) {
+        int size = code.limit();
+        int[] targets = new int[0];
+        int knownI = -1;
+
+        while (address >= HEADER_SIZE && address < size && (flags[address] & (START | BODY)) == 0) {
+            Instruction instruction = instructions.decode(code.get(address));
+            if(instruction == null || address + instruction.size > size || overlapsCode(flags, address, instruction))
+                break;
+
+            flags[address] |= START;
+            for (int i = 1; i < instruction.size; i++) {
+                flags[address + i] |= BODY;
+            }
+
+            int target = addressOperand(code, address, instruction);
+            if(target >= 0 && target < flags.length)
+                flags[target] |= REFERENCED;
+
+            Mnemonic mnemonic = instruction.mnemonic;
+            Instruction.Operand first = instruction.operands.length > 0 ? instruction.operands[0] : null;
+            if(mnemonic == Mnemonic.RET || mnemonic == Mnemonic.EXIT)
+                break;
+            if(mnemonic == Mnemonic.JP && first == Instruction.Operand.ADDRESS) {
+                targets = append(targets, target);
+                break;
+            }
+            if(mnemonic == Mnemonic.JP && target >= 0) {
+                // JP Rx, table
+                targets = append(targets, target);
+                for (int entry = target; entry < size && isJump(instructions.decode(code.get(entry)));
+                     entry += instructions.decode(code.get(entry)).size) {
+                    targets = append(targets, entry);
+                }
+                break;
+            }
+
+            if(mnemonic == Mnemonic.CALL) {
+                targets = append(targets, target);
+            } else if(isConditional(instruction)) {
+                if(knownI >= 0)
+                    targets = append(targets, knownI);
+            } else if(first == Instruction.Operand.I && mnemonic == Mnemonic.LD && target >= 0) {
+                knownI = target;
+            } else if(first == Instruction.Operand.I && (mnemonic == Mnemonic.ADD
+                    || instruction.operands[1] == Instruction.Operand.RXRY)) {
+                knownI = -1;
+            }
+            address += instruction.size;
+        }
+        return targets;
+    }
+
+    /**
+     * @return true for jumps that go to I or continue with the next instruction
+     */
+    private static boolean isConditional(Instruction instruction) {
+        switch (instruction.mnemonic) {
+            case JE:
+            case JNE:
+            case JKP:
+            case JKNP:
+                return true;
+            case JP:
+                return instruction.operands[0] == Instruction.Operand.I;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isJump(Instruction instruction) {
+        return instruction != null && instruction.mnemonic == Mnemonic.JP
+                && instruction.operands[0] == Instruction.Operand.ADDRESS;
+    }
+
+    private static boolean overlapsCode(byte[] flags, int address, Instruction instruction) {
+        for (int i = 1; i < instruction.size; i++) {
+            if((flags[address + i] & (START | BODY)) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the value of the instruction's address operand or -1 if it has none
+     */
+    private static int addressOperand(ByteBuffer code, int address, Instruction instruction) {
+        int offset = address + 1;
+        for (Instruction.Operand operand : instruction.operands) {
+            if(operand == Instruction.Operand.ADDRESS)
+                return word(code, offset);
+            offset += operand.size;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if a label can be put in front of the line at the address
+     */
+    private static boolean isLabel(byte[] flags, int address) {
+        return address >= HEADER_SIZE && (flags[address] & REFERENCED) != 0 && (flags[address] & BODY) == 0;
+    }
+
+    private static String label(Map<Integer, String> names, int address) {
+        String name = names.get(address);
+        if(name != null)
+            return name;
+        return appendHex(new StringBuilder("L_"), address, 4).toString();
+    }
+
+    private static void appendInstruction(StringBuilder line, ByteBuffer code, int address,
+                                          Instruction instruction, byte[] flags, Map<Integer, String> names) {
+        line.append(instruction.mnemonic.name);
+        int offset = address + 1;
+        for (int i = 0; i < instruction.operands.length; i++) {
+            Instruction.Operand operand = instruction.operands[i];
+            line.append(i == 0 ? " " : ", ");
+            if(operand.size == 0) {
+                line.append(operand.kind.keyword);
+            } else if(operand.size == 1) {
+                appendHex(line.append('$'), code.get(offset) & 0xFF, 2);
+            } else {
+                int value = word(code, offset);
+                if(operand == Instruction.Operand.ADDRESS && value < flags.length && isLabel(flags, value))
+                    line.append(label(names, value));
+                else
+                    appendHex(line.append('$'), value, 4);
+            }
+            offset += operand.size;
+        }
+    }
+
+    private static void appendData(StringBuilder line, ByteBuffer code, int address, int length) {
+        line.append(Mnemonic.DB.name);
+        for (int i = 0; i < length; i++) {
+            line.append(i == 0 ? " $" : ", $");
+            appendHex(line, code.get(address + i) & 0xFF, 2);
+        }
+    }
+
+    private static void appendComment(StringBuilder line, int address) {
+        do {
+            line.append(' ');
+        } while (line.length() < COMMENT_COLUMN);
+        appendHex(line.append("; $"), address, 4);
+    }
+
+    private static StringBuilder appendHex(StringBuilder sb, int value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            sb.append(HEX[(value >>> shift) & 0xF]);
+        }
+        return sb;
+    }
+
+    private static int word(ByteBuffer code, int offset) {
+        return ((code.get(offset) & 0xFF) << 8) | (code.get(offset + 1) & 0xFF);
+    }
+
+    private static int[] append(int[] values, int value) {
+        if(value < 0)
+            return values;
+        int[] copy = Arrays.copyOf(values, values.length + 1);
+        copy[values.length] = value;
+        return copy;
+    }
+
+    /**
+     * disassembles and reassembles a binary and compares the result with the original
+     */
+    public Verification verify(ByteBuffer image) {
+        long start = System.nanoTime();
+        ByteBuffer original = image.slice();
+        AssemblyResult result = assembler.assemble(disassemble(original, Map.of()));
+
+        byte[] program = result.program();
+        int mismatch = -1;
+        int length = Math.min(program.length, original.limit());
+        for (int i = 0; i < length && mismatch < 0; i++) {
+            if(program[i] != original.get(i))
+                mismatch = i;
+        }
+        if(mismatch < 0 && program.length != original.limit())
+            mismatch = length;
+        return new Verification(null, original.limit(), mismatch, result.diagnostics(), System.nanoTime() - start);
+    }
+
+    public Verification verify(Path binary) {
+        long start = System.nanoTime();
+        try {
+            Verification verification = verify(map(binary));
+            return new Verification(binary, verification.size, verification.mismatch,
+                    verification.diagnostics, System.nanoTime() - start);
+        } catch (IOException e) {
+            return new Verification(binary, 0, -1, List.of(new Diagnostic(DiagnosticCode.BINARY_READ_FAILED,
+                    binary.toString(), 0, 0, e.getMessage())), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * verifies many binaries on a pool of worker threads
+     * @return one verification per binary in the order of the binaries
+     */
+    public List<Verification> verifyAll(List<Path> binaries, int parallelism) {
+        List<Callable<Verification>> tasks = new ArrayList<>(binaries.size());
+        for (Path binary : binaries) {
+            tasks.add(() -> verify(binary));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Verification> verifications = new ArrayList<>(binaries.size());
+            List<Future<Verification>> futures = pool.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    verifications.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    verifications.add(new Verification(binaries.get(i), 0, -1, List.of(new Diagnostic(
+                            DiagnosticCode.VERIFY_FAILED, binaries.get(i).toString(), 0, 0,
+                            String.valueOf(e.getCause()))), 0));
+                }
+            }
+            return verifications;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Verification was interrupted", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static ByteBuffer map(Path binary) throws IOException {
+        try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * prints the failed binaries and a timing summary
+     * @return number of failed binaries
+     */
+    public static int printSummary(List<Verification> verifications, long wallNanos, PrintStream out) {
+        int failed = 0;
+        for (Verification verification : verifications) {
+            if(verification.failed()) {
+                failed++;
+                out.print("FAILED " + verification.file);
+                if(verification.mismatch >= 0)
+                    out.printf(" differs at $%04X", verification.mismatch);
+                out.println();
+                for (Diagnostic diagnostic : verification.diagnostics) {
+                    out.println("  " + diagnostic);
+                }
+            }
+        }
+
+        double seconds = wallNanos / 1e9;
+        out.printf("Verified %d binaries (%d failed) in %.1f ms, %.0f binaries/s%n",
+                verifications.size(), failed, wallNanos / 1e6,
+                seconds > 0 ? verifications.size() / seconds : 0.0);
+        return failed;
+    }
+
+    /**
+     * disassembler of the command line:
+     * {@code input [output]} writes the listing of a binary to a file or prints it,
+     * {@code --verify [-j threads] <dir | glob | @manifest>...} checks the round trip of many binaries
+     * @return number of binaries that failed
+     */
+    public static int main(List<String> args) throws ArgumentsMissingException, IOException {
+        if(args.isEmpty() || !args.get(0).equals("--verify")) {
+            if(args.isEmpty())
+                throw new ArgumentsMissingException("Input file missing in arguments!");
+            List<String> listing = new Disassembler().disassemble(Path.of(args.get(0)));
+            if(args.size() >= 2)
+                Files.write(Path.of(args.get(1)), listing);
+            else
+                listing.forEach(System.out::println);
+            return 0;
+        }
+
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        List<String> specs = new ArrayList<>();
+        for (int i = 1; i < args.size(); i++) {
+            String arg = args.get(i);
+            if(arg.equals("-j")) {
+                if(i + 1 >= args.size())
+                    throw new ArgumentsMissingException("Missing value for " + arg + "!");
+                parallelism = Integer.parseInt(args.get(++i));
+            } else {
+                specs.add(arg);
+            }
+        }
+
+        if(specs.isEmpty())
+            throw new ArgumentsMissingException("No binary directories, globs or manifests given!");
+
+        long start = System.nanoTime();
+        List<Path> binaries = new ArrayList<>();
+        for (BatchAssembler.Source source : BatchAssembler.collectFiles(specs, BINARY_EXTENSION)) {
+            binaries.add(source.file);
+        }
+        List<Verification> verifications = new Disassembler().verifyAll(binaries, parallelism);
+        return printSummary(verifications, System.nanoTime() - start, System.out);
+    }
+
+}
@@ -0,0 +1,611 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Headless interpreter for Lo-Chip programs as the {@link Assembler} emits them.
+ * The chip has two 8 bit registers Rx and Ry, a flag F, the 16 bit address
+ * register I, a delay and a sound timer, 16 keys, a 64x32 monochrome display
+ * and 64KB of memory. The program is loaded at address 0 and starts at its
+ * reset vector. The conditional jumps JE, JNE, JKP, JKNP and "JP I, F" jump
+ * to the address in I.
+ * Every executed instruction is counted per address together with an
+ * estimate of its cycles: one cycle per byte of the instruction and one per
+ * byte it reads or writes in memory, on the stack or on the display.
+ */
+public class Emulator {
+
+    public static final int WIDTH = 64;
+    public static final int HEIGHT = 32;
+
+    /**
+     * maximum number of nested calls
+     */
+    public static final int STACK_SIZE = 64;
+
+    /**
+     * estimated clock of the chip, the timers count down at 60 Hz of it
+     */
+    public static final int CLOCK_HZ = 500_000;
+
+    private static final int CYCLES_PER_TICK = CLOCK_HZ / 60;
+
+    /**
+     * estimated cycles per opcode, 0 for invalid opcodes
+     */
+    private static final int[] CYCLES = new int[256];
+
+    static {
+        for (Instruction instruction : InstructionSet.loChip().instructions()) {
+            CYCLES[instruction.opcode] = instruction.size;
+        }
+        // memory and stack accesses, drawing adds the rows of the sprite
+        CYCLES[0xEE] += 2;
+        CYCLES[0x20] += 2;
+        CYCLES[0x62] += 1;
+        CYCLES[0x63] += 1;
+        CYCLES[0x64] += 1;
+        CYCLES[0x65] += 1;
+        CYCLES[0xFC] += 3;
+        CYCLES[0xFD] += 2;
+        CYCLES[0xFE] += 2;
+    }
+
+    public enum State {
+        /**
+         * the program can go on, the step limit was reached
+         */
+        RUNNING,
+        EXITED,
+        /**
+         * "LD Rx, K" waits for a key, running again retries it
+         */
+        WAITING_FOR_KEY,
+        /**
+         * the program executed an invalid opcode or over- or underflowed the stack
+         */
+        FAULT
+    }
+
+    /**
+     * executions and cycles of the code behind a label
+     */
+    public static final class HotSpot {
+
+        /**
+         * the label or the address of code in front of the first label
+         */
+        public final String label;
+
+        public final int address;
+
+        public final long executions;
+
+        public final long cycles;
+
+        HotSpot(String label, int address, long executions, long cycles) {
+            this.label = label;
+            this.address = address;
+            this.executions = executions;
+            this.cycles = cycles;
+        }
+
+        @Override
+        public String toString() {
+            return label + ": " + executions + " executions, " + cycles + " cycles";
+        }
+    }
+
+    private final byte[] memory = new byte[CodeEmitter.CAPACITY];
+
+    private final long[] executions = new long[CodeEmitter.CAPACITY];
+    private final long[] cyclesAt = new long[CodeEmitter.CAPACITY];
+
+    /**
+     * one row per long, the leftmost pixel in the highest bit
+     */
+    private final long[] display = new long[HEIGHT];
+
+    private final int[] stack = new int[STACK_SIZE];
+
+    private final boolean[] keys = new boolean[16];
+
+    private final SplittableRandom random;
+
+    private int pc;
+    private int i;
+    private int rx;
+    private int ry;
+    private boolean flag;
+    private int sp;
+    private int delay;
+    private int sound;
+
+    private long steps;
+    private long cycles;
+    private int tickCycles;
+
+    private State state = State.RUNNING;
+
+    private String fault;
+
+    public Emulator() {
+        this(0);
+    }
+
+    /**
+     * @param seed of the random numbers of RND
+     */
+    public Emulator(long seed) {
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * resets the chip and loads a program at address 0
+     */
+    public void load(byte[] program) {
+        if(program.length > memory.length)
+            throw new IllegalArgumentException("The program is " + program.length + " bytes large");
+
+        Arrays.fill(memory, (byte) 0);
+        System.arraycopy(program, 0, memory, 0, program.length);
+        Arrays.fill(executions, 0);
+        Arrays.fill(cyclesAt, 0);
+        Arrays.fill(display, 0);
+        Arrays.fill(keys, false);
+        pc = word(0);
+        i = 0;
+        rx = 0;
+        ry = 0;
+        flag = false;
+        sp = 0;
+        delay = 0;
+        sound = 0;
+        steps = 0;
+        cycles = 0;
+        tickCycles = 0;
+        state = State.RUNNING;
+        fault = null;
+    }
+
+    /**
+     * executes instructions until the program exits, faults or waits for a key
+     * @param maxSteps maximum number of instructions to execute
+     * @return the state afterwards, {@link State#RUNNING} if the limit was reached
+     */
+    public State run(long maxSteps) {
+        if(state == State.WAITING_FOR_KEY)
+            state = State.RUNNING;
+        for (long n = 0; n < maxSteps && state == State.RUNNING; n++) {
+            step();
+        }
+        return state;
+    }
+
+    private void step() {
+        int address = pc;
+        int opcode = memory[address] & 0xFF;
+        int cost = CYCLES[opcode];
+
+        switch (opcode) {
+            case 0xE0:          // CLS
+                Arrays.fill(display, 0);
+                pc = address + 1;
+                break;
+            case 0xEE:          // RET
+                if(sp == 0) {
+                    halt(address, "Return without a call");
+                    return;
+                }
+                pc = stack[--sp];
+                break;
+            case 0x10:          // JP addr
+                pc = word(address + 1);
+                break;
+            case 0x11:          // JP I, F
+                pc = flag ? i : address + 1;
+                break;
+            case 0xB0:          // JP Rx, addr
+                pc = (word(address + 1) + rx) & 0xFFFF;
+                break;
+            case 0x20:          // CALL addr
+                if(sp == STACK_SIZE) {
+                    halt(address, "Stack overflow");
+                    return;
+                }
+                stack[sp++] = (address + 3) & 0xFFFF;
+                pc = word(address + 1);
+                break;
+            case 0x30:          // JE Rx, b1
+                pc = rx == read(address + 1) ? i : address + 2;
+                break;
+            case 0x31:          // JNE Rx, b1
+                pc = rx != read(address + 1) ? i : address + 2;
+                break;
+            case 0x50:          // JE Rx, Ry
+                pc = rx == ry ? i : address + 1;
+                break;
+            case 0x51:          // JNE Rx, Ry
+                pc = rx != ry ? i : address + 1;
+                break;
+            case 0x60:          // LD Rx, b1
+                rx = read(address + 1);
+                pc = address + 2;
+                break;
+            case 0x61:          // LD Ry, b1
+                ry = read(address + 1);
+                pc = address + 2;
+                break;
+            case 0x62:          // LD Rx, I
+                rx = read(i);
+                pc = address + 1;
+                break;
+            case 0x63:          // LD Ry, I
+                ry = read(i);
+                pc = address + 1;
+                break;
+            case 0x64:          // LD I, Rx
+                write(i, rx);
+                pc = address + 1;
+                break;
+            case 0x65:          // LD I, Ry
+                write(i, ry);
+                pc = address + 1;
+                break;
+            case 0x70:          // ADD Rx, b1
+                rx = (rx + read(address + 1)) & 0xFF;
+                pc = address + 2;
+                break;
+            case 0x71:          // ADD Ry, b1
+                ry = (ry + read(address + 1)) & 0xFF;
+                pc = address + 2;
+                break;
+            case 0x80:          // LD Rx, Ry
+                rx = ry;
+                pc = address + 1;
+                break;
+            case 0x81:          // OR Rx, Ry
+                rx |= ry;
+                pc = address + 1;
+                break;
+            case 0x82:          // AND Rx, Ry
+                rx &= ry;
+                pc = address + 1;
+                break;
+            case 0x83:          // XOR Rx, Ry
+                rx ^= ry;
+                pc = address + 1;
+                break;
+            case 0x84:          // ADD Rx, Ry
+                rx += ry;
+                flag = rx > 0xFF;
+                rx &= 0xFF;
+                pc = address + 1;
+                break;
+            case 0x85:          // SUB Rx, Ry
+                flag = rx >= ry;
+                rx = (rx - ry) & 0xFF;
+                pc = address + 1;
+                break;
+            case 0x86:          // SHR Rx, 1
+                flag = (rx & 1) != 0;
+                rx >>>= 1;
+                pc = address + 1;
+                break;
+            case 0x87:          // SUBN Rx, Ry
+                flag = ry >= rx;
+                rx = (ry - rx) & 0xFF;
+                pc = address + 1;
+                break;
+            case 0x8A:          // LD Ry, Rx
+                ry = rx;
+                pc = address + 1;
+                break;
+            case 0x8E:          // SHL Rx, 1
+                flag = (rx & 0x80) != 0;
+                rx = (rx << 1) & 0xFF;
+                pc = address + 1;
+                break;
+            case 0xA0:          // LD I, addr
+                i = word(address + 1);
+                pc = address + 3;
+                break;
+            case 0xA1:          // LD I, RxRy
+                i = rx << 8 | ry;
+                pc = address + 1;
+                break;
+            case 0xAA:          // EXIT
+                state = State.EXITED;
+                break;
+            case 0xC0:          // RND Rx, b1
+                rx = random.nextInt(256) & read(address + 1);
+                pc = address + 2;
+                break;
+            case 0xD0:          // DRW Rx, Ry, b1
+                cost += draw(read(address + 1));
+                pc = address + 2;
+                break;
+            case 0xD1:          // DRW Rx, Ry
+                cost += draw(16);
+                pc = address + 1;
+                break;
+            case 0xE1:          // JKP Rx
+                pc = keys[rx & 0xF] ? i : address + 1;
+                break;
+            case 0xE2:          // JKNP Rx
+                pc = keys[rx & 0xF] ? address + 1 : i;
+                break;
+            case 0xF1:          // LD Rx, DT
+                rx = delay;
+                pc = address + 1;
+                break;
+            case 0xF2:          // LD Rx, K
+                int key = pressedKey();
+                if(key < 0) {
+                    state = State.WAITING_FOR_KEY;
+                    return;
+                }
+                rx = key;
+                pc = address + 1;
+                break;
+            case 0xF3:          // LD DT, Rx
+                delay = rx;
+                pc = address + 1;
+                break;
+            case 0xF4:          // LD ST, Rx
+                sound = rx;
+                pc = address + 1;
+                break;
+            case 0xFA:          // ADD I, Rx
+                i = (i + rx) & 0xFFFF;
+                pc = address + 1;
+                break;
+            case 0xFC:          // LD B, Rx
+                write(i, rx / 100);
+                write(i + 1, rx / 10 % 10);
+                write(i + 2, rx % 10);
+                pc = address + 1;
+                break;
+            case 0xFD:          // LD I, Rx, Ry
+                write(i, rx);
+                write(i + 1, ry);
+                pc = address + 1;
+                break;
+            case 0xFE:          // LD Rx, Ry, I
+                rx = read(i);
+                ry = read(i + 1);
+                pc = address + 1;
+                break;
+            default:
+                halt(address, String.format("Invalid opcode $%02X", opcode));
+                return;
+        }
+
+        pc &= 0xFFFF;
+        steps++;
+        executions[address]++;
+        cyclesAt[address] += cost;
+        cycles += cost;
+        tickCycles += cost;
+        if(tickCycles >= CYCLES_PER_TICK) {
+            tickCycles -= CYCLES_PER_TICK;
+            if(delay > 0)
+                delay--;
+            if(sound > 0)
+                sound--;
+        }
+    }
+
+    private void halt(int address, String reason) {
+        state = State.FAULT;
+        fault = String.format("%s at $%04X.", reason, address);
+    }
+
+    /**
+     * XORs a sprite of one byte per row from I onto the display, wrapping at the edges
+     * @return number of rows drawn
+     */
+    private int draw(int rows) {
+        int x = rx % WIDTH;
+        flag = false;
+        for (int row = 0; row < rows; row++) {
+            long sprite = read(i + row);
+            long pixels = Long.rotateRight(sprite << (WIDTH - 8), x);
+            int y = (ry + row) % HEIGHT;
+            flag |= (display[y] & pixels) != 0;
+            display[y] ^= pixels;
+        }
+        return rows;
+    }
+
+    private int pressedKey() {
+        for (int key = 0; key < keys.length; key++) {
+            if(keys[key])
+                return key;
+        }
+        return -1;
+    }
+
+    private int read(int address) {
+        return memory[address & 0xFFFF] & 0xFF;
+    }
+
+    private void write(int address, int value) {
+        memory[address & 0xFFFF] = (byte) value;
+    }
+
+    private int word(int address) {
+        return read(address) << 8 | read(address + 1);
+    }
+
+    public State state() {
+        return state;
+    }
+
+    /**
+     * @return why the program faulted or null
+     */
+    public String fault() {
+        return fault;
+    }
+
+    public void setKey(int key, boolean pressed) {
+        keys[key] = pressed;
+    }
+
+    public boolean pixel(int x, int y) {
+        return (display[y] << x) < 0;
+    }
+
+    public int memory(int address) {
+        return read(address);
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    public int i() {
+        return i;
+    }
+
+    public int rx() {
+        return rx;
+    }
+
+    public int ry() {
+        return ry;
+    }
+
+    public boolean flag() {
+        return flag;
+    }
+
+    public int delay() {
+        return delay;
+    }
+
+    public int sound() {
+        return sound;
+    }
+
+    /**
+     * @return number of executed instructions
+     */
+    public long steps() {
+        return steps;
+    }
+
+    /**
+     * @return estimated cycles of the executed instructions
+     */
+    public long cycles() {
+        return cycles;
+    }
+
+    /**
+     * @return how often the instruction at the address was executed
+     */
+    public long executions(int address) {
+        return executions[address];
+    }
+
+    /**
+     * @return estimated cycles spent in the instruction at the address
+     */
+    public long cycles(int address) {
+        return cyclesAt[address];
+    }
+
+    /**
+     * sums the executions and cycles up per label, code belongs to the label in front of it
+     * @param symbols labels of the program by name
+     * @return the labels whose code was executed, the most cycles first
+     */
+    public List<HotSpot> hotSpots(Map<String, Integer> symbols) {
+        List<Map.Entry<String, Integer>> labels = new ArrayList<>(symbols.entrySet());
+        labels.sort(Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+        int[] starts = new int[labels.size()];
+        for (int n = 0; n < starts.length; n++) {
+            starts[n] = labels.get(n).getValue();
+        }
+
+        // index 0 collects the code in front of the first label
+        long[] labelExecutions = new long[labels.size() + 1];
+        long[] labelCycles = new long[labels.size() + 1];
+        int lowest = Integer.MAX_VALUE;
+        for (int address = 0; address < executions.length; address++) {
+            if(executions[address] == 0)
+                continue;
+            int label = Arrays.binarySearch(starts, address);
+            // several labels at one address share the code with the last of them
+            label = label >= 0 ? lastAt(starts, label) + 1 : -label - 1;
+            labelExecutions[label] += executions[address];
+            labelCycles[label] += cyclesAt[address];
+            if(label == 0)
+                lowest = Math.min(lowest, address);
+        }
+
+        List<HotSpot> hotSpots = new ArrayList<>();
+        for (int label = 0; label < labelExecutions.length; label++) {
+            if(labelExecutions[label] == 0)
+                continue;
+            if(label == 0)
+                hotSpots.add(new HotSpot(String.format("$%04X", lowest), lowest, labelExecutions[0], labelCycles[0]));
+            else
+                hotSpots.add(new HotSpot(labels.get(label - 1).getKey(), starts[label - 1],
+                        labelExecutions[label], labelCycles[label]));
+        }
+        hotSpots.sort(Comparator.comparingLong((HotSpot hotSpot) -> hotSpot.cycles).reversed());
+        return hotSpots;
+    }
+
+    private static int lastAt(int[] starts, int index) {
+        while (index + 1 < starts.length && starts[index + 1] == starts[index]) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return the run's totals and the labels with the most cycles
+     * @param top maximum number of labels to list
+     */
+    public String profile(Map<String, Integer> symbols, int top) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%s after %d instructions and %d cycles%n", state, steps, cycles));
+        if(fault != null)
+            report.append(fault).append(System.lineSeparator());
+
+        List<HotSpot> hotSpots = hotSpots(symbols);
+        for (HotSpot hotSpot : hotSpots.subList(0, Math.min(top, hotSpots.size()))) {
+            report.append(String.format("  %-24s $%04X %12d executions %14d cycles %5.1f%%%n", hotSpot.label,
+                    hotSpot.address, hotSpot.executions, hotSpot.cycles,
+                    cycles > 0 ? hotSpot.cycles * 100.0 / cycles : 0.0));
+        }
+        return report.toString();
+    }
+
+}
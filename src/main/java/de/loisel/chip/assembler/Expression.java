@@ -0,0 +1,551 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Operand expression that is folded at assembly time.
+ * An expression is kept as a small postfix program. Numbers and
+ * constants are folded while it is parsed, so only the parts that
+ * depend on labels are left to be evaluated once the labels are known.
+ * Supports $hex and decimal numbers, symbols, parentheses, unary - and ~,
+ * HIGH() and LOW() of a word and the binary operators
+ * * / % + - << >> & ^ | with the precedence they have in Java.
+ */
+public final class Expression {
+
+    private static final byte CONST = 0;
+    private static final byte SYMBOL = 1;
+    // unary operators
+    private static final byte NEG = 2;
+    private static final byte NOT = 3;
+    private static final byte HIGH = 4;
+    private static final byte LOW = 5;
+    // binary operators
+    private static final byte MUL = 6;
+    private static final byte DIV = 7;
+    private static final byte MOD = 8;
+    private static final byte ADD = 9;
+    private static final byte SUB = 10;
+    private static final byte SHL = 11;
+    private static final byte SHR = 12;
+    private static final byte AND = 13;
+    private static final byte XOR = 14;
+    private static final byte OR = 15;
+
+    /**
+     * binary operators and their symbols from the lowest to the highest precedence
+     */
+    private static final String[][] OPERATOR_SYMBOLS = {
+            {"|"}, {"^"}, {"&"}, {"<<", ">>"}, {"+", "-"}, {"*", "/", "%"}
+    };
+    private static final byte[][] OPERATORS = {
+            {OR}, {XOR}, {AND}, {SHL, SHR}, {ADD, SUB}, {MUL, DIV, MOD}
+    };
+
+    /**
+     * a location in the code that has to hold the value of an expression
+     */
+    static final class Fixup {
+
+        final Expression expression;
+
+        final int location;
+
+        /**
+         * 1 for a byte, 2 for a word
+         */
+        final int width;
+
+        /**
+         * included file the expression comes from, null for the assembled source
+         */
+        final String source;
+
+        final int line;
+
+        Fixup(Expression expression, int location, int width, String source, int line) {
+            this.expression = expression;
+            this.location = location;
+            this.width = width;
+            this.source = source;
+            this.line = line;
+        }
+
+        /**
+         * evaluates the expression and checks that the value fits.
+         * Invalid values are reported, unknown symbols are left to the caller.
+         * @param values value of a symbol, {@link SymbolTable#UNDEFINED} if it is not known
+         * @return the value to write or {@link SymbolTable#UNDEFINED}
+         */
+        int resolve(ToIntFunction<String> values, Consumer<Diagnostic> diagnostics) {
+            OptionalInt value;
+            try {
+                value = expression.evaluate(values);
+            } catch (ArithmeticException e) {
+                diagnostics.accept(new Diagnostic(DiagnosticCode.DIVISION_BY_ZERO, source, line, 0,
+                        expression, line));
+                return SymbolTable.UNDEFINED;
+            }
+            if(value.isEmpty())
+                return SymbolTable.UNDEFINED;
+            if(!fits(value.getAsInt(), width)) {
+                diagnostics.accept(new Diagnostic(DiagnosticCode.OUT_OF_RANGE, source, line, 0,
+                        expression, line));
+                return SymbolTable.UNDEFINED;
+            }
+            return value.getAsInt();
+        }
+    }
+
+    private final byte[] ops;
+    private final int[] args;
+    private final String[] symbols;
+    private final String text;
+
+    private Expression(byte[] ops, int[] args, String[] symbols, String text) {
+        this.ops = ops;
+        this.args = args;
+        this.symbols = symbols;
+        this.text = text;
+    }
+
+    /**
+     * parses an operand. Constants that are defined in the symbol table are folded.
+     * @param constants symbol table to look up constants in or null
+     * @return the expression or null if the text is not a valid expression
+     * @throws ArithmeticException if a constant part divides by zero
+     */
+    static Expression parse(char[] chars, int start, int end, SymbolTable constants) {
+        Parser parser = new Parser(chars, start, end, constants);
+        if(!parser.parse())
+            return null;
+        return parser.builder.build(new String(chars, start, end - start).trim());
+    }
+
+    public static Expression parse(String text) {
+        return parse(text.toCharArray(), 0, text.length(), null);
+    }
+
+    /**
+     * @return the expression for the value of a single symbol
+     */
+    static Expression symbol(String name) {
+        return new Expression(new byte[] {SYMBOL}, new int[] {0}, new String[] {name}, name);
+    }
+
+    /**
+     * @return true if the expression does not depend on any symbol
+     */
+    public boolean isConstant() {
+        return symbols.length == 0;
+    }
+
+    /**
+     * @return the value of a constant expression
+     */
+    public int value() {
+        if(!isConstant())
+            throw new IllegalStateException("\"" + text + "\" depends on symbols");
+        return evaluate(name -> SymbolTable.UNDEFINED).getAsInt();
+    }
+
+    public int symbolCount() {
+        return symbols.length;
+    }
+
+    /**
+     * @return name of a symbol the expression depends on
+     */
+    public String symbol(int index) {
+        return symbols[index];
+    }
+
+    /**
+     * @param values value of a symbol, {@link SymbolTable#UNDEFINED} if it is not known
+     * @return the value or nothing if a symbol is not known
+     * @throws ArithmeticException on a division by zero
+     */
+    public OptionalInt evaluate(ToIntFunction<String> values) {
+        int[] symbolValues = new int[symbols.length];
+        for (int i = 0; i < symbols.length; i++) {
+            symbolValues[i] = values.applyAsInt(symbols[i]);
+            if(symbolValues[i] == SymbolTable.UNDEFINED)
+                return OptionalInt.empty();
+        }
+
+        int[] stack = new int[ops.length];
+        int top = -1;
+        for (int i = 0; i < ops.length; i++) {
+            byte op = ops[i];
+            if(op == CONST)
+                stack[++top] = args[i];
+            else if(op == SYMBOL)
+                stack[++top] = symbolValues[args[i]];
+            else if(op <= LOW)
+                stack[top] = apply(op, stack[top]);
+            else {
+                top--;
+                stack[top] = apply(op, stack[top], stack[top + 1]);
+            }
+        }
+        return OptionalInt.of(stack[0]);
+    }
+
+    /**
+     * @param values value of a symbol, {@link SymbolTable#UNDEFINED} if it is not known
+     * @return the expression with every known symbol replaced by its value and folded
+     * @throws ArithmeticException if a folded part divides by zero
+     */
+    public Expression bind(ToIntFunction<String> values) {
+        Builder builder = new Builder();
+        for (int i = 0; i < ops.length; i++) {
+            byte op = ops[i];
+            if(op == CONST) {
+                builder.constant(args[i]);
+            } else if(op == SYMBOL) {
+                String name = symbols[args[i]];
+                int value = values.applyAsInt(name);
+                if(value == SymbolTable.UNDEFINED)
+                    builder.symbol(name);
+                else
+                    builder.constant(value);
+            } else {
+                builder.operation(op);
+            }
+        }
+        return builder.build(text);
+    }
+
+    /**
+     * @return true if the value can be written to a location of the given width in bytes
+     */
+    static boolean fits(int value, int width) {
+        return value >= 0 && value <= (width == 1 ? 0xFF : 0xFFFF);
+    }
+
+    /**
+     * writes the expression with its symbols as indices into a table of names
+     */
+    void writeTo(DataOutput out, ToIntFunction<String> symbolIndex) throws IOException {
+        out.writeUTF(text);
+        out.writeInt(ops.length);
+        for (int i = 0; i < ops.length; i++) {
+            out.writeByte(ops[i]);
+            out.writeInt(ops[i] == SYMBOL ? symbolIndex.applyAsInt(symbols[args[i]]) : args[i]);
+        }
+    }
+
+    /**
+     * @param names table the symbol indices refer to
+     * @throws IOException if the input is no valid expression
+     */
+    static Expression readFrom(DataInput in, String[] names) throws IOException {
+        String text = in.readUTF();
+        int length = in.readInt();
+        if(length < 1 || length > 0xFFFF)
+            throw new IOException("Broken expression \"" + text + "\"");
+
+        byte[] ops = new byte[length];
+        int[] args = new int[length];
+        List<String> symbols = new ArrayList<>();
+        int depth = 0;
+        for (int i = 0; i < length; i++) {
+            ops[i] = in.readByte();
+            args[i] = in.readInt();
+            if(ops[i] == SYMBOL) {
+                if(args[i] < 0 || args[i] >= names.length)
+                    throw new IOException("Broken expression \"" + text + "\"");
+                int index = symbols.indexOf(names[args[i]]);
+                if(index < 0) {
+                    index = symbols.size();
+                    symbols.add(names[args[i]]);
+                }
+                args[i] = index;
+            }
+
+            // every operation needs its operands on the stack
+            if(ops[i] == CONST || ops[i] == SYMBOL)
+                depth++;
+            else if(ops[i] > OR || ops[i] < 0 || (ops[i] > LOW ? --depth : depth) < 1)
+                throw new IOException("Broken expression \"" + text + "\"");
+        }
+        if(depth != 1)
+            throw new IOException("Broken expression \"" + text + "\"");
+        return new Expression(ops, args, symbols.toArray(new String[0]), text);
+    }
+
+    /**
+     * @return the expression as written in the source
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private static int apply(byte op, int value) {
+        switch (op) {
+            case NEG: return -value;
+            case NOT: return ~value;
+            case HIGH: return (value >> 8) & 0xFF;
+            case LOW: return value & 0xFF;
+            default: throw new IllegalArgumentException("Not a unary operator: " + op);
+        }
+    }
+
+    private static int apply(byte op, int left, int right) {
+        switch (op) {
+            case MUL: return left * right;
+            case DIV: return left / right;
+            case MOD: return left % right;
+            case ADD: return left + right;
+            case SUB: return left - right;
+            case SHL: return left << right;
+            case SHR: return left >> right;
+            case AND: return left & right;
+            case XOR: return left ^ right;
+            case OR: return left | right;
+            default: throw new IllegalArgumentException("Not a binary operator: " + op);
+        }
+    }
+
+    /**
+     * collects the postfix program and folds operations on constants right away
+     */
+    private static final class Builder {
+
+        private byte[] ops = new byte[8];
+        private int[] args = new int[8];
+        private int length;
+
+        private final List<String> symbols = new ArrayList<>(2);
+
+        void constant(int value) {
+            add(CONST, value);
+        }
+
+        void symbol(String name) {
+            int index = symbols.indexOf(name);
+            if(index < 0) {
+                index = symbols.size();
+                symbols.add(name);
+            }
+            add(SYMBOL, index);
+        }
+
+        /**
+         * the operands of an operation are the entries right in front of it,
+         * so an operation on constants only has to look at the last entries
+         */
+        void operation(byte op) {
+            if(op <= LOW) {
+                if(ops[length - 1] == CONST) {
+                    args[length - 1] = apply(op, args[length - 1]);
+                    return;
+                }
+            } else if(ops[length - 1] == CONST && ops[length - 2] == CONST) {
+                int right = args[--length];
+                args[length - 1] = apply(op, args[length - 1], right);
+                return;
+            }
+            add(op, 0);
+        }
+
+        private void add(byte op, int arg) {
+            if(length == ops.length) {
+                ops = Arrays.copyOf(ops, length * 2);
+                args = Arrays.copyOf(args, length * 2);
+            }
+            ops[length] = op;
+            args[length] = arg;
+            length++;
+        }
+
+        Expression build(String text) {
+            return new Expression(Arrays.copyOf(ops, length), Arrays.copyOf(args, length),
+                    symbols.toArray(new String[0]), text);
+        }
+    }
+
+    /**
+     * recursive descent parser, one method call per precedence level
+     */
+    private static final class Parser {
+
+        private final char[] chars;
+        private final int end;
+        private final SymbolTable constants;
+        private int pos;
+
+        final Builder builder = new Builder();
+
+        Parser(char[] chars, int start, int end, SymbolTable constants) {
+            this.chars = chars;
+            this.pos = start;
+            this.end = end;
+            this.constants = constants;
+        }
+
+        boolean parse() {
+            return binary(0) && skipWhitespace() == end;
+        }
+
+        private boolean binary(int level) {
+            if(level == OPERATORS.length)
+                return unary();
+            if(!binary(level + 1))
+                return false;
+
+            while (true) {
+                byte op = operator(level);
+                if(op < 0)
+                    return true;
+                if(!binary(level + 1))
+                    return false;
+                builder.operation(op);
+            }
+        }
+
+        /**
+         * consumes an operator of the precedence level
+         * @return the operator or -1 if there is none
+         */
+        private byte operator(int level) {
+            skipWhitespace();
+            String[] symbols = OPERATOR_SYMBOLS[level];
+            for (int i = 0; i < symbols.length; i++) {
+                if(lookingAt(symbols[i])) {
+                    pos += symbols[i].length();
+                    return OPERATORS[level][i];
+                }
+            }
+            return -1;
+        }
+
+        private boolean unary() {
+            skipWhitespace();
+            if(pos == end)
+                return false;
+
+            char c = chars[pos];
+            if(c == '-' || c == '~' || c == '+') {
+                pos++;
+                if(!unary())
+                    return false;
+                if(c != '+')
+                    builder.operation(c == '-' ? NEG : NOT);
+                return true;
+            }
+            if(c == '(') {
+                pos++;
+                return binary(0) && expect(')');
+            }
+            if(c == '$')
+                return number(pos + 1, 16);
+            if(c >= '0' && c <= '9')
+                return number(pos, 10);
+            if(OperandKind.isIdentifierStart(c))
+                return identifier();
+            return false;
+        }
+
+        private boolean number(int start, int radix) {
+            long value = 0;
+            int i = start;
+            for (; i < end && Character.digit(chars[i], radix) >= 0; i++) {
+                value = value * radix + Character.digit(chars[i], radix);
+                if(value > Integer.MAX_VALUE)
+                    return false;
+            }
+            if(i == start || (i < end && OperandKind.isIdentifierPart(chars[i])))
+                return false;
+            pos = i;
+            builder.constant((int) value);
+            return true;
+        }
+
+        private boolean identifier() {
+            int start = pos;
+            while (pos < end && OperandKind.isIdentifierPart(chars[pos])) {
+                pos++;
+            }
+            int nameEnd = pos;
+
+            // HIGH(...) and LOW(...)
+            byte function = matches("HIGH", start, nameEnd) ? HIGH : matches("LOW", start, nameEnd) ? LOW : -1;
+            if(function >= 0 && skipWhitespace() < end && chars[pos] == '(') {
+                pos++;
+                if(!binary(0) || !expect(')'))
+                    return false;
+                builder.operation(function);
+                return true;
+            }
+
+            int id = constants == null ? -1 : constants.find(chars, start, nameEnd);
+            if(id >= 0 && constants.isConstant(id))
+                builder.constant(constants.address(id));
+            else
+                builder.symbol(new String(chars, start, nameEnd - start));
+            return true;
+        }
+
+        private boolean expect(char c) {
+            if(skipWhitespace() == end || chars[pos] != c)
+                return false;
+            pos++;
+            return true;
+        }
+
+        private boolean lookingAt(String symbol) {
+            if(end - pos < symbol.length())
+                return false;
+            for (int i = 0; i < symbol.length(); i++) {
+                if(chars[pos + i] != symbol.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean matches(String name, int start, int nameEnd) {
+            if(nameEnd - start != name.length())
+                return false;
+            for (int i = 0; i < name.length(); i++) {
+                if(chars[start + i] != name.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+
+        private int skipWhitespace() {
+            while (pos < end && (chars[pos] == ' ' || chars[pos] == '\t')) {
+                pos++;
+            }
+            return pos;
+        }
+    }
+
+}
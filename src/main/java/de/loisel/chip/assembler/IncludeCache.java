@@ -0,0 +1,118 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the statements of included files, so a library that is
+ * included by many programs is only read and lexed once.
+ * An entry is reused as long as the file keeps its modification
+ * time and size. The cache can be shared by any number of threads.
+ */
+public class IncludeCache {
+
+    private static final IncludeCache SHARED = new IncludeCache();
+
+    /**
+     * lexed content of one file
+     */
+    static final class Source {
+
+        final Path path;
+
+        final FileTime modified;
+
+        final long size;
+
+        /**
+         * statements with their own copy of the line, never modified
+         */
+        final Statement[] statements;
+
+        Source(Path path, FileTime modified, long size, Statement[] statements) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.statements = statements;
+        }
+    }
+
+    private final Map<Path, Source> sources = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @return the cache used by assemblers that were not given their own
+     */
+    public static IncludeCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param path absolute and normalized path of the file
+     */
+    Source get(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Source cached = sources.get(path);
+        if(cached != null && cached.size == attributes.size()
+                && cached.modified.equals(attributes.lastModifiedTime())) {
+            hits.increment();
+            return cached;
+        }
+
+        misses.increment();
+        List<Statement> statements = new ArrayList<>();
+        try (Reader reader = MappedSourceReader.open(path)) {
+            Lexer lexer = new Lexer(reader);
+            Statement statement = new Statement();
+            while (lexer.next(statement)) {
+                statements.add(statement.copy());
+            }
+        }
+
+        Source source = new Source(path, attributes.lastModifiedTime(), attributes.size(),
+                statements.toArray(new Statement[0]));
+        sources.put(path, source);
+        return source;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public void clear() {
+        sources.clear();
+    }
+
+}
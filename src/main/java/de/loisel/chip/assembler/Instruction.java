@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+/**
+ * One entry of the instruction table:
+ * a mnemonic with its operand signature and opcode.
+ */
+public class Instruction {
+
+    /**
+     * operand slot of an instruction
+     */
+    public enum Operand {
+        REG_X(OperandKind.REG_X, 0),
+        REG_Y(OperandKind.REG_Y, 0),
+        I(OperandKind.I, 0),
+        F(OperandKind.F, 0),
+        DT(OperandKind.DT, 0),
+        ST(OperandKind.ST, 0),
+        K(OperandKind.K, 0),
+        B(OperandKind.B, 0),
+        RXRY(OperandKind.RXRY, 0),
+        ONE(OperandKind.ONE, 0),
+        /**
+         * value emitted as one byte
+         */
+        BYTE(OperandKind.HEX, 1),
+        /**
+         * hex literal or label emitted as word
+         */
+        ADDRESS(OperandKind.HEX, 2);
+
+        /**
+         * token kind accepted by this slot
+         */
+        public final OperandKind kind;
+
+        /**
+         * bytes emitted for this slot
+         */
+        public final int size;
+
+        Operand(OperandKind kind, int size) {
+            this.kind = kind;
+            this.size = size;
+        }
+
+        /**
+         * @return true for slots that take a value instead of a keyword
+         */
+        public boolean isValue() {
+            return kind == OperandKind.HEX;
+        }
+    }
+
+    public final Mnemonic mnemonic;
+
+    public final int opcode;
+
+    public final Operand[] operands;
+
+    /**
+     * size of the encoded instruction in bytes
+     */
+    public final int size;
+
+    public Instruction(Mnemonic mnemonic, int opcode, Operand... operands) {
+        this.mnemonic = mnemonic;
+        this.opcode = opcode;
+        this.operands = operands;
+
+        int s = 1;
+        for (Operand operand : operands) {
+            s += operand.size;
+        }
+        this.size = s;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(mnemonic.name);
+        for (int i = 0; i < operands.length; i++) {
+            sb.append(i == 0 ? " " : ", ");
+            Operand operand = operands[i];
+            sb.append(operand.kind.keyword != null ? operand.kind.keyword : operand.name().toLowerCase());
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.util.Arrays;
+import java.util.OptionalInt;
+
+/**
+ * The emitted program as a list of instructions and data blocks.
+ * The assembler records where every instruction starts while it
+ * encodes, so code and the data of DB statements can be told apart
+ * without guessing. The {@link PeepholeOptimizer} decodes the operand
+ * values once the labels are known and lets its rules remove or
+ * replace instructions. Addresses are the ones the code was emitted at.
+ */
+public class InstructionList {
+
+    /**
+     * operand is a literal value
+     */
+    private static final byte LITERAL = 0;
+    /**
+     * operand is the address of a label, which moves along with the code
+     */
+    private static final byte LABEL = 1;
+    /**
+     * operand is an expression over labels, its value may change when code moves
+     */
+    private static final byte EXPRESSION = 2;
+
+    private int[] addresses = new int[64];
+    private int[] lengths = new int[64];
+    private Instruction[] instructions = new Instruction[64];
+    private int[] lines = new int[64];
+    private String[] sources = new String[64];
+    private int count;
+
+    private InstructionSet instructionSet;
+
+    // filled by decode()
+    private int[] values = new int[0];
+    private byte[] kinds = new byte[0];
+    private boolean[] removed = new boolean[0];
+    private boolean[] targets = new boolean[0];
+    private boolean[] pinned = new boolean[0];
+    private boolean changed;
+
+    /**
+     * records an instruction or a block of data behind the previous one
+     * @param instruction null for data
+     * @param source included file the statement comes from, null for the assembled source
+     */
+    void add(int address, Instruction instruction, int length, String source, int line) {
+        if(count == addresses.length) {
+            int capacity = count * 2;
+            addresses = Arrays.copyOf(addresses, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            instructions = Arrays.copyOf(instructions, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            sources = Arrays.copyOf(sources, capacity);
+        }
+        addresses[count] = address;
+        lengths[count] = length;
+        instructions[count] = instruction;
+        lines[count] = line;
+        sources[count] = source;
+        count++;
+    }
+
+    /**
+     * forgets the recorded program but keeps the memory for the next run
+     */
+    void clear() {
+        Arrays.fill(instructions, 0, count, null);
+        Arrays.fill(sources, 0, count, null);
+        count = 0;
+        changed = false;
+    }
+
+    /**
+     * reads the operand values from the emitted code and the symbols and
+     * marks the instructions that labels or address operands point to
+     * @param code the emitted program with placeholders for the labels
+     */
+    void decode(byte[] code, SymbolTable symbols, InstructionSet instructionSet) {
+        this.instructionSet = instructionSet;
+        int slots = count * InstructionSet.MAX_OPERANDS;
+        if(values.length < slots) {
+            values = new int[slots];
+            kinds = new byte[slots];
+        }
+        if(removed.length < count) {
+            removed = new boolean[count];
+            targets = new boolean[count];
+            pinned = new boolean[count];
+        } else {
+            Arrays.fill(removed, 0, count, false);
+            Arrays.fill(targets, 0, count, false);
+            Arrays.fill(pinned, 0, count, false);
+        }
+        changed = false;
+
+        // id + 1 of the label or -(index + 1) of the expression at each fixup location
+        int[] fixups = new int[code.length];
+        for (int i = 0; i < symbols.fixupCount(); i++) {
+            fixups[symbols.fixupLocation(i)] = symbols.fixupId(i) + 1;
+        }
+        for (int i = 0; i < symbols.expressionFixups().size(); i++) {
+            fixups[symbols.expressionFixups().get(i).location] = -(i + 1);
+        }
+
+        for (int op = 0; op < count; op++) {
+            Instruction instruction = instructions[op];
+            if(instruction == null)
+                continue;
+
+            int location = addresses[op] + 1;
+            for (int i = 0; i < instruction.operands.length; i++) {
+                Instruction.Operand operand = instruction.operands[i];
+                int slot = op * InstructionSet.MAX_OPERANDS + i;
+                kinds[slot] = LITERAL;
+                values[slot] = 0;
+                if(!operand.isValue())
+                    continue;
+
+                int fixup = fixups[location];
+                if(fixup > 0) {
+                    kinds[slot] = LABEL;
+                    values[slot] = symbols.address(fixup - 1);
+                } else if(fixup < 0) {
+                    kinds[slot] = EXPRESSION;
+                    values[slot] = evaluate(symbols.expressionFixups().get(-fixup - 1).expression, symbols);
+                } else {
+                    values[slot] = operand.size == 1 ? code[location] & 0xFF
+                            : (code[location] & 0xFF) << 8 | code[location + 1] & 0xFF;
+                }
+                location += operand.size;
+            }
+        }
+
+        // code that is reached by a jump or read through I must not be merged into its neighbours
+        for (int id = 0; id < symbols.size(); id++) {
+            if(symbols.isDefined(id) && !symbols.isConstant(id))
+                markTarget(symbols.address(id));
+        }
+        for (int op = 0; op < count; op++) {
+            Instruction instruction = instructions[op];
+            for (int i = 0; instruction != null && i < instruction.operands.length; i++) {
+                if(instruction.operands[i] == Instruction.Operand.ADDRESS)
+                    markTarget(value(op, i));
+            }
+        }
+
+        // "JP Rx, table" jumps to an offset in the code behind the label
+        for (int op = 0; op < count; op++) {
+            Instruction instruction = instructions[op];
+            if(instruction != null && instruction.mnemonic == Mnemonic.JP && instruction.operands.length == 2
+                    && instruction.operands[1] == Instruction.Operand.ADDRESS) {
+                int table = indexOf(value(op, 1));
+                for (int entry = table; entry >= 0 && entry < count && (entry == table || !targets[entry]); entry++) {
+                    pinned[entry] = true;
+                }
+            }
+        }
+    }
+
+    private static int evaluate(Expression expression, SymbolTable symbols) {
+        try {
+            OptionalInt value = expression.evaluate(symbols::value);
+            return value.orElse(SymbolTable.UNDEFINED);
+        } catch (ArithmeticException e) {
+            return SymbolTable.UNDEFINED;
+        }
+    }
+
+    private void markTarget(int address) {
+        int op = indexOf(address);
+        if(op >= 0 && op < count && addresses[op] == address)
+            targets[op] = true;
+    }
+
+    /**
+     * number of instructions and data blocks, including removed ones
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the instruction, null for data
+     */
+    public Instruction instruction(int op) {
+        return instructions[op];
+    }
+
+    public int address(int op) {
+        return addresses[op];
+    }
+
+    /**
+     * size in bytes
+     */
+    public int length(int op) {
+        return lengths[op];
+    }
+
+    public int line(int op) {
+        return lines[op];
+    }
+
+    /**
+     * @return included file the instruction comes from, null for the assembled source
+     */
+    public String source(int op) {
+        return sources[op];
+    }
+
+    /**
+     * @return the value of an operand, for labels and expressions the value
+     * they have before any code is removed or {@link SymbolTable#UNDEFINED}
+     * @param operand index of the operand in the instruction's signature
+     */
+    public int value(int op, int operand) {
+        return values[op * InstructionSet.MAX_OPERANDS + operand];
+    }
+
+    /**
+     * @return true if the operand is the address of a label
+     */
+    public boolean isLabel(int op, int operand) {
+        return kinds[op * InstructionSet.MAX_OPERANDS + operand] == LABEL;
+    }
+
+    /**
+     * @return true if the operand is an expression over labels.
+     * Its value can change in any way once code is removed.
+     */
+    public boolean isExpression(int op, int operand) {
+        return kinds[op * InstructionSet.MAX_OPERANDS + operand] == EXPRESSION;
+    }
+
+    /**
+     * @return true if a label or an address operand points to the instruction
+     */
+    public boolean isTarget(int op) {
+        return targets[op];
+    }
+
+    public boolean isRemoved(int op) {
+        return removed[op];
+    }
+
+    /**
+     * @return true if the instruction is part of a jump table that "JP Rx, table"
+     * indexes into, up to the next label. Such an instruction must keep its size
+     * and must not be removed.
+     */
+    public boolean isPinned(int op) {
+        return pinned[op];
+    }
+
+    /**
+     * @return the next instruction that is not removed, {@link #size()} at the end
+     */
+    public int next(int op) {
+        do {
+            op++;
+        } while (op < count && removed[op]);
+        return op;
+    }
+
+    /**
+     * @return the previous instruction that is not removed or -1
+     */
+    public int previous(int op) {
+        do {
+            op--;
+        } while (op >= 0 && removed[op]);
+        return op;
+    }
+
+    /**
+     * @return the instruction that is executed when the code jumps to the address:
+     * the first one at or behind it that is not removed, {@link #size()} for the
+     * end of the program and -1 if no instruction starts at the address
+     */
+    public int at(int address) {
+        int op = indexOf(address);
+        if(op < 0 || (op < count && addresses[op] != address))
+            return -1;
+        return op < count && removed[op] ? next(op) : op;
+    }
+
+    /**
+     * @return the instruction of the current instruction set with the signature or null
+     */
+    public Instruction find(Mnemonic mnemonic, Instruction.Operand... operands) {
+        for (Instruction instruction : instructionSet.instructions()) {
+            if(instruction.mnemonic == mnemonic && Arrays.equals(instruction.operands, operands))
+                return instruction;
+        }
+        return null;
+    }
+
+    /**
+     * drops an instruction or data from the program. Labels that point to it
+     * point to the code behind it afterwards.
+     */
+    public void remove(int op) {
+        removed[op] = true;
+        changed = true;
+    }
+
+    /**
+     * replaces an instruction with one of the same size that takes the same operand bytes
+     */
+    public void replace(int op, Instruction instruction) {
+        if(instructions[op] == null || instruction.size != lengths[op])
+            throw new IllegalArgumentException(instruction + " does not fit in place of " + instructions[op]);
+        instructions[op] = instruction;
+        changed = true;
+    }
+
+    /**
+     * @return true if a rule removed or replaced anything since the program was decoded
+     */
+    boolean changed() {
+        return changed;
+    }
+
+    /**
+     * @return index of the last instruction that starts at or before the address,
+     * -1 in front of the first one and {@link #size()} at the end of the program
+     */
+    int indexOf(int address) {
+        if(count == 0 || address < addresses[0])
+            return -1;
+        if(address >= addresses[count - 1] + lengths[count - 1])
+            return address == addresses[count - 1] + lengths[count - 1] ? count : -1;
+        int op = Arrays.binarySearch(addresses, 0, count, address);
+        return op >= 0 ? op : -op - 2;
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static de.loisel.chip.assembler.Instruction.Operand.*;
+import static de.loisel.chip.assembler.Mnemonic.*;
+
+/**
+ * Precompiled instruction table of the Lo-Chip.
+ * Maps a mnemonic and the kinds of its operand tokens to an instruction
+ * with a single lookup in an open addressed hash table.
+ */
+public class InstructionSet {
+
+    /**
+     * maximum number of operands of a single instruction
+     */
+    public static final int MAX_OPERANDS = 3;
+
+    private static final InstructionSet LO_CHIP = new InstructionSet(List.of(
+            new Instruction(CLS, 0xE0),                                 // $E0 - CLS
+            new Instruction(RET, 0xEE),                                 // $EE - RET
+            new Instruction(JP, 0x10, ADDRESS),                         // $10 - JP addr / label
+            new Instruction(JP, 0x11, I, F),                            // $11 - JP I, F
+            new Instruction(JP, 0xB0, REG_X, ADDRESS),                  // $B0 - JP Rx, addr
+            new Instruction(CALL, 0x20, ADDRESS),                       // $20 - CALL addr / label
+            new Instruction(JE, 0x30, REG_X, BYTE),                     // $30 - JE Rx, b1
+            new Instruction(JNE, 0x31, REG_X, BYTE),                    // $31 - JNE Rx, b1
+            new Instruction(JE, 0x50, REG_X, REG_Y),                    // $50 - JE Rx, Ry
+            new Instruction(JNE, 0x51, REG_X, REG_Y),                   // $51 - JNE Rx, Ry
+            new Instruction(LD, 0x60, REG_X, BYTE),                     // $60 - LD Rx, b1
+            new Instruction(LD, 0x61, REG_Y, BYTE),                     // $61 - LD Ry, b1
+            new Instruction(LD, 0x62, REG_X, I),                        // $62 - LD Rx, I
+            new Instruction(LD, 0x63, REG_Y, I),                        // $63 - LD Ry, I
+            new Instruction(LD, 0x64, I, REG_X),                        // $64 - LD I, Rx
+            new Instruction(LD, 0x65, I, REG_Y),                        // $65 - LD I, Ry
+            new Instruction(ADD, 0x70, REG_X, BYTE),                    // $70 - ADD Rx, b1
+            new Instruction(ADD, 0x71, REG_Y, BYTE),                    // $71 - ADD Ry, b1
+            new Instruction(LD, 0x80, REG_X, REG_Y),                    // $80 - LD Rx, Ry
+            new Instruction(OR, 0x81, REG_X, REG_Y),                    // $81 - OR Rx, Ry
+            new Instruction(AND, 0x82, REG_X, REG_Y),                   // $82 - AND Rx, Ry
+            new Instruction(XOR, 0x83, REG_X, REG_Y),                   // $83 - XOR Rx, Ry
+            new Instruction(ADD, 0x84, REG_X, REG_Y),                   // $84 - ADD Rx, Ry
+            new Instruction(SUB, 0x85, REG_X, REG_Y),                   // $85 - SUB Rx, Ry
+            new Instruction(SHR, 0x86, REG_X, ONE),                     // $86 - SHR Rx, 1
+            new Instruction(SUBN, 0x87, REG_X, REG_Y),                  // $87 - SUBN Rx, Ry
+            new Instruction(LD, 0x8A, REG_Y, REG_X),                    // $8A - LD Ry, Rx
+            new Instruction(SHL, 0x8E, REG_X, ONE),                     // $8E - SHL Rx, 1
+            new Instruction(LD, 0xA0, I, ADDRESS),                      // $A0 - LD I, addr / label
+            new Instruction(LD, 0xA1, I, RXRY),                         // $A1 - LD I, RxRy
+            new Instruction(EXIT, 0xAA),                                // $AA - EXIT
+            new Instruction(RND, 0xC0, REG_X, BYTE),                    // $C0 - RND Rx, b1
+            new Instruction(DRW, 0xD0, REG_X, REG_Y, BYTE),             // $D0 - DRW Rx, Ry, b1
+            new Instruction(DRW, 0xD1, REG_X, REG_Y),                   // $D1 - DRW Rx, Ry
+            new Instruction(JKP, 0xE1, REG_X),                          // $E1 - JKP Rx
+            new Instruction(JKNP, 0xE2, REG_X),                         // $E2 - JKNP Rx
+            new Instruction(LD, 0xF1, REG_X, DT),                       // $F1 - LD Rx, DT
+            new Instruction(LD, 0xF2, REG_X, K),                        // $F2 - LD Rx, K
+            new Instruction(LD, 0xF3, DT, REG_X),                       // $F3 - LD DT, Rx
+            new Instruction(LD, 0xF4, ST, REG_X),                       // $F4 - LD ST, Rx
+            new Instruction(ADD, 0xFA, I, REG_X),                       // $FA - ADD I, Rx
+            new Instruction(LD, 0xFC, B, REG_X),                        // $FC - LD B, Rx
+            new Instruction(LD, 0xFD, I, REG_X, REG_Y),                 // $FD - LD I, Rx, Ry
+            new Instruction(LD, 0xFE, REG_X, REG_Y, I)                  // $FE - LD Rx, Ry, I
+    ));
+
+    private final List<Instruction> instructions;
+
+    private final String fingerprint;
+
+    private final int[] keys;
+    private final Instruction[] values;
+    private final int mask;
+
+    /**
+     * mnemonics with at least one instruction, indexed by ordinal
+     */
+    private final boolean[] known = new boolean[Mnemonic.values().length];
+
+    /**
+     * instructions indexed by opcode, null for unused opcodes
+     */
+    private final Instruction[] byOpcode = new Instruction[256];
+
+    public InstructionSet(List<Instruction> instructions) {
+        this.instructions = List.copyOf(instructions);
+
+        int entries = 0;
+        for (Instruction instruction : instructions) {
+            entries += 1 << countValueSlots(instruction);
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(entries, 8) * 2 - 1) << 1;
+        this.keys = new int[capacity];
+        this.values = new Instruction[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(keys, -1);
+
+        StringBuilder fingerprint = new StringBuilder();
+        for (Instruction instruction : instructions) {
+            known[instruction.mnemonic.ordinal()] = true;
+            if(byOpcode[instruction.opcode] != null)
+                throw new IllegalArgumentException("Opcode of " + instruction
+                        + " is already used by " + byOpcode[instruction.opcode]);
+            byOpcode[instruction.opcode] = instruction;
+            addVariants(instruction, 0, new OperandKind[instruction.operands.length]);
+            fingerprint.append(Integer.toHexString(instruction.opcode)).append(' ')
+                    .append(instruction).append('\n');
+        }
+        this.fingerprint = fingerprint.toString();
+    }
+
+    /**
+     * @return the instruction set of the Lo-Chip
+     */
+    public static InstructionSet loChip() {
+        return LO_CHIP;
+    }
+
+    public List<Instruction> instructions() {
+        return instructions;
+    }
+
+    /**
+     * @return a description of every instruction and its encoding.
+     * Two instruction sets with the same fingerprint encode the same way.
+     */
+    public String fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return true if at least one instruction uses this mnemonic
+     */
+    public boolean hasInstructions(Mnemonic mnemonic) {
+        return known[mnemonic.ordinal()];
+    }
+
+    /**
+     * looks up the instruction for a mnemonic and its classified operands
+     * @param kinds operand kinds, only the first {@code count} entries are used
+     * @return the instruction or null if no signature matches
+     */
+    public Instruction find(Mnemonic mnemonic, OperandKind[] kinds, int count) {
+        if(count > MAX_OPERANDS)
+            return null;
+
+        int key = key(mnemonic, kinds, count);
+        for (int slot = hash(key) & mask; keys[slot] != -1; slot = (slot + 1) & mask) {
+            if(keys[slot] == key)
+                return values[slot];
+        }
+        return null;
+    }
+
+    /**
+     * @return the instruction encoded with this opcode or null if the opcode is unused
+     */
+    public Instruction decode(int opcode) {
+        return byOpcode[opcode & 0xFF];
+    }
+
+    /**
+     * puts one table entry for every combination of token kinds
+     * accepted by the instruction's value slots. Symbols and expressions
+     * that are not folded yet are looked up as {@link OperandKind#IDENT}.
+     */
+    private void addVariants(Instruction instruction, int index, OperandKind[] kinds) {
+        if(index == kinds.length) {
+            put(key(instruction.mnemonic, kinds, kinds.length), instruction);
+            return;
+        }
+
+        Instruction.Operand operand = instruction.operands[index];
+        kinds[index] = operand.kind;
+        addVariants(instruction, index + 1, kinds);
+        if(operand.isValue()) {
+            kinds[index] = OperandKind.IDENT;
+            addVariants(instruction, index + 1, kinds);
+        }
+    }
+
+    private void put(int key, Instruction instruction) {
+        int slot = hash(key) & mask;
+        while (keys[slot] != -1) {
+            if(keys[slot] == key)
+                throw new IllegalArgumentException("Ambiguous instruction " + instruction
+                        + " conflicts with " + values[slot]);
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = instruction;
+    }
+
+    private static int countValueSlots(Instruction instruction) {
+        int count = 0;
+        for (Instruction.Operand operand : instruction.operands) {
+            if(operand.isValue())
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * packs mnemonic, operand count and up to three operand kinds into one int
+     */
+    private static int key(Mnemonic mnemonic, OperandKind[] kinds, int count) {
+        int key = (mnemonic.ordinal() << 2) | count;
+        for (int i = 0; i < MAX_OPERANDS; i++) {
+            key = (key << 4) | (i < count ? kinds[i].ordinal() : 0);
+        }
+        return key;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Character level tokenizer for LoChip's Assembly language.
+ * Reads the source once and fills a {@link Statement} per line.
+ * Whitespace and comments are skipped in place, mnemonics and
+ * keywords are recognized without creating strings.
+ */
+public class Lexer {
+
+    private static final Words<Mnemonic> MNEMONICS = new Words<>();
+    private static final Words<OperandKind> KEYWORDS = new Words<>();
+
+    static {
+        for (Mnemonic mnemonic : Mnemonic.values()) {
+            MNEMONICS.put(mnemonic.name, mnemonic);
+        }
+        for (OperandKind kind : OperandKind.values()) {
+            if(kind.keyword != null)
+                KEYWORDS.put(kind.keyword, kind);
+        }
+    }
+
+    private final Reader reader;
+    private final Iterator<String> lines;
+
+    private final char[] buffer;
+    private int position;
+    private int limit;
+
+    /**
+     * the current line without line break
+     */
+    private char[] line = new char[128];
+    private int length;
+
+    private int lineNum;
+
+    /**
+     * @return number of lines read so far, including blank and comment lines
+     */
+    public int lineNumber() {
+        return lineNum;
+    }
+
+    public Lexer(Reader reader) {
+        this.reader = reader;
+        this.lines = null;
+        this.buffer = new char[8192];
+    }
+
+    private Lexer(List<String> lines, int firstLine) {
+        this.reader = null;
+        this.lines = lines.iterator();
+        this.buffer = null;
+        this.lineNum = firstLine - 1;
+    }
+
+    /**
+     * @return a lexer over already split lines
+     */
+    public static Lexer of(List<String> lines) {
+        return new Lexer(lines, 1);
+    }
+
+    /**
+     * @return a lexer over a part of a source
+     * @param firstLine line number of the first of the lines
+     */
+    public static Lexer of(List<String> lines, int firstLine) {
+        return new Lexer(lines, firstLine);
+    }
+
+    /**
+     * tokenizes the next line that contains a label or a command.
+     * Blank lines and comment lines are skipped.
+     * @return false if the end of the source was reached
+     */
+    public boolean next(Statement statement) throws IOException {
+        while (readLine()) {
+            lineNum++;
+            statement.clear(line, lineNum);
+            tokenize(statement);
+            if(!statement.isEmpty())
+                return true;
+        }
+        return false;
+    }
+
+    private boolean readLine() throws IOException {
+        if(lines != null) {
+            if(!lines.hasNext())
+                return false;
+            String next = lines.next();
+            ensureCapacity(next.length());
+            next.getChars(0, next.length(), line, 0);
+            length = next.length();
+            return true;
+        }
+
+        length = 0;
+        boolean read = false;
+        while (true) {
+            if(position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if(limit <= 0) {
+                    limit = 0;
+                    return read;
+                }
+            }
+            read = true;
+
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            append(start, position);
+
+            if(position < limit) {
+                position++;     // skip line break
+                return true;
+            }
+        }
+    }
+
+    private void append(int start, int end) {
+        int count = end - start;
+        ensureCapacity(length + count);
+        System.arraycopy(buffer, start, line, length, count);
+        length += count;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > line.length) {
+            char[] grown = new char[Math.max(capacity, line.length * 2)];
+            System.arraycopy(line, 0, grown, 0, length);
+            line = grown;
+        }
+    }
+
+    private void tokenize(Statement statement) {
+        int end = codeEnd();
+        int pos = skipWhitespace(0, end);
+        if(pos == end)
+            return;
+
+        int wordEnd = scanWord(pos, end);
+        int next = skipWhitespace(wordEnd, end);
+
+        // label definition
+        if(wordEnd > pos && next < end && line[next] == ':') {
+            statement.label = new String(line, pos, wordEnd - pos);
+            pos = skipWhitespace(next + 1, end);
+            if(pos == end)
+                return;
+            wordEnd = scanWord(pos, end);
+            next = skipWhitespace(wordEnd, end);
+        }
+
+        int textEnd = trimEnd(pos, end);
+        statement.setText(pos, textEnd);
+
+        Mnemonic mnemonic = MNEMONICS.get(line, pos, wordEnd);
+        if(mnemonic == null && isWord(pos, wordEnd, end)) {
+            // NAME EQU value
+            int equEnd = scanWord(next, end);
+            if(MNEMONICS.get(line, next, equEnd) == Mnemonic.EQU && isWord(next, equEnd, end)) {
+                statement.mnemonic = Mnemonic.EQU;
+                addOperand(statement, pos, wordEnd);
+                addOperands(statement, skipWhitespace(equEnd, end), end);
+                return;
+            }
+        }
+        if(mnemonic == null || (wordEnd < end && !isWhitespace(line[wordEnd]))) {
+            statement.unknown = true;
+            return;
+        }
+        statement.mnemonic = mnemonic;
+
+        // the name of a constant or macro may be followed by its operands without a comma
+        pos = next;
+        if(mnemonic == Mnemonic.DEFINE || mnemonic == Mnemonic.MACRO) {
+            int nameEnd = scanWord(pos, end);
+            if(nameEnd > pos && nameEnd < end && isWhitespace(line[nameEnd])) {
+                addOperand(statement, pos, nameEnd);
+                pos = skipWhitespace(nameEnd, end);
+                if(pos < end && line[pos] == ',')
+                    pos = skipWhitespace(pos + 1, end);
+            }
+        }
+        addOperands(statement, pos, end);
+    }
+
+    /**
+     * @return true if the range is an identifier that ends with whitespace or the line
+     */
+    private boolean isWord(int start, int wordEnd, int end) {
+        return wordEnd > start && OperandKind.isIdentifierStart(line[start])
+                && (wordEnd == end || isWhitespace(line[wordEnd]));
+    }
+
+    /**
+     * splits the rest of the line into comma separated operands
+     */
+    private void addOperands(Statement statement, int pos, int end) {
+        while (pos < end) {
+            int comma = pos;
+            while (comma < end && line[comma] != ',') {
+                comma++;
+            }
+            addOperand(statement, pos, trimEnd(pos, comma));
+
+            if(comma == end)
+                break;
+            pos = skipWhitespace(comma + 1, end);
+            if(pos == end)      // trailing comma
+                addOperand(statement, pos, pos);
+        }
+    }
+
+    private void addOperand(Statement statement, int start, int end) {
+        OperandKind keyword = KEYWORDS.get(line, start, end);
+        if(keyword != null) {
+            statement.addOperand(keyword, 0, start, end);
+        } else if(isHex(start, end)) {
+            int value = 0;
+            for (int i = start + 1; i < end; i++) {
+                if(value >= 0)
+                    value = (value << 4) | Character.digit(line[i], 16);
+                if(value > 0xFFFF)
+                    value = -1;
+            }
+            statement.addOperand(OperandKind.HEX, value, start, end);
+        } else if(isIdentifier(start, end)) {
+            statement.addOperand(OperandKind.IDENT, 0, start, end);
+        } else if(end - start >= 2 && line[start] == '"' && line[end - 1] == '"') {
+            statement.addOperand(OperandKind.STRING, 0, start, end);
+        } else if(isExpression(start, end)) {
+            statement.addOperand(OperandKind.EXPR, 0, start, end);
+        } else {
+            statement.addOperand(OperandKind.INVALID, 0, start, end);
+        }
+    }
+
+    private boolean isHex(int start, int end) {
+        if(end - start < 2 || line[start] != '$')
+            return false;
+        for (int i = start + 1; i < end; i++) {
+            if(Character.digit(line[i], 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true for a decimal number or a range with an operator or parenthesis.
+     * Whether it is a valid expression is only known after parsing it.
+     */
+    private boolean isExpression(int start, int end) {
+        boolean decimal = start < end;
+        for (int i = start; i < end; i++) {
+            if(OperandKind.isOperator(line[i]))
+                return true;
+            decimal &= line[i] >= '0' && line[i] <= '9';
+        }
+        return decimal;
+    }
+
+    private boolean isIdentifier(int start, int end) {
+        if(start == end || !OperandKind.isIdentifierStart(line[start]))
+            return false;
+        return scanWord(start, end) == end;
+    }
+
+    /**
+     * @return index of the comment start or the line end
+     */
+    private int codeEnd() {
+        for (int i = 0; i < length; i++) {
+            if(line[i] == ';')
+                return i;
+        }
+        return length;
+    }
+
+    private int scanWord(int pos, int end) {
+        while (pos < end && OperandKind.isIdentifierPart(line[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int skipWhitespace(int pos, int end) {
+        while (pos < end && isWhitespace(line[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && isWhitespace(line[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * small open addressed table that finds words by a range of chars
+     */
+    private static class Words<T> {
+
+        private final String[] names = new String[64];
+        private final Object[] values = new Object[64];
+
+        void put(String name, T value) {
+            int slot = hash(name.toCharArray(), 0, name.length());
+            while (names[slot] != null) {
+                slot = (slot + 1) & (names.length - 1);
+            }
+            names[slot] = name;
+            values[slot] = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(char[] chars, int start, int end) {
+            int len = end - start;
+            for (int slot = hash(chars, start, end); names[slot] != null; slot = (slot + 1) & (names.length - 1)) {
+                String name = names[slot];
+                if(name.length() == len && matches(name, chars, start))
+                    return (T) values[slot];
+            }
+            return null;
+        }
+
+        private static boolean matches(String name, char[] chars, int start) {
+            for (int i = 0; i < name.length(); i++) {
+                if(name.charAt(i) != chars[start + i])
+                    return false;
+            }
+            return true;
+        }
+
+        private int hash(char[] chars, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + chars[i];
+            }
+            h ^= h >>> 16;
+            return h & (names.length - 1);
+        }
+    }
+
+}
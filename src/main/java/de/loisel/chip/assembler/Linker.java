@@ -0,0 +1,190 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Combines separately assembled {@link ObjectModule}s into one program.
+ * The modules are placed behind the reset vector in the given order,
+ * the reset vector points to the first instruction of the first module
+ * that has one, just like {@link Assembler#assemble(List)} does for a
+ * single source. A module's references to its own labels always resolve
+ * to its own code, so several modules may define a label with the same name
+ * as long as no other module uses it.
+ */
+public class Linker {
+
+    /**
+     * bytes in front of the program that hold the reset vector
+     */
+    private static final int HEADER_SIZE = 2;
+
+    public AssemblyResult link(List<ObjectModule> modules) {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Map<String, Integer> symbols = new HashMap<>();
+        Map<String, List<String>> definedIn = new HashMap<>();
+
+        // place the modules and collect their labels
+        int[] bases = new int[modules.size()];
+        int size = HEADER_SIZE;
+        int entry = 0;
+        for (int i = 0; i < modules.size(); i++) {
+            ObjectModule module = modules.get(i);
+            diagnostics.addAll(module.diagnostics());
+            bases[i] = size;
+            if(entry == 0 && module.entry() >= 0)
+                entry = size + module.entry();
+
+            for (Map.Entry<String, Integer> export : module.exports().entrySet()) {
+                symbols.putIfAbsent(export.getKey(), size + export.getValue());
+                definedIn.computeIfAbsent(export.getKey(), name -> new ArrayList<>(1)).add(module.name());
+            }
+            size += module.size();
+        }
+
+        if(size > CodeEmitter.CAPACITY)
+            diagnostics.add(new Diagnostic(DiagnosticCode.LINKED_TOO_LARGE, null, 0, 0));
+
+        byte[] program = new byte[Math.min(size, CodeEmitter.CAPACITY)];
+        program[0] = (byte) (entry >>> 8);
+        program[1] = (byte) entry;
+
+        // copy the code and patch the addresses
+        for (int i = 0; i < modules.size(); i++) {
+            ObjectModule module = modules.get(i);
+            int base = bases[i];
+            if(base < program.length)
+                System.arraycopy(module.code(), 0, program, base, Math.min(module.size(), program.length - base));
+
+            // the module's own labels first, then the labels of the others
+            Set<String> missing = new TreeSet<>();
+            Set<String> ambiguous = new TreeSet<>();
+            ToIntFunction<String> addresses = symbol -> {
+                Integer own = module.exports().get(symbol);
+                if(own != null)
+                    return base + own;
+                Integer address = symbols.get(symbol);
+                if(address == null) {
+                    missing.add(symbol);
+                    return SymbolTable.UNDEFINED;
+                }
+                if(definedIn.get(symbol).size() > 1)
+                    ambiguous.add(symbol);
+                return address;
+            };
+
+            for (ObjectModule.Relocation relocation : module.relocations()) {
+                int location = base + relocation.offset;
+                if(relocation.expression != null) {
+                    int value = evaluate(relocation, module, addresses, diagnostics);
+                    if(value != SymbolTable.UNDEFINED && location + relocation.width <= program.length)
+                        ObjectModule.patch(program, location, relocation.width, value);
+                    continue;
+                }
+
+                int address = addresses.applyAsInt(relocation.symbol);
+                if(address != SymbolTable.UNDEFINED && location + 1 < program.length) {
+                    program[location] = (byte) (address >>> 8);
+                    program[location + 1] = (byte) address;
+                }
+            }
+            for (String symbol : missing) {
+                diagnostics.add(new Diagnostic(DiagnosticCode.IMPORT_NOT_FOUND, null, 0, 0, symbol,
+                        module.name()));
+            }
+            for (String symbol : ambiguous) {
+                List<String> modulesOf = definedIn.get(symbol);
+                diagnostics.add(new Diagnostic(DiagnosticCode.AMBIGUOUS_IMPORT, null, 0, 0, symbol,
+                        module.name(), modulesOf.get(0), modulesOf.get(1)));
+            }
+        }
+
+        return AssemblyResult.of(program, symbols, diagnostics);
+    }
+
+    /**
+     * @param addresses address of a symbol, {@link SymbolTable#UNDEFINED} after noting it as missing
+     * @return the value of a relocated expression or {@link SymbolTable#UNDEFINED}
+     * if a symbol is missing or after reporting why it does not fit
+     */
+    private static int evaluate(ObjectModule.Relocation relocation, ObjectModule module,
+                                ToIntFunction<String> addresses, List<Diagnostic> diagnostics) {
+        Expression expression = relocation.expression;
+        boolean known = true;
+        for (int i = 0; i < expression.symbolCount(); i++) {
+            known &= addresses.applyAsInt(expression.symbol(i)) != SymbolTable.UNDEFINED;
+        }
+        if(!known)
+            return SymbolTable.UNDEFINED;
+
+        try {
+            int value = expression.evaluate(addresses).getAsInt();
+            if(Expression.fits(value, relocation.width))
+                return value;
+            diagnostics.add(new Diagnostic(DiagnosticCode.MODULE_OUT_OF_RANGE, null, 0, 0, expression,
+                    module.name()));
+        } catch (ArithmeticException e) {
+            diagnostics.add(new Diagnostic(DiagnosticCode.MODULE_DIVISION_BY_ZERO, null, 0, 0, expression,
+                    module.name()));
+        }
+        return SymbolTable.UNDEFINED;
+    }
+
+    public static ObjectModule read(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return ObjectModule.readFrom(in);
+        }
+    }
+
+    public static void write(ObjectModule module, Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            module.writeTo(out);
+        }
+    }
+
+    /**
+     * link mode of the command line: {@code <output> <module>...}.
+     * Modules ending in .lco are read, all others are assembled as sources first.
+     * @return true if the program was linked without errors
+     */
+    public static boolean main(List<String> args) throws ArgumentsMissingException, IOException {
+        if(args.size() < 2)
+            throw new ArgumentsMissingException("Output file and modules missing in arguments!");
+
+        Assembler assembler = new Assembler();
+        List<ObjectModule> modules = new ArrayList<>();
+        for (String arg : args.subList(1, args.size())) {
+            Path file = Path.of(arg);
+            modules.add(arg.endsWith(ObjectModule.EXTENSION) ? read(file) : assembler.assembleModule(file));
+        }
+
+        AssemblyResult result = new Linker().link(modules);
+        Assembler.writeOutputFile(args.get(0), result.program());
+
+        Assembler.printDiagnostics(result.diagnostics());
+        return !result.hasErrors();
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Block of source lines defined between MACRO and ENDM.
+ * The parameters are replaced by the arguments of an invocation as
+ * whole words. The expansion for a list of arguments is lexed once
+ * and reused by every later invocation with the same arguments.
+ * Labels defined in the body are local to each invocation: they get the
+ * number of the invocation appended, so such expansions are not reused.
+ */
+final class Macro {
+
+    final String name;
+
+    final String[] parameters;
+
+    /**
+     * included file the macro is defined in, null for the assembled source
+     */
+    final String source;
+
+    final int line;
+
+    private final List<String> body = new ArrayList<>();
+
+    /**
+     * labels defined in the body
+     */
+    private final Set<String> labels = new HashSet<>();
+
+    private final Map<List<String>, Statement[]> expansions = new HashMap<>();
+
+    Macro(String name, String[] parameters, String source, int line) {
+        this.name = name;
+        this.parameters = parameters;
+        this.source = source;
+        this.line = line;
+    }
+
+    /**
+     * appends a line of the body
+     */
+    void add(Statement statement) {
+        String text = statement.text();
+        if(statement.label != null)
+            labels.add(statement.label);
+        body.add(statement.label == null ? text : statement.label + ": " + text);
+    }
+
+    /**
+     * @param invocation number of the invocation in this run, it makes the labels of the body unique
+     * @return the statements of the body with the parameters replaced, shared by all
+     * invocations with the same arguments. Only their line number may be changed.
+     */
+    Statement[] expand(List<String> arguments, int invocation) {
+        if(!labels.isEmpty())
+            return lex(arguments, "__" + invocation);
+
+        Statement[] statements = expansions.get(arguments);
+        if(statements == null) {
+            statements = lex(arguments, "");
+            expansions.put(List.copyOf(arguments), statements);
+        }
+        return statements;
+    }
+
+    /**
+     * @return number of different argument lists the macro was expanded for
+     */
+    int expansions() {
+        return expansions.size();
+    }
+
+    /**
+     * @param suffix appended to the labels of the body
+     */
+    private Statement[] lex(List<String> arguments, String suffix) {
+        List<String> lines = new ArrayList<>(body.size());
+        for (String text : body) {
+            lines.add(substitute(text, arguments, suffix));
+        }
+
+        List<Statement> statements = new ArrayList<>(lines.size());
+        try {
+            Lexer lexer = Lexer.of(lines);
+            Statement statement = new Statement();
+            while (lexer.next(statement)) {
+                statements.add(statement.copy());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return statements.toArray(new Statement[0]);
+    }
+
+    /**
+     * replaces every parameter and renames every label of the body
+     * that appears as a whole word outside of quotes and hex literals
+     */
+    private String substitute(String text, List<String> arguments, String suffix) {
+        StringBuilder result = new StringBuilder(text.length());
+        boolean quoted = false;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if(c == '"')
+                quoted = !quoted;
+            // a word starts after a character that can not be part of a word or hex literal
+            char previous = i > 0 ? text.charAt(i - 1) : ' ';
+            if(quoted || !OperandKind.isIdentifierStart(c)
+                    || OperandKind.isIdentifierPart(previous) || previous == '$') {
+                result.append(c);
+                i++;
+                continue;
+            }
+
+            int end = i;
+            while (end < text.length() && OperandKind.isIdentifierPart(text.charAt(end))) {
+                end++;
+            }
+            String word = text.substring(i, end);
+            int parameter = indexOf(word);
+            if(parameter >= 0)
+                result.append(arguments.get(parameter));
+            else if(labels.contains(word))
+                result.append(word).append(suffix);
+            else
+                result.append(word);
+            i = end;
+        }
+        return result.toString();
+    }
+
+    private int indexOf(String word) {
+        for (int i = 0; i < parameters.length; i++) {
+            if(parameters[i].equals(word))
+                return i;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a source file through a memory mapping of the whole file.
+ * Characters are decoded straight from the mapped pages into the
+ * caller's buffer, the file content is never copied onto the heap.
+ * Bytes that are not valid UTF-8 are replaced, whatever the size of the file.
+ */
+public class MappedSourceReader extends Reader {
+
+    /**
+     * files smaller than this are read with a plain buffered reader
+     */
+    public static final long MAP_THRESHOLD = 1 << 16;
+
+    private final ByteBuffer mapped;
+    private final CharsetDecoder decoder = newDecoder();
+
+    private boolean finished;
+
+    public MappedSourceReader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * opens the source file, mapping it into memory if it is large enough
+     */
+    public static Reader open(Path path) throws IOException {
+        long size = Files.size(path);
+        if(size >= MAP_THRESHOLD && size <= Integer.MAX_VALUE)
+            return new MappedSourceReader(path);
+        return new BufferedReader(new InputStreamReader(Files.newInputStream(path), newDecoder()));
+    }
+
+    /**
+     * reads all lines of a source file like {@link #open(Path)} decodes them
+     */
+    public static List<String> readAllLines(Path path) throws IOException {
+        try (BufferedReader reader = new BufferedReader(open(path))) {
+            List<String> lines = new ArrayList<>();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * @return a UTF-8 decoder that replaces invalid input
+     */
+    private static CharsetDecoder newDecoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if(finished)
+            return -1;
+        if(len == 0)
+            return 0;
+
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        if(mapped.hasRemaining()) {
+            CoderResult result = decoder.decode(mapped, out, true);
+            if(result.isError())
+                result.throwException();
+        }
+        if(!mapped.hasRemaining() && !decoder.flush(out).isOverflow())
+            finished = true;
+
+        int read = out.position() - off;
+        return read == 0 && finished ? -1 : read;
+    }
+
+    @Override
+    public void close() {
+        // the mapping is released by the garbage collector
+    }
+
+}
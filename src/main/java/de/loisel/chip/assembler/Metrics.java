@@ -0,0 +1,36 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+/**
+ * Receives the statistics of every assembler run.
+ * Implementations are called from the assembling threads
+ * and have to be thread safe.
+ */
+@FunctionalInterface
+public interface Metrics {
+
+    /**
+     * discards everything. An assembler without metrics
+     * does not time its phases at all.
+     */
+    Metrics NONE = stats -> { };
+
+    void record(AssemblyStats stats);
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adds up the statistics of many assembler runs.
+ * Can be shared by all threads of a batch or a server.
+ */
+public class MetricsRegistry implements Metrics {
+
+    /**
+     * latency histogram with one bucket per power of two nanoseconds
+     */
+    public static class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos) - (nanos == 0 ? 0 : 1));
+            count.increment();
+            max.accumulate(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return upper bound of the bucket that holds the quantile, at most the maximum
+         */
+        public long percentile(double quantile) {
+            long total = count();
+            if(total == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if(seen >= rank && seen > 0)
+                    return Math.min(i == Long.SIZE - 1 ? Long.MAX_VALUE : (2L << i) - 1, max());
+            }
+            return max();
+        }
+    }
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder labels = new LongAdder();
+    private final LongAdder fixups = new LongAdder();
+    private final LongAdder removed = new LongAdder();
+    private final LongAdder warnings = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private final AtomicLongArray statements = new AtomicLongArray(Mnemonic.values().length);
+
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+
+    private final Histogram latency = new Histogram();
+
+    @Override
+    public void record(AssemblyStats stats) {
+        files.increment();
+        lines.add(stats.lines);
+        bytes.add(stats.bytes);
+        labels.add(stats.labels);
+        fixups.add(stats.fixups);
+        removed.add(stats.removed);
+        warnings.add(stats.warnings);
+        errors.add(stats.errors);
+
+        for (Mnemonic mnemonic : Mnemonic.values()) {
+            int count = stats.statements(mnemonic);
+            if(count != 0)
+                statements.addAndGet(mnemonic.ordinal(), count);
+        }
+        for (Phase phase : Phase.values()) {
+            phaseNanos.addAndGet(phase.ordinal(), stats.nanos(phase));
+        }
+        latency.record(stats.nanos);
+    }
+
+    public long files() {
+        return files.sum();
+    }
+
+    public long lines() {
+        return lines.sum();
+    }
+
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    public long labels() {
+        return labels.sum();
+    }
+
+    public long fixups() {
+        return fixups.sum();
+    }
+
+    /**
+     * @return bytes the optimizer removed
+     */
+    public long removed() {
+        return removed.sum();
+    }
+
+    public long warnings() {
+        return warnings.sum();
+    }
+
+    public long errors() {
+        return errors.sum();
+    }
+
+    public long statements(Mnemonic mnemonic) {
+        return statements.get(mnemonic.ordinal());
+    }
+
+    public long nanos(Phase phase) {
+        return phaseNanos.get(phase.ordinal());
+    }
+
+    /**
+     * @return histogram of the time per file
+     */
+    public Histogram latency() {
+        return latency;
+    }
+
+    public void report(PrintStream out) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Metrics: %d files, %d lines, %d bytes, %d labels, %d fixups, "
+                + "%d warnings, %d errors%n",
+                files(), lines(), bytes(), labels(), fixups(), warnings(), errors()));
+        if(removed() > 0)
+            report.append(String.format("  optimizer removed %d bytes%n", removed()));
+
+        long total = 0;
+        for (Phase phase : Phase.values()) {
+            total += nanos(phase);
+        }
+        for (Phase phase : Phase.values()) {
+            report.append(String.format("  %-12s %10.3f ms %5.1f%%%n", phase.label, nanos(phase) / 1e6,
+                    total > 0 ? nanos(phase) * 100.0 / total : 0.0));
+        }
+
+        report.append(String.format("  latency per file: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                latency.percentile(0.5) / 1e6, latency.percentile(0.9) / 1e6,
+                latency.percentile(0.99) / 1e6, latency.max() / 1e6));
+
+        report.append("  statements:");
+        for (Mnemonic mnemonic : Mnemonic.values()) {
+            long count = statements(mnemonic);
+            if(count != 0)
+                report.append(' ').append(mnemonic.name).append('=').append(count);
+        }
+        out.println(report);
+    }
+
+}
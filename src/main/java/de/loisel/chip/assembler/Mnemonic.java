@@ -0,0 +1,72 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * All mnemonics known to the assembler
+ */
+public enum Mnemonic {
+    DB("DB", true),             // Only for assembler. Puts the following hex bytes in program
+    DEFINE("define", true),     // Defines a constant: define NAME value
+    EQU("EQU", true),           // Defines a constant: NAME EQU value
+    INCLUDE("INCLUDE", true),   // Assembles another source file in place
+    MACRO("MACRO", true),       // Starts the definition of a macro: MACRO name param, ...
+    ENDM("ENDM", true),         // Ends the definition of a macro
+    // instructions:
+    CLS("CLS"), RET("RET"), JP("JP"), CALL("CALL"), JE("JE"),
+    JNE("JNE"), LD("LD"), ADD("ADD"), OR("OR"), AND("AND"),
+    XOR("XOR"), SUB("SUB"), SHR("SHR"), SUBN("SUBN"), SHL("SHL"),
+    RND("RND"), DRW("DRW"), JKP("JKP"), JKNP("JKNP"), EXIT("EXIT");
+
+    private static final Map<String, Mnemonic> BY_NAME = new HashMap<>();
+
+    static {
+        for (Mnemonic mnemonic : values()) {
+            BY_NAME.put(mnemonic.name, mnemonic);
+        }
+    }
+
+    /**
+     * name as written in the source
+     */
+    public final String name;
+
+    /**
+     * true for assembler directives that do not map to an opcode
+     */
+    public final boolean directive;
+
+    Mnemonic(String name) {
+        this(name, false);
+    }
+
+    Mnemonic(String name, boolean directive) {
+        this.name = name;
+        this.directive = directive;
+    }
+
+    /**
+     * @return the mnemonic or null if the name is unknown
+     */
+    public static Mnemonic of(String name) {
+        return BY_NAME.get(name);
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Relocatable output of one separately assembled source.
+ * The code starts at address 0 of the module. Every label reference
+ * is a relocation that the {@link Linker} patches once it knows where
+ * the module and the referenced label end up. Constants are local to
+ * their module and already written into the code.
+ */
+public final class ObjectModule {
+
+    /**
+     * "LCO4", marks an object file of this format
+     */
+    private static final int MAGIC = 0x4C434F34;
+
+    public static final String EXTENSION = ".lco";
+
+    /**
+     * a location in the code that has to hold the address of a symbol
+     * or the value of an expression over symbols
+     */
+    public static final class Relocation {
+
+        /**
+         * offset of the address word or value in the module's code
+         */
+        public final int offset;
+
+        /**
+         * symbol whose address is written as word, null for an expression
+         */
+        public final String symbol;
+
+        /**
+         * expression whose value is written, null for a symbol
+         */
+        public final Expression expression;
+
+        /**
+         * 1 for a byte, 2 for a word
+         */
+        public final int width;
+
+        public Relocation(int offset, String symbol) {
+            this.offset = offset;
+            this.symbol = symbol;
+            this.expression = null;
+            this.width = 2;
+        }
+
+        public Relocation(int offset, Expression expression, int width) {
+            this.offset = offset;
+            this.symbol = null;
+            this.expression = expression;
+            this.width = width;
+        }
+    }
+
+    private final String name;
+
+    private final byte[] code;
+
+    private final int entry;
+
+    private final Map<String, Integer> exports;
+
+    private final List<Relocation> relocations;
+
+    private final List<Diagnostic> diagnostics;
+
+    /**
+     * @param entry offset of the first instruction that may start the program, -1 if there is none
+     * @param exports offset of every label defined in the module
+     */
+    public ObjectModule(String name, byte[] code, int entry, Map<String, Integer> exports,
+                        List<Relocation> relocations, List<Diagnostic> diagnostics) {
+        this.name = name;
+        this.code = code.clone();
+        this.entry = entry;
+        this.exports = Map.copyOf(exports);
+        this.relocations = List.copyOf(relocations);
+        this.diagnostics = List.copyOf(diagnostics);
+    }
+
+    /**
+     * turns the outcome of a run without reset vector into a module
+     */
+    static ObjectModule of(String name, AssemblyContext context) {
+        SymbolTable symbols = context.symbols;
+        Map<String, Integer> exports = new HashMap<>();
+        for (int id = 0; id < symbols.size(); id++) {
+            if(symbols.isDefined(id) && !symbols.isConstant(id))
+                exports.put(symbols.name(id), symbols.address(id));
+        }
+
+        // uses of constants are resolved right away
+        byte[] code = context.emitter.toByteArray();
+        List<Diagnostic> diagnostics = new ArrayList<>(context.diagnostics);
+        ToIntFunction<String> constants = symbol -> {
+            int id = symbols.find(symbol);
+            return id >= 0 && symbols.isConstant(id) ? symbols.address(id) : SymbolTable.UNDEFINED;
+        };
+
+        List<Relocation> relocations = new ArrayList<>(symbols.fixupCount());
+        for (int i = 0; i < symbols.fixupCount(); i++) {
+            int id = symbols.fixupId(i);
+            int location = symbols.fixupLocation(i);
+            if(symbols.isConstant(id))
+                patch(code, location, 2, symbols.address(id));
+            else
+                relocations.add(new Relocation(location, symbols.name(id)));
+        }
+
+        for (Expression.Fixup fixup : symbols.expressionFixups()) {
+            Expression bound;
+            try {
+                bound = fixup.expression.bind(constants);
+            } catch (ArithmeticException e) {
+                bound = null;
+            }
+
+            if(bound == null || bound.isConstant()) {
+                int value = fixup.resolve(constants, diagnostics::add);
+                if(value != SymbolTable.UNDEFINED)
+                    patch(code, fixup.location, fixup.width, value);
+            } else {
+                relocations.add(new Relocation(fixup.location, bound, fixup.width));
+            }
+        }
+        return new ObjectModule(name, code, context.entry, exports, relocations, diagnostics);
+    }
+
+    static void patch(byte[] code, int location, int width, int value) {
+        if(width == 1) {
+            code[location] = (byte) value;
+        } else {
+            code[location] = (byte) (value >>> 8);
+            code[location + 1] = (byte) value;
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public byte[] code() {
+        return code.clone();
+    }
+
+    public int size() {
+        return code.length;
+    }
+
+    /**
+     * @return offset of the first instruction that may start the program, -1 if there is none
+     */
+    public int entry() {
+        return entry;
+    }
+
+    /**
+     * @return offset of every label defined in the module by name
+     */
+    public Map<String, Integer> exports() {
+        return exports;
+    }
+
+    public List<Relocation> relocations() {
+        return relocations;
+    }
+
+    /**
+     * @return symbols that are used but not defined in this module
+     */
+    public Set<String> imports() {
+        Set<String> imports = new TreeSet<>();
+        for (Relocation relocation : relocations) {
+            if(relocation.symbol != null && !exports.containsKey(relocation.symbol))
+                imports.add(relocation.symbol);
+            for (int i = 0; relocation.expression != null && i < relocation.expression.symbolCount(); i++) {
+                if(!exports.containsKey(relocation.expression.symbol(i)))
+                    imports.add(relocation.expression.symbol(i));
+            }
+        }
+        return imports;
+    }
+
+    public List<Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
+    public boolean hasErrors() {
+        for (Diagnostic diagnostic : diagnostics) {
+            if(diagnostic.isError())
+                return true;
+        }
+        return false;
+    }
+
+    public void writeTo(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        out.writeInt(MAGIC);
+        out.writeUTF(name);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeInt(entry);
+
+        out.writeInt(exports.size());
+        for (Map.Entry<String, Integer> export : exports.entrySet()) {
+            out.writeUTF(export.getKey());
+            out.writeInt(export.getValue());
+        }
+
+        // every symbol name is written once, relocations refer to it by index
+        Map<String, Integer> symbols = new LinkedHashMap<>();
+        for (Relocation relocation : relocations) {
+            if(relocation.symbol != null)
+                symbols.putIfAbsent(relocation.symbol, symbols.size());
+            for (int i = 0; relocation.expression != null && i < relocation.expression.symbolCount(); i++) {
+                symbols.putIfAbsent(relocation.expression.symbol(i), symbols.size());
+            }
+        }
+        out.writeInt(symbols.size());
+        for (String symbol : symbols.keySet()) {
+            out.writeUTF(symbol);
+        }
+        out.writeInt(relocations.size());
+        for (Relocation relocation : relocations) {
+            out.writeInt(relocation.offset);
+            out.writeBoolean(relocation.expression != null);
+            if(relocation.expression == null) {
+                out.writeInt(symbols.get(relocation.symbol));
+            } else {
+                out.writeByte(relocation.width);
+                relocation.expression.writeTo(out, symbols::get);
+            }
+        }
+
+        out.writeInt(diagnostics.size());
+        for (Diagnostic diagnostic : diagnostics) {
+            diagnostic.writeTo(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * @throws IOException if the input is not an object module
+     */
+    public static ObjectModule readFrom(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if(in.readInt() != MAGIC)
+            throw new IOException("Not a Lo-Chip object module");
+
+        String name = in.readUTF();
+        byte[] code = new byte[in.readInt()];
+        in.readFully(code);
+        int entry = in.readInt();
+
+        Map<String, Integer> exports = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            String symbol = in.readUTF();
+            exports.put(symbol, in.readInt());
+        }
+
+        String[] symbols = new String[in.readInt()];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = in.readUTF();
+        }
+        List<Relocation> relocations = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            int offset = in.readInt();
+            Relocation relocation;
+            if(in.readBoolean()) {
+                int width = in.readByte();
+                relocation = new Relocation(offset, Expression.readFrom(in, symbols), width);
+            } else {
+                int symbol = in.readInt();
+                if(symbol < 0 || symbol >= symbols.length)
+                    throw new IOException("Broken relocation in object module " + name);
+                relocation = new Relocation(offset, symbols[symbol]);
+            }
+            if(offset < 0 || offset + relocation.width > code.length || relocation.width < 1 || relocation.width > 2)
+                throw new IOException("Broken relocation in object module " + name);
+            relocations.add(relocation);
+        }
+
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            diagnostics.add(Diagnostic.readFrom(in));
+        }
+
+        return new ObjectModule(name, code, entry, exports, relocations, diagnostics);
+    }
+
+}
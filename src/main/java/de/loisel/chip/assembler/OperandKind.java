@@ -0,0 +1,73 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+/**
+ * Class of a single operand token. The {@link Lexer} classifies every token once,
+ * the instruction table only compares kinds.
+ */
+public enum OperandKind {
+    REG_X("Rx"),
+    REG_Y("Ry"),
+    I("I"),
+    F("F"),
+    DT("DT"),
+    ST("ST"),
+    K("K"),
+    B("B"),
+    RXRY("RxRy"),
+    ONE("1"),
+    /**
+     * hex literal like $0F
+     */
+    HEX(null),
+    /**
+     * name of a label
+     */
+    IDENT(null),
+    /**
+     * expression like label+2 or HIGH(sprite)
+     */
+    EXPR(null),
+    /**
+     * text in double quotes like "lib.asm"
+     */
+    STRING(null),
+    INVALID(null);
+
+    /**
+     * keyword as written in the source, null for value operands
+     */
+    public final String keyword;
+
+    OperandKind(String keyword) {
+        this.keyword = keyword;
+    }
+
+    public static boolean isOperator(char c) {
+        return "+-*/%&|^~<>()".indexOf(c) >= 0;
+    }
+
+    public static boolean isIdentifierStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    public static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || (c >= '0' && c <= '9');
+    }
+
+}
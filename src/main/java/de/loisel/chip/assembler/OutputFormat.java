@@ -0,0 +1,165 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Formats of the {@link OutputWriter} for flashing tools and firmware builds.
+ * Text formats are encoded in chunks into a small buffer, the program itself is never copied.
+ */
+public enum OutputFormat implements OutputWriter.Format {
+
+    /**
+     * the program as it is
+     */
+    BIN(".bin") {
+        @Override
+        public void write(ByteBuffer program, WritableByteChannel channel) throws IOException {
+            OutputWriter.writeFully(program, channel);
+        }
+    },
+
+    /**
+     * the program followed by zeros up to the size of the Lo-Chip's memory
+     */
+    PADDED(".img") {
+        @Override
+        public void write(ByteBuffer program, WritableByteChannel channel) throws IOException {
+            int padding = CodeEmitter.CAPACITY - program.remaining();
+            OutputWriter.writeFully(program, channel);
+            ByteBuffer zeros = ByteBuffer.allocate(CHUNK);
+            while (padding > 0) {
+                zeros.clear().limit(Math.min(padding, CHUNK));
+                padding -= zeros.remaining();
+                OutputWriter.writeFully(zeros, channel);
+            }
+        }
+    },
+
+    /**
+     * Intel HEX with data records of 16 bytes and an end of file record
+     */
+    HEX(".hex") {
+        @Override
+        public void write(ByteBuffer program, WritableByteChannel channel) throws IOException {
+            ByteBuffer text = ByteBuffer.allocate(CHUNK);
+            for (int address = 0; program.hasRemaining(); address += HEX_RECORD_SIZE) {
+                int length = Math.min(HEX_RECORD_SIZE, program.remaining());
+                if(text.remaining() < 12 + 2 * length)
+                    flush(text, channel);
+
+                int checksum = length + (address >>> 8) + address + HEX_DATA;
+                text.put((byte) ':');
+                putHex(text, length);
+                putHex(text, address >>> 8);
+                putHex(text, address);
+                putHex(text, HEX_DATA);
+                for (int i = 0; i < length; i++) {
+                    int value = program.get() & 0xFF;
+                    checksum += value;
+                    putHex(text, value);
+                }
+                putHex(text, -checksum);
+                text.put((byte) '\n');
+            }
+            if(text.remaining() < 12)
+                flush(text, channel);
+            text.put(":00000001FF\n".getBytes(StandardCharsets.US_ASCII));
+            flush(text, channel);
+        }
+    },
+
+    /**
+     * C header with the program as array of bytes
+     */
+    C_HEADER(".h") {
+        @Override
+        public void write(ByteBuffer program, WritableByteChannel channel) throws IOException {
+            ByteBuffer text = ByteBuffer.allocate(CHUNK);
+            text.put(("/* Lo-Chip program, generated by lochip-asm " + Assembler.VERSION + " */\n"
+                    + "#include <stdint.h>\n\n"
+                    + "#define LOCHIP_PROGRAM_SIZE " + program.remaining() + "\n\n"
+                    + "static const uint8_t lochip_program[LOCHIP_PROGRAM_SIZE] = {")
+                    .getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; program.hasRemaining(); i++) {
+                if(text.remaining() < 16)
+                    flush(text, channel);
+                if(i > 0)
+                    text.put((byte) ',');
+                if(i % C_BYTES_PER_LINE == 0)
+                    text.put((byte) '\n').put((byte) ' ').put((byte) ' ').put((byte) ' ').put((byte) ' ');
+                else
+                    text.put((byte) ' ');
+                text.put((byte) '0').put((byte) 'x');
+                putHex(text, program.get());
+            }
+            if(text.remaining() < 8)
+                flush(text, channel);
+            text.put("\n};\n".getBytes(StandardCharsets.US_ASCII));
+            flush(text, channel);
+        }
+    };
+
+    private static final int CHUNK = 8192;
+
+    private static final int HEX_RECORD_SIZE = 16;
+    private static final int HEX_DATA = 0x00;
+
+    private static final int C_BYTES_PER_LINE = 12;
+
+    private static final byte[] DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final String extension;
+
+    OutputFormat(String extension) {
+        this.extension = extension;
+    }
+
+    @Override
+    public String extension() {
+        return extension;
+    }
+
+    /**
+     * @return the format with the name or extension, case insensitive, or null
+     */
+    public static OutputFormat of(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (OutputFormat format : values()) {
+            if(format.name().toLowerCase(Locale.ROOT).equals(lower) || format.extension.equals("." + lower))
+                return format;
+        }
+        return null;
+    }
+
+    private static void putHex(ByteBuffer text, int value) {
+        text.put(DIGITS[(value >>> 4) & 0xF]).put(DIGITS[value & 0xF]);
+    }
+
+    private static void flush(ByteBuffer text, WritableByteChannel channel) throws IOException {
+        text.flip();
+        OutputWriter.writeFully(text, channel);
+        text.clear();
+    }
+
+}
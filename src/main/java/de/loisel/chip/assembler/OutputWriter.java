@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes assembled programs to files.
+ * The program is encoded into a temporary file next to the output, which is
+ * then moved over the output in one step. Readers see either the old or the
+ * new file, never a missing or half written one. The new file keeps the
+ * permissions of the old one, a new output gets the default permissions.
+ */
+public class OutputWriter {
+
+    /**
+     * encoding of a program in a file
+     */
+    public interface Format {
+
+        String name();
+
+        /**
+         * @return file extension including the dot
+         */
+        String extension();
+
+        /**
+         * encodes the program from its position to its limit into the channel
+         */
+        void write(ByteBuffer program, WritableByteChannel channel) throws IOException;
+    }
+
+    private static final OutputWriter RAW = new OutputWriter(OutputFormat.BIN, false);
+
+    private final Format format;
+
+    private final boolean fsync;
+
+    /**
+     * @param fsync true to force the content to the disk before the output is replaced
+     */
+    public OutputWriter(Format format, boolean fsync) {
+        this.format = format;
+        this.fsync = fsync;
+    }
+
+    /**
+     * @return a writer for plain binaries without fsync
+     */
+    public static OutputWriter raw() {
+        return RAW;
+    }
+
+    public Format format() {
+        return format;
+    }
+
+    public void write(Path output, ByteBuffer program) throws IOException {
+        Path temp = createTemp(output.toAbsolutePath());
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                format.write(program.duplicate(), channel);
+                if(fsync)
+                    channel.force(true);
+            }
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * creates an empty file next to the output. Unlike {@link Files#createTempFile}
+     * it gets the permissions of the output or the default ones of a new file.
+     */
+    private static Path createTemp(Path output) throws IOException {
+        while (true) {
+            Path temp = output.resolveSibling(output.getFileName() + "."
+                    + Integer.toHexString(ThreadLocalRandom.current().nextInt()) + ".tmp");
+            try {
+                Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+
+            PosixFileAttributeView view = Files.getFileAttributeView(output, PosixFileAttributeView.class);
+            if(view != null && Files.exists(output)) {
+                try {
+                    Files.setPosixFilePermissions(temp, view.readAttributes().permissions());
+                } catch (IOException e) {
+                    Files.deleteIfExists(temp);
+                    throw e;
+                }
+            }
+            return temp;
+        }
+    }
+
+    /**
+     * writes the whole buffer, channels may take less than asked for
+     */
+    static void writeFully(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
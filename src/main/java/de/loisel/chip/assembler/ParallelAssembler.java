@@ -0,0 +1,264 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Assembles one large source on several threads.
+ * The source is split into chunks of lines that are encoded in parallel,
+ * each with addresses relative to its own start. A prefix sum over the
+ * chunk sizes gives every chunk its address, then the chunks are copied
+ * into disjoint regions of the program and their label references are
+ * patched, again in parallel.
+ * The result is the same as the one of {@link Assembler#assemble(List)}.
+ * Sources with macros, with a constant that is defined twice or from a
+ * constant of an earlier chunk, or with an expression that can not be written
+ * are assembled sequentially, because the chunks only see the definitions in
+ * front of them in the same chunk.
+ * So is every source if the assembler has a {@link PeepholeOptimizer}.
+ */
+public class ParallelAssembler {
+
+    /**
+     * bytes in front of the program that hold the reset vector
+     */
+    private static final int HEADER_SIZE = 2;
+
+    public static final int DEFAULT_CHUNK_LINES = 4096;
+
+    /**
+     * one encoded chunk of the source
+     */
+    private static class Chunk {
+
+        final AssemblyContext context = new AssemblyContext();
+
+        /**
+         * address of the chunk in the program
+         */
+        int base;
+
+        /**
+         * global label id of every local label id
+         */
+        int[] ids;
+
+        /**
+         * value of every expression fixup
+         */
+        int[] values;
+    }
+
+    private final Assembler assembler;
+
+    private final ForkJoinPool pool;
+
+    private final int chunkLines;
+
+    public ParallelAssembler(Assembler assembler) {
+        this(assembler, ForkJoinPool.commonPool(), DEFAULT_CHUNK_LINES);
+    }
+
+    public ParallelAssembler(Assembler assembler, ForkJoinPool pool, int chunkLines) {
+        if(chunkLines < 1)
+            throw new IllegalArgumentException("Chunks need at least one line");
+        this.assembler = assembler;
+        this.pool = pool;
+        this.chunkLines = chunkLines;
+    }
+
+    public AssemblyResult assemble(Path source) throws IOException {
+        return assemble(MappedSourceReader.readAllLines(source), source);
+    }
+
+    public AssemblyResult assemble(List<String> file) {
+        return assemble(file, null);
+    }
+
+    /**
+     * @param origin file the lines were read from, includes are resolved against it
+     */
+    private AssemblyResult assemble(List<String> file, Path origin) {
+        int chunkCount = (file.size() + chunkLines - 1) / chunkLines;
+        // the optimizer needs the instructions of the whole program, an error limit the order of the errors
+        if(chunkCount < 2 || assembler.optimizer() != null || assembler.maxErrors() != Assembler.NO_ERROR_LIMIT)
+            return assembler.assembleLines(file, origin, null);
+
+        // encode every chunk relative to its own start
+        List<Chunk> chunks = new ArrayList<>(chunkCount);
+        List<Callable<Chunk>> encoders = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            int from = i * chunkLines;
+            List<String> lines = file.subList(from, Math.min(from + chunkLines, file.size()));
+            encoders.add(() -> encode(lines, from + 1, origin));
+        }
+        for (Chunk chunk : invokeAll(encoders)) {
+            chunks.add(chunk);
+        }
+
+        // prefix sum of the chunk sizes
+        int size = HEADER_SIZE;
+        for (Chunk chunk : chunks) {
+            if(chunk.context.emitter.overflowed() || !chunk.context.macros.isEmpty() || chunk.context.macro != null
+                    || needsEarlierConstants(chunk))
+                return assembler.assembleLines(file, origin, null);
+            chunk.base = size;
+            size += chunk.context.emitter.position();
+        }
+        if(size > CodeEmitter.CAPACITY) {
+            // let the sequential pass report where the program stopped fitting
+            return assembler.assembleLines(file, origin, null);
+        }
+
+        // merge the labels in source order, a label can only be defined once
+        SymbolTable symbols = new SymbolTable();
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        int entry = 0;
+        for (Chunk chunk : chunks) {
+            SymbolTable local = chunk.context.symbols;
+            chunk.ids = new int[local.size()];
+            for (int id = 0; id < local.size(); id++) {
+                int global = symbols.intern(local.name(id), local.source(id), local.line(id));
+                if(local.isConstant(id)) {
+                    // a constant can not be defined again, which a chunk can not know
+                    if(symbols.isDefined(global))
+                        return assembler.assembleLines(file, origin, null);
+                    symbols.defineConstant(global, local.address(id));
+                } else if(local.isDefined(id)) {
+                    // the sequential pass reports a label that an earlier chunk defined
+                    if(symbols.isDefined(global))
+                        return assembler.assembleLines(file, origin, null);
+                    symbols.define(global, chunk.base + local.address(id));
+                }
+                chunk.ids[id] = global;
+            }
+            if(entry == 0 && chunk.context.entry >= 0)
+                entry = chunk.base + chunk.context.entry;
+            diagnostics.addAll(chunk.context.diagnostics);
+        }
+        for (int id = 0; id < symbols.size(); id++) {
+            if(!symbols.isDefined(id))
+                diagnostics.add(new Diagnostic(DiagnosticCode.LABEL_NOT_FOUND, symbols.source(id), symbols.line(id),
+                        0, symbols.name(id), symbols.line(id)));
+        }
+
+        // the sequential pass reports invalid values of constants where they are used
+        int reported = diagnostics.size();
+        for (Chunk chunk : chunks) {
+            List<Expression.Fixup> fixups = chunk.context.symbols.expressionFixups();
+            chunk.values = new int[fixups.size()];
+            for (int i = 0; i < chunk.values.length; i++) {
+                chunk.values[i] = fixups.get(i).resolve(symbols::value, diagnostics::add);
+            }
+        }
+        if(diagnostics.size() > reported)
+            return assembler.assembleLines(file, origin, null);
+
+        // copy the chunks into their regions and patch the label addresses
+        byte[] program = new byte[size];
+        program[0] = (byte) (entry >>> 8);
+        program[1] = (byte) entry;
+        List<Callable<Chunk>> writers = new ArrayList<>(chunkCount);
+        for (Chunk chunk : chunks) {
+            writers.add(() -> write(chunk, symbols, program));
+        }
+        invokeAll(writers);
+
+        return AssemblyResult.of(program, symbols.toMap(), diagnostics);
+    }
+
+    /**
+     * @return true if the chunk could not define a constant, which may use a constant of an earlier chunk
+     */
+    private static boolean needsEarlierConstants(Chunk chunk) {
+        for (Diagnostic diagnostic : chunk.context.diagnostics) {
+            if(diagnostic.code == DiagnosticCode.CONSTANT_NOT_KNOWN)
+                return true;
+        }
+        return false;
+    }
+
+    private Chunk encode(List<String> lines, int firstLine, Path origin) throws IOException {
+        Chunk chunk = new Chunk();
+        if(origin != null)
+            chunk.context.files.push(origin.toAbsolutePath().normalize());
+        assembler.encodeAll(Lexer.of(lines, firstLine), chunk.context);
+        return chunk;
+    }
+
+    /**
+     * only reads the shared symbols and only writes the chunk's own region of the program
+     */
+    private static Chunk write(Chunk chunk, SymbolTable symbols, byte[] program) {
+        CodeEmitter emitter = chunk.context.emitter;
+        emitter.copyTo(program, chunk.base);
+
+        SymbolTable local = chunk.context.symbols;
+        for (int i = 0; i < local.fixupCount(); i++) {
+            int address = symbols.address(chunk.ids[local.fixupId(i)]);
+            if(address != SymbolTable.UNDEFINED) {
+                int location = chunk.base + local.fixupLocation(i);
+                program[location] = (byte) (address >>> 8);
+                program[location + 1] = (byte) address;
+            }
+        }
+
+        List<Expression.Fixup> fixups = local.expressionFixups();
+        for (int i = 0; i < chunk.values.length; i++) {
+            int value = chunk.values[i];
+            if(value != SymbolTable.UNDEFINED) {
+                Expression.Fixup fixup = fixups.get(i);
+                int location = chunk.base + fixup.location;
+                if(fixup.width == 1) {
+                    program[location] = (byte) value;
+                } else {
+                    program[location] = (byte) (value >>> 8);
+                    program[location + 1] = (byte) value;
+                }
+            }
+        }
+        return chunk;
+    }
+
+    private List<Chunk> invokeAll(List<Callable<Chunk>> tasks) {
+        try {
+            List<Chunk> chunks = new ArrayList<>(tasks.size());
+            for (Future<Chunk> future : pool.invokeAll(tasks)) {
+                chunks.add(future.get());
+            }
+            return chunks;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Assembling was interrupted", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw new UncheckedIOException((IOException) e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.util.List;
+
+/**
+ * Optional pass that rewrites the emitted program before the labels are patched in.
+ * If enabled, the pass first strips the code that can not be reached from the
+ * entry point with the {@link DeadCodeEliminator}. Then it runs its rules over
+ * the {@link InstructionList} of the program until none of them changes anything.
+ * Afterwards the remaining code is moved together and every label, fixup and
+ * the reset vector is moved along with it.
+ * Literal addresses are taken as they are written, a warning points out the
+ * ones that lead into code that was moved.
+ * Only whole programs are optimized, relocatable modules are left as they are.
+ */
+public class PeepholeOptimizer {
+
+    /**
+     * a rewrite of the program at a single instruction
+     */
+    public interface Rule {
+
+        String name();
+
+        /**
+         * @param op index of an instruction that is not removed
+         * @return true if the rule removed or replaced anything
+         */
+        boolean apply(InstructionList code, int op);
+    }
+
+    /**
+     * maximum number of times the rules run over the whole program
+     */
+    private static final int MAX_ROUNDS = 16;
+
+    /**
+     * size a program may have before unreachable code is stripped from it
+     */
+    static final int MAX_UNSTRIPPED_SIZE = 16 * CodeEmitter.CAPACITY;
+
+    private static final PeepholeOptimizer STANDARD = new PeepholeOptimizer(List.of(PeepholeRule.values()));
+
+    private final List<Rule> rules;
+
+    private final boolean stripUnreachable;
+
+    public PeepholeOptimizer(List<? extends Rule> rules) {
+        this(rules, false);
+    }
+
+    /**
+     * @param stripUnreachable true to remove the code that can not be reached first
+     */
+    public PeepholeOptimizer(List<? extends Rule> rules, boolean stripUnreachable) {
+        this.rules = List.copyOf(rules);
+        this.stripUnreachable = stripUnreachable;
+    }
+
+    /**
+     * @return an optimizer with every {@link PeepholeRule}
+     */
+    public static PeepholeOptimizer standard() {
+        return STANDARD;
+    }
+
+    public List<Rule> rules() {
+        return rules;
+    }
+
+    /**
+     * @return an optimizer with the same rules that strips unreachable code as well
+     */
+    public PeepholeOptimizer stripUnreachable() {
+        return new PeepholeOptimizer(rules, true);
+    }
+
+    /**
+     * @return true if unreachable code is stripped. A program may be larger
+     * than the memory until then.
+     */
+    public boolean stripsUnreachable() {
+        return stripUnreachable;
+    }
+
+    /**
+     * optimizes the program of a run that recorded its {@link InstructionList}
+     * @return number of bytes the program shrank by
+     */
+    int optimize(AssemblyContext context, InstructionSet instructions) {
+        InstructionList code = context.code;
+        CodeEmitter emitter = context.emitter;
+        SymbolTable symbols = context.symbols;
+        if(code.size() == 0)
+            return 0;
+
+        byte[] program = emitter.toByteArray();
+        code.decode(program, symbols, instructions);
+        if(stripUnreachable)
+            DeadCodeEliminator.strip(code, context);
+
+        boolean changed = true;
+        for (int round = 0; changed && round < MAX_ROUNDS; round++) {
+            changed = false;
+            for (int op = 0; op < code.size(); op++) {
+                for (int i = 0; i < rules.size() && !code.isRemoved(op) && code.instruction(op) != null; i++) {
+                    changed |= rules.get(i).apply(code, op);
+                }
+            }
+        }
+        if(!code.changed())
+            return 0;
+
+        // new address of every instruction, a removed one gets the address of the code behind it
+        int[] moved = new int[code.size()];
+        int position = code.address(0);
+        for (int op = 0; op < code.size(); op++) {
+            moved[op] = position;
+            if(!code.isRemoved(op))
+                position += code.length(op);
+        }
+        int end = code.address(code.size() - 1) + code.length(code.size() - 1);
+        int shrunk = end - position;
+
+        warnAboutMovedAddresses(code, moved, shrunk, context);
+
+        emitter.reset();
+        for (int i = 0; i < code.address(0); i++) {
+            emitter.emit(program[i]);
+        }
+        for (int op = 0; op < code.size(); op++) {
+            if(code.isRemoved(op))
+                continue;
+            int address = code.address(op);
+            int from = address;
+            if(code.instruction(op) != null) {
+                emitter.emit(code.instruction(op).opcode);
+                from++;
+            }
+            for (int i = from; i < address + code.length(op); i++) {
+                emitter.emit(program[i]);
+            }
+        }
+
+        symbols.relocate(address -> move(code, moved, shrunk, address),
+                location -> relocate(code, moved, shrunk, location));
+        if(context.entry >= 0)
+            context.entry = move(code, moved, shrunk, context.entry);
+        return shrunk;
+    }
+
+    /**
+     * @return the new address of code that was emitted at the address,
+     * the address of the code behind it if it was removed.
+     * Memory in front of and behind the program stays where it is.
+     */
+    private static int move(InstructionList code, int[] moved, int shrunk, int address) {
+        int op = code.indexOf(address);
+        if(op == code.size())
+            return address - shrunk;
+        if(op < 0)
+            return address;
+        return code.isRemoved(op) ? moved[op] : moved[op] + address - code.address(op);
+    }
+
+    /**
+     * @return the new location of a fixup or -1 if its instruction was removed
+     */
+    private static int relocate(InstructionList code, int[] moved, int shrunk, int location) {
+        int op = code.indexOf(location);
+        return op >= 0 && op < code.size() && code.isRemoved(op) ? -1 : move(code, moved, shrunk, location);
+    }
+
+    private static void warnAboutMovedAddresses(InstructionList code, int[] moved, int shrunk,
+                                                AssemblyContext context) {
+        for (int op = 0; op < code.size(); op++) {
+            Instruction instruction = code.instruction(op);
+            for (int i = 0; instruction != null && !code.isRemoved(op) && i < instruction.operands.length; i++) {
+                if(instruction.operands[i] != Instruction.Operand.ADDRESS || code.isLabel(op, i)
+                        || code.isExpression(op, i))
+                    continue;
+
+                int address = code.value(op, i);
+                if(address >= code.address(0) && move(code, moved, shrunk, address) != address)
+                    context.add(new Diagnostic(DiagnosticCode.ADDRESS_MOVED, code.source(op), code.line(op), 0,
+                            address, code.line(op)));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(stripUnreachable ? "peephole strip" : "peephole");
+        for (Rule rule : rules) {
+            sb.append(' ').append(rule.name());
+        }
+        return sb.toString();
+    }
+
+}
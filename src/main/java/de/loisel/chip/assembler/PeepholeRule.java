@@ -0,0 +1,113 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.util.Arrays;
+
+import static de.loisel.chip.assembler.Instruction.Operand.*;
+
+/**
+ * Rules of the {@link PeepholeOptimizer} for patterns that generated code is full of.
+ * Rules match instructions by mnemonic and operand signature, so they work for
+ * every instruction set that has these instructions.
+ * Instructions of a jump table that "JP Rx, table" indexes into are never touched.
+ */
+public enum PeepholeRule implements PeepholeOptimizer.Rule {
+
+    /**
+     * "JP next" where next is the following instruction
+     */
+    JUMP_TO_NEXT {
+        @Override
+        public boolean apply(InstructionList code, int op) {
+            if(!is(code.instruction(op), Mnemonic.JP, ADDRESS) || code.isPinned(op) || code.isExpression(op, 0))
+                return false;
+
+            int target = code.value(op, 0);
+            if(target == SymbolTable.UNDEFINED || code.at(target) != code.next(op))
+                return false;
+            code.remove(op);
+            return true;
+        }
+    },
+
+    /**
+     * a load of I that is overwritten by the next instruction
+     */
+    DEAD_LOAD_I {
+        @Override
+        public boolean apply(InstructionList code, int op) {
+            if(!loadsI(code.instruction(op)) || code.isPinned(op))
+                return false;
+
+            int next = code.next(op);
+            if(next == code.size() || !loadsI(code.instruction(next)))
+                return false;
+            code.remove(op);
+            return true;
+        }
+
+        private boolean loadsI(Instruction instruction) {
+            return is(instruction, Mnemonic.LD, I, ADDRESS) || is(instruction, Mnemonic.LD, I, RXRY);
+        }
+    },
+
+    /**
+     * "ADD Rx, $00", adding a byte leaves the flag alone
+     */
+    ADD_ZERO {
+        @Override
+        public boolean apply(InstructionList code, int op) {
+            Instruction instruction = code.instruction(op);
+            if(!(is(instruction, Mnemonic.ADD, REG_X, BYTE) || is(instruction, Mnemonic.ADD, REG_Y, BYTE))
+                    || code.isPinned(op) || code.isExpression(op, 1) || code.value(op, 1) != 0)
+                return false;
+            code.remove(op);
+            return true;
+        }
+    },
+
+    /**
+     * "CALL sub" followed by "RET" becomes "JP sub", which saves a return.
+     * The RET stays if anything jumps to it.
+     */
+    TAIL_CALL {
+        @Override
+        public boolean apply(InstructionList code, int op) {
+            Instruction instruction = code.instruction(op);
+            if(!is(instruction, Mnemonic.CALL, ADDRESS) || code.isPinned(op))
+                return false;
+
+            int next = code.next(op);
+            Instruction jump = code.find(Mnemonic.JP, ADDRESS);
+            if(next == code.size() || !is(code.instruction(next), Mnemonic.RET)
+                    || jump == null || jump.size != instruction.size)
+                return false;
+
+            code.replace(op, jump);
+            if(!code.isTarget(next))
+                code.remove(next);
+            return true;
+        }
+    };
+
+    private static boolean is(Instruction instruction, Mnemonic mnemonic, Instruction.Operand... operands) {
+        return instruction != null && instruction.mnemonic == mnemonic && Arrays.equals(instruction.operands, operands);
+    }
+
+}
@@ -14,36 +14,34 @@
  * limitations under the License.
  */
 
-package de.loisel.chip.assembler;
-
-import java.util.ArrayList;
-import java.util.List;
 
-public class Label {
+package de.loisel.chip.assembler;
 
+/**
+ * Phases of an assembler run that are timed when instrumentation is enabled
+ */
+public enum Phase {
     /**
-     * address referred to by this label
+     * splitting the source into statements, formerly cleanLines
      */
-    public short destAddr;
-
+    LEX("Lexing"),
+    ENCODE("Encoding"),
     /**
-     * addresses where the label gets called
+     * the optional pass of the {@link PeepholeOptimizer}
      */
-    public final List<Short> callLocations = new ArrayList<>();
-
+    OPTIMIZE("Optimization"),
     /**
-     * name of the label
+     * patching label addresses into the program
      */
-    public final String name;
-
+    FIXUP("Label fixup"),
     /**
-     * line in asm file
+     * writing the output file
      */
-    public final int line;
+    IO("Output");
 
-    public Label(String name, int line) {
-        this.name = name;
-        this.line = line;
-    }
+    public final String label;
 
+    Phase(String label) {
+        this.label = label;
+    }
 }
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Re-assembles sources as soon as they or the files they include change.
+ * Every source file below the watched directories is a program, the
+ * directories of included files outside of them are watched as well.
+ * Changes are collected until the file system was quiet for the debounce
+ * time, then only the affected programs are assembled again and their
+ * outputs are replaced atomically.
+ */
+public class SourceWatcher implements Closeable {
+
+    private static final String SOURCE_EXTENSION = ".asm";
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 50;
+
+    private final Assembler assembler;
+
+    private final BatchAssembler outputs;
+
+    private final List<Path> roots;
+
+    private final long debounceMillis;
+
+    private final Consumer<BatchAssembler.Entry> listener;
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    /**
+     * programs by absolute path
+     */
+    private final Map<Path, BatchAssembler.Source> sources = new TreeMap<>();
+
+    /**
+     * programs that include each file
+     */
+    private final Map<Path, Set<Path>> dependents = new HashMap<>();
+
+    /**
+     * files each program includes
+     */
+    private final Map<Path, Set<Path>> includes = new HashMap<>();
+
+    /**
+     * @param outputDir directory the roots are mirrored into, null to write next to the sources
+     * @param listener receives every assembled program
+     */
+    public SourceWatcher(Assembler assembler, List<Path> roots, Path outputDir, long debounceMillis,
+                         Consumer<BatchAssembler.Entry> listener) throws IOException {
+        this.assembler = assembler;
+        this.outputs = new BatchAssembler(assembler, 1, outputDir);
+        this.roots = roots.stream().map(root -> root.toAbsolutePath().normalize()).collect(Collectors.toList());
+        this.debounceMillis = debounceMillis;
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        for (Path root : this.roots) {
+            watchTree(root);
+        }
+    }
+
+    /**
+     * assembles every program once
+     * @return number of assembled programs
+     */
+    public int assembleAll() {
+        for (BatchAssembler.Source source : new ArrayList<>(sources.values())) {
+            assemble(source);
+        }
+        return sources.size();
+    }
+
+    /**
+     * waits for changes and assembles the affected programs
+     * @param timeoutMillis maximum time to wait for the first change
+     * @return number of assembled programs, 0 if nothing changed in time
+     */
+    public int awaitChanges(long timeoutMillis) throws InterruptedException {
+        WatchKey key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if(key == null)
+            return 0;
+
+        Set<Path> changed = new HashSet<>();
+        boolean overflow = false;
+        do {
+            overflow |= drain(key, changed);
+            key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+        } while (key != null);
+
+        if(overflow)
+            return assembleAll();
+
+        Set<Path> affected = new TreeSet<>();
+        for (Path path : changed) {
+            if(sources.containsKey(path))
+                affected.add(path);
+            affected.addAll(dependents.getOrDefault(path, Set.of()));
+        }
+        for (Path path : affected) {
+            assemble(sources.get(path));
+        }
+        return affected.size();
+    }
+
+    /**
+     * assembles every program and then every change until the watcher is closed
+     */
+    public void run() {
+        assembleAll();
+        try {
+            while (true) {
+                awaitChanges(Long.MAX_VALUE);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed by close()
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * collects the changed files of one key and follows new and deleted files
+     * @return true if events were lost
+     */
+    private boolean drain(WatchKey key, Set<Path> changed) {
+        Path directory = directories.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+            changed.add(path);
+            if(event.kind() == ENTRY_DELETE) {
+                forget(path);
+            } else if(isBelowRoot(path)) {
+                try {
+                    if(Files.isDirectory(path))
+                        watchTree(path);
+                    else
+                        addSource(path);
+                } catch (IOException e) {
+                    // gone again, a later event tells
+                }
+            }
+        }
+        if(!key.reset())
+            directories.remove(key);
+        return overflow;
+    }
+
+    private void assemble(BatchAssembler.Source source) {
+        long start = System.nanoTime();
+        Path file = source.file;
+        Path output = outputs.outputFor(source);
+        AssemblyResult result = assembler.assemble(file.toString());
+        try {
+            Path parent = output.toAbsolutePath().getParent();
+            if(parent != null)
+                Files.createDirectories(parent);
+            OutputWriter.raw().write(output, result.buffer());
+        } catch (IOException e) {
+            List<Diagnostic> diagnostics = new ArrayList<>(result.diagnostics());
+            diagnostics.add(new Diagnostic(DiagnosticCode.WRITE_FAILED, null, 0, 0, output.toString(),
+                    e.getMessage()));
+            result = AssemblyResult.of(result.program(), result.symbols(), diagnostics);
+        }
+
+        updateIncludes(file);
+        listener.accept(new BatchAssembler.Entry(source, output, result, System.nanoTime() - start));
+    }
+
+    private void updateIncludes(Path file) {
+        Set<Path> previous = includes.remove(file);
+        if(previous != null) {
+            for (Path include : previous) {
+                Set<Path> programs = dependents.get(include);
+                programs.remove(file);
+                if(programs.isEmpty())
+                    dependents.remove(include);
+            }
+        }
+
+        Set<Path> current;
+        try {
+            current = BuildCache.includes(file);
+        } catch (IOException e) {
+            return;
+        }
+        includes.put(file, current);
+        for (Path include : current) {
+            dependents.computeIfAbsent(include, path -> new HashSet<>()).add(file);
+            Path directory = include.getParent();
+            if(directory != null && Files.isDirectory(directory) && !directories.containsValue(directory)) {
+                try {
+                    watch(directory);
+                } catch (IOException e) {
+                    // the include error is reported by the assembler
+                }
+            }
+        }
+    }
+
+    private void watchTree(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path path : files.collect(Collectors.toList())) {
+                if(Files.isDirectory(path))
+                    watch(path);
+                else
+                    addSource(path);
+            }
+        }
+    }
+
+    private void watch(Path directory) throws IOException {
+        if(!directories.containsValue(directory))
+            directories.put(directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), directory);
+    }
+
+    private void addSource(Path file) {
+        if(!file.getFileName().toString().endsWith(SOURCE_EXTENSION) || sources.containsKey(file))
+            return;
+        for (Path root : roots) {
+            if(file.startsWith(root)) {
+                sources.put(file, new BatchAssembler.Source(root, file));
+                return;
+            }
+        }
+    }
+
+    private void forget(Path file) {
+        sources.remove(file);
+        Set<Path> previous = includes.remove(file);
+        if(previous != null) {
+            for (Path include : previous) {
+                Set<Path> programs = dependents.get(include);
+                programs.remove(file);
+                if(programs.isEmpty())
+                    dependents.remove(include);
+            }
+        }
+    }
+
+    private boolean isBelowRoot(Path path) {
+        for (Path root : roots) {
+            if(path.startsWith(root))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the programs that are assembled when the file changes
+     */
+    public Set<Path> dependents(Path file) {
+        Path path = file.toAbsolutePath().normalize();
+        Set<Path> programs = new TreeSet<>(dependents.getOrDefault(path, Set.of()));
+        if(sources.containsKey(path))
+            programs.add(path);
+        return programs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * watch mode of the command line:
+     * {@code [-o outputDir] [--debounce ms] [--metrics] <dir>...}
+     * Runs until the process is stopped, with "--metrics" it then prints
+     * the statistics of all runs.
+     */
+    public static void main(List<String> args) throws ArgumentsMissingException, IOException {
+        Path outputDir = null;
+        long debounce = DEFAULT_DEBOUNCE_MILLIS;
+        MetricsRegistry metrics = null;
+        List<Path> roots = new ArrayList<>();
+
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if((arg.equals("-o") || arg.equals("--debounce")) && i + 1 >= args.size())
+                throw new ArgumentsMissingException("Missing value for " + arg + "!");
+
+            if(arg.equals("-o"))
+                outputDir = Path.of(args.get(++i));
+            else if(arg.equals("--debounce"))
+                debounce = Long.parseLong(args.get(++i));
+            else if(arg.equals("--metrics"))
+                metrics = new MetricsRegistry();
+            else
+                roots.add(Path.of(arg));
+        }
+
+        if(roots.isEmpty())
+            throw new ArgumentsMissingException("No source directories given!");
+
+        Assembler assembler = new Assembler(InstructionSet.loChip(), metrics == null ? Metrics.NONE : metrics);
+        if(metrics != null) {
+            MetricsRegistry registry = metrics;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> registry.report(System.out)));
+        }
+
+        try (SourceWatcher watcher = new SourceWatcher(assembler, roots, outputDir, debounce, entry -> {
+            System.out.printf("%s %s in %.1f ms%n", entry.failed() ? "FAILED" : "Assembled",
+                    entry.source.file, entry.nanos / 1e6);
+            Assembler.printDiagnostics(entry.result.diagnostics());
+        })) {
+            watcher.run();
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import java.util.Arrays;
+
+/**
+ * Tokens of one source line as produced by the {@link Lexer}.
+ * The same instance is refilled for every line, operand texts are
+ * only turned into strings when asked for.
+ */
+public class Statement {
+
+    /**
+     * line in asm file
+     */
+    public int line;
+
+    /**
+     * name of the label defined on this line or null
+     */
+    public String label;
+
+    /**
+     * mnemonic of this line or null
+     */
+    public Mnemonic mnemonic;
+
+    /**
+     * true if the line contains something that is neither a label nor a mnemonic
+     */
+    public boolean unknown;
+
+    public int operandCount;
+
+    public OperandKind[] kinds = new OperandKind[InstructionSet.MAX_OPERANDS];
+
+    /**
+     * values of hex operands, -1 if a hex value does not fit into 16 bits
+     */
+    public int[] values = new int[InstructionSet.MAX_OPERANDS];
+
+    private int[] starts = new int[InstructionSet.MAX_OPERANDS];
+    private int[] ends = new int[InstructionSet.MAX_OPERANDS];
+
+    private char[] source;
+    private int textStart;
+    private int textEnd;
+
+    void clear(char[] source, int line) {
+        this.source = source;
+        this.line = line;
+        this.label = null;
+        this.mnemonic = null;
+        this.unknown = false;
+        this.operandCount = 0;
+        this.textStart = 0;
+        this.textEnd = 0;
+    }
+
+    void setText(int start, int end) {
+        this.textStart = start;
+        this.textEnd = end;
+    }
+
+    void addOperand(OperandKind kind, int value, int start, int end) {
+        if(operandCount == kinds.length) {
+            int capacity = kinds.length * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            values = Arrays.copyOf(values, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        kinds[operandCount] = kind;
+        values[operandCount] = value;
+        starts[operandCount] = start;
+        ends[operandCount] = end;
+        operandCount++;
+    }
+
+    /**
+     * @return true if the line contained nothing but whitespace and comments
+     */
+    public boolean isEmpty() {
+        return label == null && mnemonic == null && !unknown;
+    }
+
+    /**
+     * @return the source text of an operand
+     */
+    public String operandText(int index) {
+        return new String(source, starts[index], ends[index] - starts[index]);
+    }
+
+    /**
+     * @return the text of a string operand without the quotes
+     */
+    public String stringValue(int index) {
+        return new String(source, starts[index] + 1, ends[index] - starts[index] - 2);
+    }
+
+    /**
+     * @return a copy that does not share the line buffer of the lexer
+     */
+    Statement copy() {
+        Statement copy = new Statement();
+        copy.line = line;
+        copy.label = label;
+        copy.mnemonic = mnemonic;
+        copy.unknown = unknown;
+        copy.operandCount = operandCount;
+        copy.kinds = Arrays.copyOf(kinds, operandCount);
+        copy.values = Arrays.copyOf(values, operandCount);
+        copy.starts = Arrays.copyOf(starts, operandCount);
+        copy.ends = Arrays.copyOf(ends, operandCount);
+
+        int end = textEnd;
+        for (int i = 0; i < operandCount; i++) {
+            end = Math.max(end, ends[i]);
+        }
+        copy.source = Arrays.copyOf(source, end);
+        copy.textStart = textStart;
+        copy.textEnd = textEnd;
+        return copy;
+    }
+
+    /**
+     * @return the chars the operand ranges refer to
+     */
+    char[] source() {
+        return source;
+    }
+
+    int operandStart(int index) {
+        return starts[index];
+    }
+
+    int operandEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * @return column of an operand in its line, starting at 1
+     */
+    int operandColumn(int index) {
+        return starts[index] + 1;
+    }
+
+    /**
+     * @return column of the command in its line, starting at 1
+     */
+    int column() {
+        return textStart + 1;
+    }
+
+    /**
+     * @return the source text of all operands
+     */
+    public String[] operandTexts() {
+        String[] texts = new String[operandCount];
+        for (int i = 0; i < operandCount; i++) {
+            texts[i] = operandText(i);
+        }
+        return texts;
+    }
+
+    /**
+     * @return the source text of the command without label and comment
+     */
+    public String text() {
+        return new String(source, textStart, textEnd - textStart);
+    }
+
+}
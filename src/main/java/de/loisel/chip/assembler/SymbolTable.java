@@ -0,0 +1,379 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Labels and constants of one assembler run.
+ * Every label name is interned to an int id through an open addressed
+ * table. Addresses, lines and fixups are kept in int arrays indexed by
+ * id, so defining, looking up and resolving labels allocates nothing
+ * once the arrays have grown to the size of the program.
+ * Addresses cover the whole 16 bit address space.
+ * Constants share the table with the labels, their value is kept as
+ * address but they are not moved when the code is placed somewhere else.
+ */
+public class SymbolTable {
+
+    /**
+     * address of a label that was referenced but not defined yet
+     */
+    public static final int UNDEFINED = -1;
+
+    /**
+     * id + 1 of the label in each slot, 0 for an empty slot
+     */
+    private int[] slots = new int[64];
+
+    private String[] names = new String[32];
+    private int[] hashes = new int[32];
+    private int[] lines = new int[32];
+    private String[] sources = new String[32];
+    private int[] addresses = new int[32];
+    private boolean[] constants = new boolean[32];
+    private int count;
+
+    /**
+     * fixups as (label id, location of the address word) in insertion order
+     */
+    private int[] fixupIds = new int[64];
+    private int[] fixupLocations = new int[64];
+    private int fixupCount;
+
+    /**
+     * locations that hold the value of an expression, in insertion order
+     */
+    private final List<Expression.Fixup> expressionFixups = new ArrayList<>();
+
+    /**
+     * number of labels, defined or not
+     */
+    public int size() {
+        return count;
+    }
+
+    public int fixupCount() {
+        return fixupCount;
+    }
+
+    /**
+     * @return the id of the label, a new undefined label if it is not known yet
+     * @param line line where the label is seen first
+     */
+    public int intern(String name, int line) {
+        return intern(name, null, line);
+    }
+
+    /**
+     * @param source included file the label is seen first in, null for the assembled source
+     */
+    public int intern(String name, String source, int line) {
+        int hash = name.hashCode();
+        int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if(hashes[id] == hash && names[id].equals(name))
+                return id;
+        }
+        return add(name, hash, source, line, slot);
+    }
+
+    /**
+     * same as {@link #intern(String, int)} for a name given as a range of chars.
+     * The name is only copied if the label is new.
+     */
+    public int intern(char[] chars, int start, int end, int line) {
+        return intern(chars, start, end, null, line);
+    }
+
+    public int intern(char[] chars, int start, int end, String source, int line) {
+        int hash = hash(chars, start, end);
+        int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if(hashes[id] == hash && matches(names[id], chars, start, end))
+                return id;
+        }
+        return add(new String(chars, start, end - start), hash, source, line, slot);
+    }
+
+    /**
+     * @return the id of the label or -1 if it is not known
+     */
+    public int find(String name) {
+        int hash = name.hashCode();
+        int mask = slots.length - 1;
+        for (int slot = spread(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if(hashes[id] == hash && names[id].equals(name))
+                return id;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the id of the label or -1 if it is not known
+     */
+    public int find(char[] chars, int start, int end) {
+        int hash = hash(chars, start, end);
+        int mask = slots.length - 1;
+        for (int slot = spread(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if(hashes[id] == hash && matches(names[id], chars, start, end))
+                return id;
+        }
+        return -1;
+    }
+
+    /**
+     * sets the address of a label, a later definition replaces an earlier one
+     */
+    public void define(int id, int address) {
+        addresses[id] = address;
+    }
+
+    /**
+     * sets the value of a constant
+     * @param value between 0 and $FFFF
+     */
+    public void defineConstant(int id, int value) {
+        addresses[id] = value;
+        constants[id] = true;
+    }
+
+    /**
+     * @return true if the symbol is a constant and not a label
+     */
+    public boolean isConstant(int id) {
+        return constants[id];
+    }
+
+    public boolean isDefined(int id) {
+        return addresses[id] != UNDEFINED;
+    }
+
+    /**
+     * @return the address of the label or {@link #UNDEFINED}
+     */
+    public int address(int id) {
+        return addresses[id];
+    }
+
+    /**
+     * @return the address of a label or the value of a constant by name,
+     * {@link #UNDEFINED} if the symbol is not known or not defined
+     */
+    public int value(String name) {
+        int id = find(name);
+        return id < 0 ? UNDEFINED : addresses[id];
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return line where the label was seen first
+     */
+    public int line(int id) {
+        return lines[id];
+    }
+
+    /**
+     * @return included file where the label was seen first, null for the assembled source
+     */
+    public String source(int id) {
+        return sources[id];
+    }
+
+    /**
+     * remembers that the address of a label has to be written to a location
+     */
+    public void addFixup(int id, int location) {
+        if(fixupCount == fixupIds.length) {
+            fixupIds = Arrays.copyOf(fixupIds, fixupCount * 2);
+            fixupLocations = Arrays.copyOf(fixupLocations, fixupCount * 2);
+        }
+        fixupIds[fixupCount] = id;
+        fixupLocations[fixupCount] = location;
+        fixupCount++;
+    }
+
+    public int fixupId(int index) {
+        return fixupIds[index];
+    }
+
+    public int fixupLocation(int index) {
+        return fixupLocations[index];
+    }
+
+    /**
+     * remembers that the value of an expression has to be written to a location
+     */
+    void addFixup(Expression.Fixup fixup) {
+        expressionFixups.add(fixup);
+    }
+
+    List<Expression.Fixup> expressionFixups() {
+        return expressionFixups;
+    }
+
+    /**
+     * writes the address of every defined label to its fixup locations
+     * @return number of patched locations
+     */
+    public int resolve(CodeEmitter emitter) {
+        int patched = 0;
+        for (int i = 0; i < fixupCount; i++) {
+            int address = addresses[fixupIds[i]];
+            if(address != UNDEFINED) {
+                emitter.patchWord(fixupLocations[i], address);
+                patched++;
+            }
+        }
+        return patched;
+    }
+
+    /**
+     * moves the labels and fixups after code was moved. Constants stay as they are.
+     * @param addresses new address of a label
+     * @param locations new location of a fixup, -1 drops it
+     */
+    void relocate(IntUnaryOperator addresses, IntUnaryOperator locations) {
+        for (int id = 0; id < count; id++) {
+            if(this.addresses[id] != UNDEFINED && !constants[id])
+                this.addresses[id] = addresses.applyAsInt(this.addresses[id]);
+        }
+
+        int kept = 0;
+        for (int i = 0; i < fixupCount; i++) {
+            int location = locations.applyAsInt(fixupLocations[i]);
+            if(location >= 0) {
+                fixupIds[kept] = fixupIds[i];
+                fixupLocations[kept] = location;
+                kept++;
+            }
+        }
+        fixupCount = kept;
+
+        List<Expression.Fixup> fixups = new ArrayList<>(expressionFixups);
+        expressionFixups.clear();
+        for (Expression.Fixup fixup : fixups) {
+            int location = locations.applyAsInt(fixup.location);
+            if(location >= 0)
+                expressionFixups.add(new Expression.Fixup(fixup.expression, location, fixup.width,
+                        fixup.source, fixup.line));
+        }
+    }
+
+    /**
+     * @return address of every defined label by name, without the constants
+     */
+    public Map<String, Integer> toMap() {
+        Map<String, Integer> symbols = new HashMap<>();
+        for (int id = 0; id < count; id++) {
+            if(addresses[id] != UNDEFINED && !constants[id])
+                symbols.put(names[id], addresses[id] & 0xFFFF);
+        }
+        return symbols;
+    }
+
+    /**
+     * forgets all symbols and fixups but keeps the memory for the next run
+     */
+    public void clear() {
+        Arrays.fill(slots, 0);
+        Arrays.fill(names, 0, count, null);
+        Arrays.fill(sources, 0, count, null);
+        count = 0;
+        fixupCount = 0;
+        expressionFixups.clear();
+    }
+
+    private int add(String name, int hash, String source, int line, int slot) {
+        if(count == names.length) {
+            int capacity = count * 2;
+            names = Arrays.copyOf(names, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            sources = Arrays.copyOf(sources, capacity);
+            addresses = Arrays.copyOf(addresses, capacity);
+            constants = Arrays.copyOf(constants, capacity);
+        }
+
+        int id = count++;
+        names[id] = name;
+        hashes[id] = hash;
+        lines[id] = line;
+        sources[id] = source;
+        addresses[id] = UNDEFINED;
+        constants[id] = false;
+
+        // keep the table at most half full
+        if(count * 2 > slots.length)
+            rehash(slots.length * 2);
+        else
+            slots[slot] = id + 1;
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int id = 0; id < count; id++) {
+            int slot = spread(hashes[id]) & (capacity - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * same as {@link String#hashCode()} of the range
+     */
+    private static int hash(char[] chars, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        return hash;
+    }
+
+    private static boolean matches(String name, char[] chars, int start, int end) {
+        if(name.length() != end - start)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if(name.charAt(i) != chars[start + i])
+                return false;
+        }
+        return true;
+    }
+
+}
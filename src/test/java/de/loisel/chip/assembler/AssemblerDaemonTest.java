@@ -0,0 +1,116 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AssemblerDaemonTest {
+
+    @TempDir
+    Path temp;
+
+    private final Assembler assembler = new Assembler();
+
+    private final Path sample = Path.of("src", "test", "resources", "16b-addFunction.asm");
+
+    private void assertSameResult(AssemblyResult expected, AssemblyResult actual) {
+        assertArrayEquals(expected.program(), actual.program());
+        assertEquals(expected.symbols(), actual.symbols());
+        assertEquals(expected.diagnostics().toString(), actual.diagnostics().toString());
+    }
+
+    @Test
+    void servesPathsAndSourceOverUnixSocket() throws IOException {
+        String socket = temp.resolve("lochip.sock").toString();
+        try (AssemblerDaemon daemon = AssemblerDaemon.start(assembler, socket);
+             AssemblerClient client = AssemblerClient.connect(socket)) {
+            assertSameResult(assembler.assemble(sample), client.assemble(sample));
+            assertSameResult(assembler.assemble(Files.readAllLines(sample)), client.assemble(Files.readString(sample)));
+
+            AssemblyResult missing = client.assemble(temp.resolve("missing.asm"));
+            assertTrue(missing.hasErrors());
+            assertEquals(3, daemon.requests());
+        }
+        assertFalse(Files.exists(Path.of(socket)));
+    }
+
+    @Test
+    void servesConcurrentClientsOverTcp() throws Exception {
+        AssemblyResult expected = assembler.assemble(sample);
+        try (AssemblerDaemon daemon = AssemblerDaemon.start(assembler, "0")) {
+            String port = daemon.address().toString().replaceAll(".*:", "");
+            ExecutorService clients = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<List<AssemblyResult>>> futures = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    futures.add(clients.submit(() -> {
+                        List<AssemblyResult> results = new ArrayList<>();
+                        try (AssemblerClient client = AssemblerClient.connect(port)) {
+                            for (int j = 0; j < 25; j++) {
+                                results.add(client.assemble(sample));
+                            }
+                        }
+                        return results;
+                    }));
+                }
+                for (Future<List<AssemblyResult>> future : futures) {
+                    for (AssemblyResult result : future.get()) {
+                        assertSameResult(expected, result);
+                    }
+                }
+            } finally {
+                clients.shutdown();
+            }
+            assertEquals(100, daemon.requests());
+        }
+    }
+
+    @Test
+    void invalidLengthIsAnsweredWithFailure() throws IOException {
+        String socket = temp.resolve("lochip.sock").toString();
+        try (AssemblerDaemon daemon = AssemblerDaemon.start(assembler, socket);
+             SocketChannel channel = SocketChannel.open(daemon.address())) {
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            out.writeInt(AssemblerDaemon.PROTOCOL);
+            out.writeByte(AssemblerDaemon.SOURCE);
+            out.writeInt(Integer.MAX_VALUE);
+            out.flush();
+
+            assertEquals(AssemblerDaemon.FAILED, in.readByte());
+            assertTrue(in.readUTF().contains("Invalid string length"));
+        }
+    }
+
+}
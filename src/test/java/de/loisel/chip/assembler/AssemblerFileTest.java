@@ -17,10 +17,27 @@
 package de.loisel.chip.assembler;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class AssemblerFileTest {
 
@@ -39,7 +56,125 @@ class AssemblerFileTest {
     @Test
     void simpleAsmTest() {
         Assembler assembler = new Assembler();
-        byte[] program = assembler.assemble(resourcePath + SMPL_FILE, resourcePath + SMPL_OUT_FILE);
+        byte[] program = assembler.assemble(resourcePath + SMPL_FILE, resourcePath + SMPL_OUT_FILE).program();
+    }
+
+    @Test
+    void streamingMatchesLineInput() throws IOException {
+        Path source = Path.of(resourcePath + "stack-var-test.asm");
+
+        byte[] streamed = new Assembler().assemble(source).program();
+        byte[] lines = new Assembler().assemble(Files.readAllLines(source)).program();
+
+        assertArrayEquals(lines, streamed);
+    }
+
+    @Test
+    void invalidUtf8IsReplacedInFilesOfAnySize(@TempDir Path temp) throws IOException {
+        byte[] expected = {0x00, 0x02, (byte) 0xE0, (byte) 0xAA};
+        byte[] latin1 = "\tCLS ; caf\u00E9\n\tEXIT\n".getBytes(StandardCharsets.ISO_8859_1);
+        Path small = Files.write(temp.resolve("small.asm"), latin1);
+        Path large = Files.writeString(temp.resolve("large.asm"),
+                "; padding\n".repeat((int) MappedSourceReader.MAP_THRESHOLD / 10 + 1));
+        Files.write(large, latin1, StandardOpenOption.APPEND);
+
+        for (Path source : List.of(small, large)) {
+            assertArrayEquals(expected, new Assembler().assemble(source).program(), source.toString());
+            assertArrayEquals(expected, new ParallelAssembler(new Assembler()).assemble(source).program());
+            assertTrue(BuildCache.includes(source).isEmpty());
+        }
+    }
+
+    @Test
+    void forwardReferencesAreBackpatched() throws IOException {
+        byte[] program = new Assembler().assemble(new StringReader("JP end\nCLS\nend:\nEXIT\n")).program();
+
+        assertArrayEquals(new byte[] {0x00, 0x02, 0x10, 0x00, 0x06, (byte) 0xE0, (byte) 0xAA}, program);
+    }
+
+    @Test
+    void unknownLabelsAreReportedWhenThePassEnds() {
+        AssemblyResult result = new Assembler().assemble(List.of("CALL nowhere", "JP back", "back:", "JP nowhere"));
+
+        assertEquals(1, result.diagnostics().size());
+        assertEquals(1, result.diagnostics().get(0).line);
+        assertArrayEquals(new byte[] {0x00, 0x02, 0x20, 0x00, 0x00, 0x10, 0x00, 0x08, 0x10, 0x00, 0x00},
+                result.program());
+    }
+
+    @Test
+    void labelsInTheUpperHalfOfMemory() throws IOException {
+        // 0x9000 bytes of data push "far" above 0x7FFF
+        StringBuilder source = new StringBuilder("CALL far\nJP far\n");
+        for (int i = 0; i < 0x9000; i++) {
+            source.append("DB $00\n");
+        }
+        source.append("far:\nRET\n");
+
+        AssemblyResult result = new Assembler().assemble(new StringReader(source.toString()));
+        byte[] program = result.program();
+
+        assertFalse(result.hasErrors());
+        assertEquals(0x9008, result.symbols().get("far"));
+        assertArrayEquals(new byte[] {0x20, (byte) 0x90, 0x08, 0x10, (byte) 0x90, 0x08},
+                Arrays.copyOfRange(program, 2, 8));
+    }
+
+    @Test
+    void assemblerIsReusable() {
+        Assembler assembler = new Assembler();
+
+        AssemblyResult first = assembler.assemble(resourcePath + "simple-test.asm");
+        AssemblyResult second = assembler.assemble(resourcePath + "simple-test.asm");
+
+        assertArrayEquals(first.program(), second.program());
+        assertEquals(0x0B, first.symbols().get("main"));
+        assertFalse(first.hasErrors());
+    }
+
+    @Test
+    void sharedAssemblerIsThreadSafe() throws Exception {
+        Assembler assembler = new Assembler();
+        byte[] expected = assembler.assemble(resourcePath + "stack-var-test.asm").program();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<AssemblyResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                futures.add(executor.submit(() -> assembler.assemble(resourcePath + "stack-var-test.asm")));
+            }
+            for (Future<AssemblyResult> future : futures) {
+                assertArrayEquals(expected, future.get().program());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void assemblersOfOneThreadKeepTheirOwnSettings() {
+        List<String> source = List.of("\tFOO", "\tBAR", "\tCLS");
+        Assembler limited = new Assembler().withMaxErrors(1);
+        Assembler unlimited = new Assembler();
+
+        // both run in the context of this thread, one after the other
+        for (int i = 0; i < 2; i++) {
+            assertEquals(2, limited.assemble(source).diagnostics().size());
+            assertEquals(2, unlimited.assemble(source).diagnostics().size());
+            assertEquals(3, unlimited.assemble(source).size());
+        }
+        assertEquals(2, limited.assemble(source).size());
+    }
+
+    @Test
+    void resultKeepsItsOwnProgram() {
+        byte[] program = {0x00, 0x02, (byte) 0xE0};
+        AssemblyResult result = new AssemblyResult(program, Map.of(), List.of());
+
+        program[2] = 0;
+        result.program()[2] = 0;
+        assertEquals((byte) 0xE0, result.program()[2]);
+        assertEquals((byte) 0xE0, result.buffer().get(2));
     }
 
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AssemblySessionTest {
+
+    private final Assembler assembler = new Assembler();
+
+    private List<String> source;
+    private AssemblySession session;
+
+    private void open() throws IOException {
+        source = new ArrayList<>(Files.readAllLines(Path.of("src", "test", "resources", "stack-var-test.asm")));
+        session = new AssemblySession(assembler, source);
+    }
+
+    private void assertMatchesFullAssembly() {
+        AssemblyResult expected = assembler.assemble(source);
+        AssemblyResult actual = session.result();
+
+        assertArrayEquals(expected.program(), actual.program());
+        assertEquals(expected.symbols(), actual.symbols());
+        assertEquals(expected.hasErrors(), actual.hasErrors());
+    }
+
+    @Test
+    void initialStateMatchesFullAssembly() throws IOException {
+        open();
+        assertMatchesFullAssembly();
+    }
+
+    @Test
+    void editChangingInstructionSize() throws IOException {
+        open();
+
+        // LD Rx, $01 -> LD I, hexAdd_y grows by one byte and moves every label behind it
+        int lineNum = source.indexOf("\tLD Rx, $01") + 1;
+        source.set(lineNum - 1, "\tLD I, hexAdd_y");
+        session.update(lineNum, "\tLD I, hexAdd_y");
+        assertMatchesFullAssembly();
+
+        source.set(lineNum - 1, "\tRET");
+        session.update(lineNum, "\tRET");
+        assertMatchesFullAssembly();
+    }
+
+    @Test
+    void insertAndDeleteLines() throws IOException {
+        open();
+
+        List<String> inserted = List.of("extra:", "\tJP extra", "\tCALL decrementStack");
+        source.addAll(5, inserted);
+        session.replace(5, 5, inserted);
+        assertMatchesFullAssembly();
+
+        source.subList(0, 3).clear();
+        session.replace(0, 3, List.of());
+        assertMatchesFullAssembly();
+    }
+
+    @Test
+    void expressionsFollowMovedLabels() {
+        source = new ArrayList<>(List.of("\tLD I, sprite+1", "\tLD Rx, LOW(sprite)", "\tJP $0000",
+                "sprite:", "\tDB $01, HIGH(sprite)"));
+        session = new AssemblySession(assembler, source);
+        assertMatchesFullAssembly();
+
+        source.set(2, "\tCLS");
+        session.update(3, "\tCLS");
+        assertMatchesFullAssembly();
+    }
+
+    @Test
+    void removedLabelIsReported() throws IOException {
+        open();
+
+        int index = source.indexOf("\toverflowAddEnd:");
+        source.set(index, "");
+        session.update(index + 1, "");
+        assertTrue(session.result().hasErrors());
+        assertMatchesFullAssembly();
+
+        source.set(index, "\toverflowAddEnd:");
+        session.update(index + 1, "\toverflowAddEnd:");
+        assertFalse(session.result().hasErrors());
+        assertMatchesFullAssembly();
+    }
+
+    @Test
+    void referencesToARemovedLabelAreCleared() {
+        source = new ArrayList<>(List.of("\tJP end", "\tLD I, end+1", "end:", "\tDB $01, LOW(end)"));
+        session = new AssemblySession(assembler, source);
+        assertMatchesFullAssembly();
+
+        source.set(2, "");
+        session.update(3, "");
+        assertMatchesFullAssembly();
+    }
+
+    @Test
+    void editNearTheTopOnlyEncodesTheEditedLines() {
+        source = new ArrayList<>();
+        source.add("\tJP main");
+        for (int i = 0; i < 1000; i++) {
+            source.add("sub" + i + ":");
+            source.add("\tLD Rx, $" + Integer.toHexString(i & 0xFF));
+            source.add("\tLD I, sub" + (i + 1) / 2 + "+1");
+            source.add("\tRET");
+        }
+        source.add("main:");
+        source.add("\tCALL sub999");
+        source.add("\tLD Rx, $100");
+        session = new AssemblySession(assembler, source);
+        assertMatchesFullAssembly();
+
+        // one line more and one byte less in front of every label and of the broken line
+        int encoded = session.encodedLines;
+        List<String> inserted = List.of("\tCLS", "\tLD I, main");
+        source.remove(2);
+        source.addAll(2, inserted);
+        session.replace(2, 3, inserted);
+        assertEquals(encoded + 2, session.encodedLines);
+        assertMatchesFullAssembly();
+
+        List<Diagnostic> diagnostics = session.result().diagnostics();
+        assertEquals(1, diagnostics.size());
+        assertEquals(source.size(), diagnostics.get(0).line);
+        assertEquals(assembler.assemble(source).diagnostics().get(0).message(), diagnostics.get(0).message());
+
+        // edits across the borders of blocks
+        source.subList(100, 300).clear();
+        session.replace(100, 300, List.of());
+        assertMatchesFullAssembly();
+        List<String> moved = new ArrayList<>(source.subList(0, 150));
+        source.addAll(3000, moved);
+        session.replace(3000, 3000, moved);
+        assertMatchesFullAssembly();
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchAssemblerTest {
+
+    @TempDir
+    Path temp;
+
+    private final Assembler assembler = new Assembler();
+
+    private Path write(String name, String content) throws IOException {
+        Path file = temp.resolve(name);
+        Files.createDirectories(file.getParent());
+        return Files.writeString(file, content);
+    }
+
+    private static List<Path> files(List<BatchAssembler.Source> sources) {
+        List<Path> files = new ArrayList<>();
+        for (BatchAssembler.Source source : sources) {
+            files.add(source.file.toAbsolutePath().normalize());
+        }
+        return files;
+    }
+
+    @Test
+    void collectsDirectoriesGlobsAndManifests() throws IOException {
+        Path a = write("src/a.asm", "\tCLS\n");
+        Path b = write("src/sub/b.asm", "\tCLS\n");
+        write("src/notes.txt", "not a program\n");
+        Path c = write("other/c.asm", "\tCLS\n");
+        Path d = write("other/d.s", "\tCLS\n");
+        write("list.txt", "# programs\nsrc\n\nother/*.asm\n");
+
+        assertEquals(List.of(a, b), files(BatchAssembler.collectSources(List.of(temp.resolve("src").toString()))));
+        assertEquals(List.of(c), files(BatchAssembler.collectSources(List.of(temp + "/other/*.asm"))));
+        assertEquals(List.of(a, b, c), files(BatchAssembler.collectSources(List.of("@" + temp.resolve("list.txt")))));
+        assertEquals(List.of(d), files(BatchAssembler.collectFiles(List.of(temp.resolve("other").toString()), ".s")));
+
+        BatchAssembler.Source source = BatchAssembler.collectSources(List.of(temp.resolve("src").toString())).get(1);
+        assertEquals(temp.resolve("src"), source.root);
+    }
+
+    @Test
+    void outputsMirrorTheSourceTree() {
+        BatchAssembler.Source source = new BatchAssembler.Source(temp.resolve("src"), temp.resolve("src/sub/b.asm"));
+
+        assertEquals(temp.resolve("src/sub/b.bin"), new BatchAssembler(assembler, 1, null).outputFor(source));
+        assertEquals(temp.resolve("out/sub/b.bin"),
+                new BatchAssembler(assembler, 1, temp.resolve("out")).outputFor(source));
+    }
+
+    @Test
+    void entriesKeepTheOrderOfTheSources() throws IOException {
+        for (int i = 0; i < 40; i++) {
+            // later files are shorter, so they tend to finish first
+            write("src/p" + (100 + i) + ".asm", "\tCLS\n".repeat(400 - 10 * i) + "\tLD Rx, $" + i + "\n");
+        }
+        List<BatchAssembler.Source> sources = BatchAssembler.collectSources(List.of(temp.resolve("src").toString()));
+
+        List<BatchAssembler.Entry> entries = new BatchAssembler(assembler, 4, temp.resolve("out")).run(sources);
+
+        assertEquals(sources.size(), entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertSame(sources.get(i), entries.get(i).source);
+            assertFalse(entries.get(i).failed());
+            assertArrayEquals(entries.get(i).result.program(), Files.readAllBytes(entries.get(i).output));
+        }
+    }
+
+    @Test
+    void failuresAreReportedWithTheirReason() throws IOException {
+        write("src/good.asm", "\tCLS\n");
+        write("src/broken.asm", "\tJP nowhere\n");
+        write("src/sub/blocked.asm", "\tCLS\n");
+        // the directory the output of blocked.asm goes into can not be created
+        write("out/sub", "");
+        List<BatchAssembler.Source> sources = BatchAssembler.collectSources(List.of(temp.resolve("src").toString()));
+
+        List<BatchAssembler.Entry> entries = new BatchAssembler(assembler, 2, temp.resolve("out")).run(sources);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int failed = BatchAssembler.printSummary(entries, 1, new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        String report = bytes.toString(StandardCharsets.UTF_8);
+
+        assertEquals(2, failed);
+        assertTrue(entries.get(0).failed());
+        assertFalse(entries.get(1).failed());
+        BatchAssembler.Entry blocked = entries.get(2);
+        assertTrue(blocked.failed());
+        assertEquals(DiagnosticCode.ASSEMBLY_FAILED, blocked.result.diagnostics().get(0).code);
+        assertTrue(report.contains("FAILED " + sources.get(0).file));
+        assertTrue(report.contains("FAILED " + sources.get(2).file));
+        assertTrue(report.contains("FileAlreadyExistsException"), report);
+        assertTrue(report.contains("Assembled 3 files (2 failed)"), report);
+    }
+
+}
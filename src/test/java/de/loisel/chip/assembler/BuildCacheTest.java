@@ -0,0 +1,89 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuildCacheTest {
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void secondRunIsServedFromCache() throws IOException {
+        Path source = temp.resolve("simple-test.asm");
+        Files.copy(Path.of("src", "test", "resources", "simple-test.asm"), source);
+
+        Assembler assembler = new Assembler();
+        BuildCache cache = new BuildCache(temp.resolve("cache"), 1 << 20);
+
+        AssemblyResult first = cache.assemble(assembler, source, temp.resolve("out.bin"));
+        AssemblyResult second = cache.assemble(assembler, source, temp.resolve("out.bin"));
+
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+        assertArrayEquals(first.program(), second.program());
+        assertEquals(first.symbols(), second.symbols());
+        assertArrayEquals(first.program(), Files.readAllBytes(temp.resolve("out.bin")));
+    }
+
+    @Test
+    void keyIgnoresCommentsAndTrailingWhitespace() throws IOException {
+        Path a = Files.writeString(temp.resolve("a.asm"), "main:\n\tLD Rx, $01 ; one\nRET\n");
+        Path b = Files.writeString(temp.resolve("b.asm"), "main:   \n\tLD Rx, $01\nRET   ; done\n");
+        Path c = Files.writeString(temp.resolve("c.asm"), "main:\n\tLD Rx, $02\nRET\n");
+
+        InstructionSet instructions = InstructionSet.loChip();
+        assertEquals(BuildCache.key(instructions, a), BuildCache.key(instructions, b));
+        assertNotEquals(BuildCache.key(instructions, a), BuildCache.key(instructions, c));
+    }
+
+    @Test
+    void keyKeepsIndentationForTheColumnsOfDiagnostics() throws IOException {
+        Path a = Files.writeString(temp.resolve("a.asm"), "CLS kaka\n");
+        Path b = Files.writeString(temp.resolve("b.asm"), "        CLS kaka\n");
+
+        Assembler assembler = new Assembler();
+        assertNotEquals(BuildCache.key(assembler, a), BuildCache.key(assembler, b));
+
+        BuildCache cache = new BuildCache(temp.resolve("cache"), 1 << 20);
+        cache.assemble(assembler, a, null);
+        AssemblyResult cached = cache.assemble(assembler, b, null);
+        assertEquals(2, cache.misses());
+        assertEquals(assembler.assemble(b).diagnostics().get(0).column, cached.diagnostics().get(0).column);
+    }
+
+    @Test
+    void keyFollowsIncludedFiles() throws IOException {
+        Path lib = Files.writeString(temp.resolve("lib.asm"), "lib:\nRET\n");
+        Path main = Files.writeString(temp.resolve("main.asm"), "CALL lib\nINCLUDE \"lib.asm\"\n");
+
+        InstructionSet instructions = InstructionSet.loChip();
+        String before = BuildCache.key(instructions, main);
+        Files.writeString(lib, "lib:\nEXIT\n");
+
+        assertNotEquals(before, BuildCache.key(instructions, main));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadCodeEliminatorTest {
+
+    private final Assembler assembler = new Assembler();
+
+    private final Assembler stripping = new Assembler(InstructionSet.loChip(), Metrics.NONE,
+            IncludeCache.shared(), new PeepholeOptimizer(List.of(), true));
+
+    @Test
+    void unreachableBlocksAreStripped() {
+        AssemblyResult stripped = stripping.assemble(List.of(
+                "\tCALL used",
+                "\tLD I, taken",
+                "\tJE Rx, $01",
+                "\tJP done",
+                "skipped:",
+                "\tCLS",
+                "taken:",
+                "\tLD I, sprite",
+                "done:",
+                "\tEXIT",
+                "unused:",
+                "\tCALL used",
+                "\tRET",
+                "used:",
+                "\tRET",
+                "sprite:",
+                "\tDB $F0",
+                "spare:",
+                "\tDB $0F"));
+
+        AssemblyResult written = assembler.assemble(List.of(
+                "\tCALL used",
+                "\tLD I, taken",
+                "\tJE Rx, $01",
+                "\tJP done",
+                "taken:",
+                "\tLD I, sprite",
+                "done:",
+                "\tEXIT",
+                "used:",
+                "\tRET",
+                "sprite:",
+                "\tDB $F0"));
+
+        assertTrue(stripped.diagnostics().isEmpty(), stripped.diagnostics().toString());
+        assertArrayEquals(written.program(), stripped.program());
+        for (Map.Entry<String, Integer> label : written.symbols().entrySet()) {
+            assertEquals(label.getValue(), stripped.symbols().get(label.getKey()), label.getKey());
+        }
+    }
+
+    @Test
+    void programFitsOnceUnusedLibraryIsStripped() {
+        List<String> source = new ArrayList<>(List.of("\tCALL main", "\tEXIT", "main:", "\tRET", "library:"));
+        for (int i = 0; i < 9000; i++) {
+            source.add("\tDB $00, $01, $02, $03, $04, $05, $06, $07");
+        }
+
+        assertTrue(assembler.assemble(source).hasErrors());
+
+        AssemblyResult stripped = stripping.assemble(source);
+        assertFalse(stripped.hasErrors(), stripped.diagnostics().toString());
+        assertEquals(7, stripped.size());
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DiagnosticsTest {
+
+    @Test
+    void codesAndColumns() {
+        List<Diagnostic> diagnostics = new Assembler().assemble(List.of(
+                "\tFOO $01",
+                "\tLD Rx, $1FF",
+                "\tJP nowhere")).diagnostics();
+
+        assertEquals(3, diagnostics.size());
+        assertEquals(DiagnosticCode.UNKNOWN_COMMAND, diagnostics.get(0).code);
+        assertEquals(1, diagnostics.get(0).line);
+        assertEquals(2, diagnostics.get(0).column);
+        assertEquals("The command \"FOO $01\" at line 1 was not found and ignored.", diagnostics.get(0).message());
+
+        assertEquals(DiagnosticCode.OUT_OF_RANGE, diagnostics.get(1).code);
+        assertEquals(9, diagnostics.get(1).column);
+        assertEquals("Value \"$1FF\" at line 2 is out of range.", diagnostics.get(1).message());
+
+        assertEquals(DiagnosticCode.LABEL_NOT_FOUND, diagnostics.get(2).code);
+        assertEquals(3, diagnostics.get(2).line);
+        assertEquals(0, diagnostics.get(2).column);
+    }
+
+    @Test
+    void errorLimitStopsTheRun() {
+        List<String> source = List.of("\tFOO", "\tBAR", "\tCLS", "\tJP missing");
+        Assembler assembler = new Assembler().withMaxErrors(2);
+        AssemblyResult result = assembler.assemble(source);
+
+        assertEquals(List.of(DiagnosticCode.UNKNOWN_COMMAND, DiagnosticCode.UNKNOWN_COMMAND,
+                DiagnosticCode.TOO_MANY_ERRORS), result.diagnostics().stream().map(d -> d.code).toList());
+        assertEquals("Assembling was stopped after 2 errors.", result.diagnostics().get(2).message());
+        // nothing behind the second error was encoded
+        assertEquals(2, result.size());
+
+        assertEquals(3, new Assembler().assemble(source).diagnostics().size());
+    }
+
+    @Test
+    void jsonRendering() {
+        Diagnostic diagnostic = new Diagnostic(DiagnosticCode.INVALID_FILE_NAME, "dir\\a.asm", 4, 10,
+                "b\"c", 4);
+
+        assertEquals("dir\\a.asm: Invalid file name \"b\"c\" at line 4.", Diagnostic.Format.TEXT.render(
+                List.of(diagnostic)).strip());
+        assertEquals("{\"severity\":\"error\",\"code\":\"INVALID_FILE_NAME\",\"source\":\"dir\\\\a.asm\","
+                + "\"line\":4,\"column\":10,\"message\":\"Invalid file name \\\"b\\\"c\\\" at line 4.\"}",
+                Diagnostic.Format.JSON.render(List.of(diagnostic)).strip());
+    }
+
+    @Test
+    void serializedDiagnosticsKeepTheirCode() throws IOException {
+        AssemblyResult result = new Assembler().assemble(List.of("\tLD Rx, $1FF", "\tSYS $123"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        result.writeTo(new DataOutputStream(bytes));
+        AssemblyResult read = AssemblyResult.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(result.diagnostics().size(), read.diagnostics().size());
+        for (int i = 0; i < result.diagnostics().size(); i++) {
+            Diagnostic expected = result.diagnostics().get(i);
+            Diagnostic actual = read.diagnostics().get(i);
+            assertEquals(expected.severity, actual.severity);
+            assertEquals(expected.code, actual.code);
+            assertEquals(expected.line, actual.line);
+            assertEquals(expected.column, actual.column);
+            assertEquals(expected.message(), actual.message());
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DisassemblerTest {
+
+    @TempDir
+    Path temp;
+
+    private final Assembler assembler = new Assembler();
+
+    private final Disassembler disassembler = new Disassembler();
+
+    @Test
+    void samplesSurviveTheRoundTrip() throws IOException {
+        for (String name : List.of("16b-addFunction.asm", "simple-test.asm", "stack-var-test.asm")) {
+            AssemblyResult result = assembler.assemble(Path.of("src", "test", "resources", name));
+            Disassembler.Verification verification = disassembler.verify(ByteBuffer.wrap(result.program()));
+            assertFalse(verification.failed(), name + " differs at " + verification.mismatch);
+        }
+    }
+
+    @Test
+    void codeIsSeparatedFromData() {
+        AssemblyResult result = assembler.assemble(List.of(
+                "\tLD I, sprite",
+                "\tJE Rx, $00",
+                "\tEXIT",
+                "table:",
+                "\tDB $E0, $AA",
+                "sprite:",
+                "\tCALL draw",
+                "\tEXIT",
+                "draw:",
+                "\tLD I, table",
+                "\tDRW Rx, Ry, $02",
+                "\tRET"));
+        List<String> listing = disassembler.disassemble(ByteBuffer.wrap(result.program()), result.symbols());
+
+        assertTrue(listing.stream().anyMatch(line -> line.startsWith("\tLD I, sprite ")), listing.toString());
+        assertTrue(listing.stream().anyMatch(line -> line.startsWith("\tDB $E0, $AA ")), listing.toString());
+        assertTrue(listing.stream().anyMatch(line -> line.startsWith("\tCALL draw ")), listing.toString());
+        assertTrue(listing.contains("table:"));
+        assertFalse(listing.stream().anyMatch(line -> line.startsWith("\tCLS")), listing.toString());
+        assertArrayEquals(result.program(), assembler.assemble(listing).program());
+    }
+
+    @Test
+    void codeInFrontOfTheResetVectorIsKeptAsData() {
+        byte[] program = {0x00, 0x03, (byte) 0xAA, 0x10, 0x00, 0x02};
+        List<String> listing = disassembler.disassemble(ByteBuffer.wrap(program), Map.of());
+
+        assertTrue(listing.stream().anyMatch(line -> line.startsWith("\tDB $AA ") && line.endsWith("EXIT")),
+                listing.toString());
+        assertTrue(listing.stream().anyMatch(line -> line.startsWith("\tJP L_0002 ")), listing.toString());
+        assertFalse(disassembler.verify(ByteBuffer.wrap(program)).failed());
+    }
+
+    @Test
+    void binariesAreVerifiedInParallel() throws IOException {
+        List<Path> binaries = new ArrayList<>();
+        for (String name : List.of("16b-addFunction", "simple-test", "stack-var-test")) {
+            Path binary = temp.resolve(name + ".bin");
+            Files.write(binary, assembler.assemble(Path.of("src", "test", "resources", name + ".asm")).program());
+            binaries.add(binary);
+        }
+        // the reset vector points behind the end of the program
+        Path broken = Files.write(temp.resolve("broken.bin"), new byte[]{0x01, 0x00, (byte) 0xE0});
+        binaries.add(broken);
+
+        List<Disassembler.Verification> verifications = disassembler.verifyAll(binaries, 4);
+
+        assertEquals(4, verifications.size());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(verifications.get(i).failed(), binaries.get(i).toString());
+        }
+        assertTrue(verifications.get(3).failed());
+        assertEquals(0, verifications.get(3).mismatch);
+    }
+
+}
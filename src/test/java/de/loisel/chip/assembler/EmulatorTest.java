@@ -0,0 +1,163 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmulatorTest {
+
+    private final Assembler assembler = new Assembler();
+
+    private final Emulator emulator = new Emulator();
+
+    private AssemblyResult load(Assembler assembler, String... lines) {
+        AssemblyResult result = assembler.assemble(List.of(lines));
+        assertFalse(result.hasErrors(), result.diagnostics().toString());
+        emulator.load(result.program());
+        return result;
+    }
+
+    @Test
+    void arithmeticFlagsAndMemory() {
+        AssemblyResult result = load(assembler,
+                "\tLD Rx, $F0",
+                "\tLD Ry, $20",
+                "\tADD Rx, Ry",
+                "\tLD I, result",
+                "\tLD I, Rx, Ry",
+                "\tLD I, carry",
+                "\tJP I, F",
+                "\tEXIT",
+                "carry:",
+                "\tLD I, result",
+                "\tLD Rx, $02",
+                "\tADD I, Rx",
+                "\tLD Rx, $7B",
+                "\tLD B, Rx",
+                "\tEXIT",
+                "result:",
+                "\tDB $00, $00, $00, $00, $00");
+
+        assertEquals(Emulator.State.EXITED, emulator.run(100));
+        int address = result.symbols().get("result");
+        assertEquals(0x10, emulator.memory(address));
+        assertEquals(0x20, emulator.memory(address + 1));
+        assertEquals(1, emulator.memory(address + 2));
+        assertEquals(2, emulator.memory(address + 3));
+        assertEquals(3, emulator.memory(address + 4));
+        assertTrue(emulator.flag());
+    }
+
+    @Test
+    void hotSpotsAreMappedToLabels() {
+        AssemblyResult result = load(assembler,
+                "\tLD Rx, $00",
+                "loop:",
+                "\tCALL inc",
+                "\tLD I, loop",
+                "\tJNE Rx, $FF",
+                "\tEXIT",
+                "inc:",
+                "\tADD Rx, $01",
+                "\tRET");
+
+        assertEquals(Emulator.State.EXITED, emulator.run(10_000));
+        assertEquals(255, emulator.executions(result.symbols().get("inc")));
+
+        List<Emulator.HotSpot> hotSpots = emulator.hotSpots(result.symbols());
+        assertEquals("loop", hotSpots.get(0).label);
+        assertEquals(255 * 3 + 1, hotSpots.get(0).executions);
+        assertEquals("inc", hotSpots.get(1).label);
+        assertEquals(emulator.cycles(), hotSpots.stream().mapToLong(hotSpot -> hotSpot.cycles).sum());
+    }
+
+    @Test
+    void runsMillionsOfSteps() {
+        AssemblyResult result = load(assembler,
+                "loop:",
+                "\tADD Rx, $01",
+                "\tJP loop");
+
+        assertEquals(Emulator.State.RUNNING, emulator.run(5_000_000));
+        assertEquals(5_000_000, emulator.steps());
+        assertEquals(2_500_000, emulator.executions(result.symbols().get("loop")));
+    }
+
+    @Test
+    void drawingTwiceErasesTheSprite() {
+        load(assembler,
+                "\tLD Rx, $3F",
+                "\tLD Ry, $1F",
+                "\tLD I, sprite",
+                "\tDRW Rx, Ry, $02",
+                "\tEXIT",
+                "sprite:",
+                "\tDB $C0, $80");
+
+        emulator.run(100);
+        assertTrue(emulator.pixel(63, 31));
+        assertTrue(emulator.pixel(0, 31));
+        assertTrue(emulator.pixel(63, 0));
+        assertFalse(emulator.pixel(0, 0));
+        assertFalse(emulator.flag());
+    }
+
+    @Test
+    void optimizedProgramNeedsFewerCycles() {
+        String[] source = {
+                "\tLD Rx, $00",
+                "loop:",
+                "\tCALL step",
+                "\tLD I, loop",
+                "\tJNE Rx, $40",
+                "\tEXIT",
+                "step:",
+                "\tADD Ry, $00",
+                "\tJP add",
+                "add:",
+                "\tCALL inc",
+                "\tRET",
+                "inc:",
+                "\tADD Rx, $01",
+                "\tRET"};
+
+        load(assembler, source);
+        assertEquals(Emulator.State.EXITED, emulator.run(10_000));
+        long cycles = emulator.cycles();
+        int rx = emulator.rx();
+
+        load(new Assembler(InstructionSet.loChip(), Metrics.NONE, IncludeCache.shared(),
+                PeepholeOptimizer.standard()), source);
+        assertEquals(Emulator.State.EXITED, emulator.run(10_000));
+        assertEquals(rx, emulator.rx());
+        assertTrue(emulator.cycles() < cycles, emulator.cycles() + " cycles");
+    }
+
+    @Test
+    void returnWithoutCallFaults() {
+        load(assembler, "\tRET");
+
+        assertEquals(Emulator.State.FAULT, emulator.run(10));
+        assertNotNull(emulator.fault());
+    }
+
+}
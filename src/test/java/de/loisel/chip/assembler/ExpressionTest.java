@@ -0,0 +1,175 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpressionTest {
+
+    private final Assembler assembler = new Assembler();
+
+    private static final List<String> PROGRAM = List.of(
+            "WIDTH EQU $40",
+            "define HEIGHT $20",
+            "\tLD Rx, WIDTH-1",
+            "\tLD Ry, HEIGHT / 2",
+            "\tLD I, sprite+2",
+            "\tLD Rx, LOW(sprite)",
+            "\tLD Ry, HIGH(sprite)",
+            "\tADD Rx, COUNT*2      ; COUNT is defined further down",
+            "\tJP end",
+            "sprite:",
+            "\tDB $FF, LOW(WIDTH*HEIGHT), COUNT",
+            "COUNT EQU 3",
+            "end:",
+            "\tEXIT");
+
+    private static int evaluate(String text) {
+        return Expression.parse(text).value();
+    }
+
+    @Test
+    void precedenceAndFunctions() {
+        assertEquals(7, evaluate("1+2*3"));
+        assertEquals(9, evaluate("(1 + 2) * 3"));
+        assertEquals(0x41, evaluate("$10 << 2 | 1"));
+        assertEquals(0xFF, evaluate("-1 & $FF"));
+        assertEquals(0x12, evaluate("HIGH($1234)"));
+        assertEquals(0x34, evaluate("LOW($1234)"));
+        assertEquals(2, evaluate("~-3 % 4 - 0"));
+
+        for (String invalid : new String[] {"1+", "(1", "$", "HIGH(1", "1 2", "12ab", "a b"}) {
+            assertNull(Expression.parse(invalid), invalid);
+        }
+        assertThrows(ArithmeticException.class, () -> Expression.parse("1/(2-2)"));
+    }
+
+    @Test
+    void onlyLabelsAreLeftToEvaluate() {
+        Expression expression = Expression.parse("(table + 4*2) - (3 - 1)");
+
+        assertFalse(expression.isConstant());
+        assertEquals(1, expression.symbolCount());
+        assertEquals(0x106, expression.evaluate(name -> 0x100).getAsInt());
+        assertTrue(expression.evaluate(name -> SymbolTable.UNDEFINED).isEmpty());
+        assertEquals(0x106, expression.bind(name -> 0x100).value());
+    }
+
+    @Test
+    void constantsAndExpressionsAreFolded() {
+        AssemblyResult result = assembler.assemble(PROGRAM);
+        assertFalse(result.hasErrors(), result.diagnostics().toString());
+
+        int sprite = result.symbols().get("sprite");
+        AssemblyResult literal = assembler.assemble(List.of(
+                "\tLD Rx, $3F",
+                "\tLD Ry, $10",
+                "\tLD I, $" + Integer.toHexString(sprite + 2),
+                "\tLD Rx, $" + Integer.toHexString(sprite & 0xFF),
+                "\tLD Ry, $" + Integer.toHexString(sprite >> 8),
+                "\tADD Rx, $06",
+                "\tJP end",
+                "sprite:",
+                "\tDB $FF, $00, $03",
+                "end:",
+                "\tEXIT"));
+
+        assertArrayEquals(literal.program(), result.program());
+        assertEquals(literal.symbols(), result.symbols());
+    }
+
+    @Test
+    void invalidValuesAreReported() {
+        List<Diagnostic> diagnostics = assembler.assemble(List.of(
+                "BIG EQU $100",
+                "\tLD Rx, BIG",
+                "\tLD Rx, later",
+                "\tLD I, 1/0",
+                "\tLD I, start+",
+                "\tDB LOW(start) + $100",
+                "start:",
+                "\tEXIT",
+                "later EQU $1FF",
+                "BIG EQU 1",
+                "BAD EQU start",
+                "start EQU 2")).diagnostics();
+
+        List<String> messages = new ArrayList<>();
+        for (Diagnostic diagnostic : diagnostics) {
+            messages.add(diagnostic.line + " " + diagnostic.message());
+        }
+        assertEquals(List.of(
+                "2 Value \"BIG\" at line 2 is out of range.",
+                "4 Division by zero in \"1/0\" at line 4.",
+                "5 Invalid expression \"start+\" at line 5.",
+                "10 Symbol \"BIG\" at line 10 is already defined.",
+                "11 Value \"start\" of constant \"BAD\" at line 11 has to be known when it is defined.",
+                "12 Symbol \"start\" at line 12 is already defined.",
+                "3 Value \"later\" at line 3 is out of range.",
+                "6 Value \"LOW(start) + $100\" at line 6 is out of range."), messages);
+    }
+
+    @Test
+    void parallelAssemblyMatchesAcrossChunks() {
+        ParallelAssembler parallel = new ParallelAssembler(assembler, ForkJoinPool.commonPool(), 3);
+
+        AssemblyResult expected = assembler.assemble(PROGRAM);
+        AssemblyResult actual = parallel.assemble(PROGRAM);
+        assertArrayEquals(expected.program(), actual.program());
+        assertEquals(expected.symbols(), actual.symbols());
+
+        // the constant is used three chunks after its definition
+        List<String> invalid = new ArrayList<>(PROGRAM);
+        invalid.set(0, "WIDTH EQU $400");
+        expected = assembler.assemble(invalid);
+        actual = parallel.assemble(invalid);
+        assertEquals(expected.diagnostics().toString(), actual.diagnostics().toString());
+    }
+
+    @Test
+    void expressionsAreRelocatedByTheLinker() throws IOException {
+        ObjectModule data = assembler.assembleModule("data", new StringReader(
+                "\tEXIT\nsprite:\n\tDB $01, $02, $03\n"));
+        ObjectModule code = assembler.assembleModule("code", new StringReader(
+                "OFFSET EQU 2\n\tLD I, sprite+OFFSET\n\tLD Rx, LOW(sprite)\n\tDB HIGH(sprite+$100)\n"));
+        assertEquals(1, code.imports().size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        code.writeTo(bytes);
+        ObjectModule read = ObjectModule.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+
+        AssemblyResult expected = assembler.assemble(List.of(
+                "\tEXIT", "sprite:", "\tDB $01, $02, $03",
+                "OFFSET EQU 2", "\tLD I, sprite+OFFSET", "\tLD Rx, LOW(sprite)", "\tDB HIGH(sprite+$100)"));
+        AssemblyResult linked = new Linker().link(List.of(data, read));
+
+        assertFalse(linked.hasErrors(), linked.diagnostics().toString());
+        assertArrayEquals(expected.program(), linked.program());
+    }
+
+}
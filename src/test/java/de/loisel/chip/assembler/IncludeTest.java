@@ -0,0 +1,92 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncludeTest {
+
+    @TempDir
+    Path temp;
+
+    private final IncludeCache cache = new IncludeCache();
+
+    private final Assembler assembler = new Assembler(InstructionSet.loChip(), Metrics.NONE, cache);
+
+    @Test
+    void includedFileIsAssembledInPlace() throws IOException {
+        Files.createDirectories(temp.resolve("lib"));
+        Files.writeString(temp.resolve("lib/add.asm"), "add:\n\tADD Rx, Ry\n\tRET\n");
+        Path main = Files.writeString(temp.resolve("main.asm"),
+                "\tCALL add\n\tEXIT\n\tINCLUDE \"lib/add.asm\" ; library\n");
+
+        AssemblyResult included = assembler.assemble(main);
+        AssemblyResult pasted = assembler.assemble(List.of("\tCALL add", "\tEXIT", "add:", "\tADD Rx, Ry", "\tRET"));
+
+        assertFalse(included.hasErrors());
+        assertArrayEquals(pasted.program(), included.program());
+        assertEquals(pasted.symbols(), included.symbols());
+    }
+
+    @Test
+    void includedFilesAreLexedOnce() throws IOException {
+        Files.writeString(temp.resolve("lib.asm"), "lib:\n\tRET\n");
+        Path a = Files.writeString(temp.resolve("a.asm"), "\tCALL lib\n\tINCLUDE \"lib.asm\"\n");
+        Path b = Files.writeString(temp.resolve("b.asm"), "\tJP lib\n\tINCLUDE \"lib.asm\"\n");
+
+        assembler.assemble(a);
+        assembler.assemble(b);
+        assembler.assemble(temp.resolve("a.asm").toString());
+
+        assertEquals(1, cache.misses());
+        assertEquals(2, cache.hits());
+    }
+
+    @Test
+    void diagnosticsNameTheIncludedFile() throws IOException {
+        Path lib = Files.writeString(temp.resolve("lib.asm"), "\tRET\n\tLD Rx, $100\n");
+        Path main = Files.writeString(temp.resolve("main.asm"), "\tINCLUDE \"lib.asm\"\n");
+
+        List<Diagnostic> diagnostics = assembler.assemble(main).diagnostics();
+
+        assertEquals(1, diagnostics.size());
+        assertEquals(lib.toAbsolutePath().normalize().toString(), diagnostics.get(0).source);
+        assertEquals(2, diagnostics.get(0).line);
+    }
+
+    @Test
+    void cyclesAndMissingFilesAreReported() throws IOException {
+        Files.writeString(temp.resolve("a.asm"), "\tINCLUDE \"b.asm\"\n");
+        Files.writeString(temp.resolve("b.asm"), "\tINCLUDE \"a.asm\"\n\tINCLUDE \"missing.asm\"\n");
+
+        List<Diagnostic> diagnostics = assembler.assemble(temp.resolve("a.asm")).diagnostics();
+
+        assertEquals(2, diagnostics.size());
+        assertTrue(diagnostics.get(0).message().contains("a.asm -> b.asm -> a.asm"));
+        assertTrue(diagnostics.get(1).message().contains("Could not include \"missing.asm\""));
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InstructionSetTest {
+
+    private final InstructionSet instructions = InstructionSet.loChip();
+
+    private Instruction find(Mnemonic mnemonic, String... operands) throws IOException {
+        Statement statement = new Statement();
+        assertTrue(Lexer.of(List.of(mnemonic + " " + String.join(", ", operands))).next(statement));
+        return instructions.find(mnemonic, statement.kinds, statement.operandCount);
+    }
+
+    @Test
+    void opcodesAreUnique() {
+        Set<Integer> opcodes = new HashSet<>();
+        for (Instruction instruction : instructions.instructions()) {
+            assertTrue(opcodes.add(instruction.opcode), "duplicate opcode " + instruction);
+        }
+    }
+
+    @Test
+    void lookupBySignature() throws IOException {
+        assertEquals(0xE0, find(Mnemonic.CLS).opcode);
+        assertEquals(0x10, find(Mnemonic.JP, "main").opcode);
+        assertEquals(0x10, find(Mnemonic.JP, "$FFFF").opcode);
+        assertEquals(0x11, find(Mnemonic.JP, "I", "F").opcode);
+        assertEquals(0x60, find(Mnemonic.LD, "Rx", "$20").opcode);
+        assertEquals(0xA0, find(Mnemonic.LD, "I", "result").opcode);
+        assertEquals(0xA1, find(Mnemonic.LD, "I", "RxRy").opcode);
+        assertEquals(0xFD, find(Mnemonic.LD, "I", "Rx", "Ry").opcode);
+        assertEquals(0xD0, find(Mnemonic.DRW, "Rx", "Ry", "$FF").opcode);
+        assertEquals(0x86, find(Mnemonic.SHR, "Rx", "1").opcode);
+    }
+
+    @Test
+    void wrongSignaturesAreRejected() throws IOException {
+        assertNull(find(Mnemonic.CLS, "kaka"));
+        assertNull(find(Mnemonic.OR, "Rx", "$01"));
+        assertNull(find(Mnemonic.LD, "Rx"));
+        assertNull(find(Mnemonic.DB, "$00"));
+    }
+
+    @Test
+    void jumpIfEqualEmitsItsByteOperand() {
+        Assembler assembler = new Assembler();
+        byte[] program = assembler.assemble(List.of("JE Rx, $05", "JNE Rx, $06")).program();
+        assertArrayEquals(new byte[] {0x00, 0x02, 0x30, 0x05, 0x31, 0x06}, program);
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LexerTest {
+
+    @Test
+    void skipsCommentsAndWhitespace() throws IOException {
+        Lexer lexer = new Lexer(new StringReader("\n   ;    test\n\t\tLD   I,\t hexAdd_x   ; load\r\n"));
+        Statement statement = new Statement();
+
+        assertTrue(lexer.next(statement));
+        assertEquals(3, statement.line);
+        assertEquals(Mnemonic.LD, statement.mnemonic);
+        assertEquals(2, statement.operandCount);
+        assertEquals(OperandKind.I, statement.kinds[0]);
+        assertEquals(OperandKind.IDENT, statement.kinds[1]);
+        assertEquals("hexAdd_x", statement.operandText(1));
+        assertFalse(lexer.next(statement));
+    }
+
+    @Test
+    void parsesHexValues() throws IOException {
+        Lexer lexer = Lexer.of(List.of("DB $0F, $k0, $10000, $FFFF"));
+        Statement statement = new Statement();
+
+        assertTrue(lexer.next(statement));
+        assertEquals(4, statement.operandCount);
+        assertEquals(OperandKind.HEX, statement.kinds[0]);
+        assertEquals(0x0F, statement.values[0]);
+        assertEquals(OperandKind.INVALID, statement.kinds[1]);
+        assertEquals(-1, statement.values[2]);
+        assertEquals(0xFFFF, statement.values[3]);
+    }
+
+    @Test
+    void labelsAndUnknownCommands() throws IOException {
+        Lexer lexer = Lexer.of(List.of("main :", "testusmaximus: wrongtest", "endif1:\tRET"));
+        Statement statement = new Statement();
+
+        assertTrue(lexer.next(statement));
+        assertEquals("main", statement.label);
+        assertNull(statement.mnemonic);
+
+        assertTrue(lexer.next(statement));
+        assertEquals("testusmaximus", statement.label);
+        assertTrue(statement.unknown);
+        assertEquals("wrongtest", statement.text());
+
+        assertTrue(lexer.next(statement));
+        assertEquals("endif1", statement.label);
+        assertEquals(Mnemonic.RET, statement.mnemonic);
+        assertEquals(0, statement.operandCount);
+    }
+
+}
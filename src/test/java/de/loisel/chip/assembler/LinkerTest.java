@@ -0,0 +1,101 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinkerTest {
+
+    private final Assembler assembler = new Assembler();
+
+    private ObjectModule module(String name, List<String> lines) throws IOException {
+        return assembler.assembleModule(name, new StringReader(String.join("\n", lines)));
+    }
+
+    @Test
+    void linkedModulesMatchOneSource() throws IOException {
+        List<String> source = Files.readAllLines(Path.of("src", "test", "resources", "16b-addFunction.asm"));
+        int split = source.indexOf(";;;;;;;;;;;;;;;;;;;;;;;;;;;;");
+
+        ObjectModule main = module("main", source.subList(0, split));
+        ObjectModule hexAdd = module("hexAdd", source.subList(split, source.size()));
+        assertTrue(main.imports().contains("hexAdd"));
+        assertTrue(hexAdd.imports().isEmpty());
+
+        AssemblyResult expected = assembler.assemble(source);
+        AssemblyResult linked = new Linker().link(List.of(main, hexAdd));
+
+        assertFalse(linked.hasErrors());
+        assertArrayEquals(expected.program(), linked.program());
+        assertEquals(expected.symbols(), linked.symbols());
+    }
+
+    @Test
+    void modulesSurviveTheObjectFormat() throws IOException {
+        ObjectModule module = module("lib", List.of("helper:", "\tLD I, data", "\tJP other", "data:", "\tDB $12"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        module.writeTo(bytes);
+        ObjectModule read = ObjectModule.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertEquals("lib", read.name());
+        assertArrayEquals(module.code(), read.code());
+        assertEquals(module.entry(), read.entry());
+        assertEquals(module.exports(), read.exports());
+        assertEquals(module.imports(), read.imports());
+        assertEquals(module.relocations().size(), read.relocations().size());
+    }
+
+    @Test
+    void duplicateAndMissingLabelsAreReported() throws IOException {
+        ObjectModule a = module("a", List.of("start:", "\tCALL missing"));
+        ObjectModule b = module("b", List.of("start:", "\tRET"));
+        ObjectModule c = module("c", List.of("\tJP start"));
+
+        AssemblyResult result = new Linker().link(List.of(a, b, c));
+
+        assertEquals(2, result.diagnostics().size());
+        assertTrue(result.diagnostics().get(0).message().contains("\"missing\" used in module a"));
+        assertTrue(result.diagnostics().get(1).message().contains("module a and in module b"));
+    }
+
+    @Test
+    void modulesUseTheirOwnLabelsFirst() throws IOException {
+        ObjectModule a = module("a", List.of("loop:", "\tLD I, loop+1", "\tJP loop"));
+        ObjectModule b = module("b", List.of("loop:", "\tLD I, loop+1", "\tJP loop"));
+
+        AssemblyResult linked = new Linker().link(List.of(a, b));
+        AssemblyResult expected = assembler.assemble(List.of(
+                "aLoop:", "\tLD I, aLoop+1", "\tJP aLoop",
+                "bLoop:", "\tLD I, bLoop+1", "\tJP bLoop"));
+
+        assertFalse(linked.hasErrors());
+        assertArrayEquals(expected.program(), linked.program());
+    }
+
+}
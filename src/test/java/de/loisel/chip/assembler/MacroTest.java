@@ -0,0 +1,137 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MacroTest {
+
+    private final Assembler assembler = new Assembler();
+
+    private static String lines(String... lines) {
+        return String.join("\n", lines);
+    }
+
+    @Test
+    void expansionMatchesWrittenOutCode() {
+        AssemblyResult expanded = assembler.assemble(List.of(
+                "MACRO point x, y, sprite",
+                "\tLD Rx, x",
+                "\tLD Ry, y",
+                "\tLD I, sprite",
+                "\tDRW Rx, Ry, $05",
+                "ENDM",
+                "MACRO twice sprite ; draws and erases",
+                "\tpoint $01, $02, sprite",
+                "\tpoint $01, $02, sprite",
+                "ENDM",
+                "start:",
+                "\ttwice ball",
+                "\tpoint $0A, $0B, ball",
+                "\tJP start",
+                "ball:",
+                "\tDB $F0"));
+
+        AssemblyResult written = assembler.assemble(List.of(
+                "start:",
+                "\tLD Rx, $01", "\tLD Ry, $02", "\tLD I, ball", "\tDRW Rx, Ry, $05",
+                "\tLD Rx, $01", "\tLD Ry, $02", "\tLD I, ball", "\tDRW Rx, Ry, $05",
+                "\tLD Rx, $0A", "\tLD Ry, $0B", "\tLD I, ball", "\tDRW Rx, Ry, $05",
+                "\tJP start",
+                "ball:",
+                "\tDB $F0"));
+
+        assertFalse(expanded.hasErrors(), expanded.diagnostics().toString());
+        assertArrayEquals(written.program(), expanded.program());
+        assertEquals(written.symbols(), expanded.symbols());
+    }
+
+    @Test
+    void expansionsAreReusedForTheSameArguments() throws IOException {
+        AssemblyContext context = new AssemblyContext();
+        assembler.assemble(new StringReader(lines(
+                "MACRO inc register",
+                "\tADD register, $01",
+                "ENDM",
+                "\tinc Rx",
+                "\tinc Ry",
+                "\tinc Rx",
+                "\tinc  Rx ")), context);
+
+        assertTrue(context.diagnostics.isEmpty(), context.diagnostics.toString());
+        assertEquals(2, context.macros.get("inc").expansions());
+    }
+
+    @Test
+    void misuseIsReported() {
+        List<Diagnostic> diagnostics = assembler.assemble(List.of(
+                "MACRO loop",
+                "\tloop",
+                "ENDM",
+                "MACRO one a",
+                "\tDB a",
+                "ENDM",
+                "\tone",
+                "\tloop",
+                "ENDM",
+                "MACRO LD x",
+                "ENDM",
+                "MACRO open")).diagnostics();
+
+        assertEquals(5, diagnostics.size(), diagnostics.toString());
+        assertEquals("Macro \"one\" at line 7 takes 1 args.", diagnostics.get(0).message());
+        assertEquals("Macro \"loop\" at line 8 is nested too deep.", diagnostics.get(1).message());
+        assertEquals("\"ENDM\" at line 9 has no MACRO.", diagnostics.get(2).message());
+        assertEquals("Macro \"LD\" at line 10 has the name of a command.", diagnostics.get(3).message());
+        assertEquals("Macro \"open\" at line 12 has no ENDM.", diagnostics.get(4).message());
+    }
+
+    @Test
+    void labelsAreLocalToEachInvocation() {
+        AssemblyResult expanded = assembler.assemble(List.of(
+                "MACRO spin",
+                "again: JP again",
+                "ENDM",
+                "\tspin",
+                "\tspin"));
+
+        AssemblyResult written = assembler.assemble(List.of(
+                "first: JP first",
+                "second: JP second"));
+
+        assertFalse(expanded.hasErrors());
+        assertArrayEquals(written.program(), expanded.program());
+    }
+
+    @Test
+    void duplicateLabelIsReported() {
+        List<Diagnostic> diagnostics = assembler.assemble(List.of(
+                "dup: JP dup",
+                "dup: CLS")).diagnostics();
+
+        assertEquals(1, diagnostics.size());
+        assertEquals("Symbol \"dup\" at line 2 is already defined.", diagnostics.get(0).message());
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+
+    private static final Path SOURCE = Path.of("src", "test", "resources", "simple-test.asm");
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void registryAddsUpRuns() throws IOException {
+        MetricsRegistry metrics = new MetricsRegistry();
+        Assembler assembler = new Assembler(InstructionSet.loChip(), metrics);
+
+        AssemblyResult result = assembler.assemble(SOURCE);
+        assembler.assemble(SOURCE);
+
+        assertEquals(2, metrics.files());
+        assertEquals(2L * result.size(), metrics.bytes());
+        assertEquals(2L * result.symbols().size(), metrics.labels());
+        assertEquals(2, metrics.statements(Mnemonic.CLS));
+        assertEquals(0, metrics.errors());
+        assertTrue(metrics.lines() > 0);
+        assertTrue(metrics.nanos(Phase.ENCODE) > 0);
+        assertEquals(2, metrics.latency().count());
+        assertTrue(metrics.latency().percentile(0.5) <= metrics.latency().max());
+    }
+
+    @Test
+    void phasesAreRecordedAsEvents() throws IOException {
+        Path dump = temp.resolve("assembler.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("de.loisel.chip.assembler.Assembly");
+            recording.enable("de.loisel.chip.assembler.Encode");
+            recording.start();
+            new Assembler().assemble(SOURCE);
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        RecordedEvent assembly = events.stream()
+                .filter(event -> event.getEventType().getName().equals("de.loisel.chip.assembler.Assembly"))
+                .findFirst().orElseThrow();
+        assertEquals(SOURCE.toString(), assembly.getString("source"));
+        assertEquals(0, assembly.getInt("errors"));
+        assertTrue(events.stream()
+                .anyMatch(event -> event.getEventType().getName().equals("de.loisel.chip.assembler.Encode")));
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class OutputWriterTest {
+
+    @TempDir
+    Path temp;
+
+    private final byte[] program = new Assembler()
+            .assemble(Path.of("src", "test", "resources", "16b-addFunction.asm").toString()).program();
+
+    private Path write(OutputFormat format) throws IOException {
+        Path output = temp.resolve("out" + format.extension());
+        new OutputWriter(format, false).write(output, ByteBuffer.wrap(program));
+        return output;
+    }
+
+    @Test
+    void intelHexRecordsCarryTheProgram() throws IOException {
+        assertHexCarries(program, write(OutputFormat.HEX));
+    }
+
+    @Test
+    void intelHexEndRecordFitsBehindAFullBuffer() throws IOException {
+        // 2975 and 2976 bytes fill the text buffer up to the end of file record
+        for (int size = 2970; size <= 2980; size++) {
+            byte[] large = new byte[size];
+            Arrays.fill(large, (byte) 0xA5);
+            Path output = temp.resolve(size + ".hex");
+            new OutputWriter(OutputFormat.HEX, false).write(output, ByteBuffer.wrap(large));
+            assertHexCarries(large, output);
+        }
+    }
+
+    private static void assertHexCarries(byte[] program, Path hex) throws IOException {
+        List<String> records = Files.readAllLines(hex);
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (String record : records) {
+            assertTrue(record.startsWith(":"), record);
+            byte[] bytes = new byte[(record.length() - 1) / 2];
+            int sum = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(record.substring(1 + 2 * i, 3 + 2 * i), 16);
+                sum += bytes[i];
+            }
+            assertEquals(0, sum & 0xFF, record);
+            if(bytes[3] == 0) {
+                assertEquals(data.size(), ((bytes[1] & 0xFF) << 8) | (bytes[2] & 0xFF));
+                data.write(bytes, 4, bytes[0]);
+            }
+        }
+        assertEquals(":00000001FF", records.get(records.size() - 1));
+        assertEquals((program.length + 15) / 16 + 1, records.size());
+        assertArrayEquals(program, data.toByteArray());
+    }
+
+    @Test
+    void cHeaderListsEveryByte() throws IOException {
+        String header = Files.readString(write(OutputFormat.C_HEADER));
+
+        assertTrue(header.contains("#define LOCHIP_PROGRAM_SIZE " + program.length + "\n"), header);
+        Matcher matcher = Pattern.compile("0x([0-9A-F]{2})").matcher(header);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (matcher.find()) {
+            data.write(Integer.parseInt(matcher.group(1), 16));
+        }
+        assertArrayEquals(program, data.toByteArray());
+        assertTrue(header.endsWith("\n};\n"));
+    }
+
+    @Test
+    void paddedImageFillsTheMemory() throws IOException {
+        byte[] image = Files.readAllBytes(write(OutputFormat.PADDED));
+
+        assertEquals(CodeEmitter.CAPACITY, image.length);
+        assertArrayEquals(program, Arrays.copyOf(image, program.length));
+        for (int i = program.length; i < image.length; i++) {
+            assertEquals(0, image[i]);
+        }
+    }
+
+    @Test
+    void outputIsReplacedWithoutLeftovers() throws IOException {
+        Path output = Files.writeString(temp.resolve("out.bin"), "an older and much longer output");
+        OutputWriter writer = new OutputWriter(OutputFormat.BIN, true);
+
+        writer.write(output, ByteBuffer.wrap(program));
+        writer.write(output, ByteBuffer.wrap(program));
+
+        assertArrayEquals(program, Files.readAllBytes(output));
+        try (Stream<Path> files = Files.list(temp)) {
+            assertEquals(List.of(output), files.toList());
+        }
+        assertEquals(OutputFormat.HEX, OutputFormat.of("hex"));
+        assertEquals(OutputFormat.C_HEADER, OutputFormat.of("h"));
+        assertNull(OutputFormat.of("elf"));
+    }
+
+    @Test
+    void outputKeepsItsPermissions() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+
+        // a new output gets the permissions of any other new file
+        Path reference = Files.createFile(temp.resolve("reference"));
+        Path output = write(OutputFormat.BIN);
+        assertEquals(Files.getPosixFilePermissions(reference), Files.getPosixFilePermissions(output));
+
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+        Files.setPosixFilePermissions(output, permissions);
+        write(OutputFormat.BIN);
+        assertEquals(permissions, Files.getPosixFilePermissions(output));
+    }
+
+}
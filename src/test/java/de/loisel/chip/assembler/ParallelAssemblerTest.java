@@ -0,0 +1,103 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelAssemblerTest {
+
+    private final Assembler assembler = new Assembler();
+
+    private final ParallelAssembler parallel = new ParallelAssembler(assembler, ForkJoinPool.commonPool(), 64);
+
+    private static void assertSameResult(AssemblyResult expected, AssemblyResult actual) {
+        assertArrayEquals(expected.program(), actual.program());
+        assertEquals(expected.symbols(), actual.symbols());
+        assertEquals(expected.diagnostics().size(), actual.diagnostics().size());
+        for (int i = 0; i < expected.diagnostics().size(); i++) {
+            assertEquals(expected.diagnostics().get(i).line, actual.diagnostics().get(i).line);
+            assertEquals(expected.diagnostics().get(i).message(), actual.diagnostics().get(i).message());
+        }
+    }
+
+    /**
+     * data tables with references in both directions across chunk borders
+     */
+    private static List<String> dataHeavySource(int tables) {
+        List<String> lines = new ArrayList<>();
+        lines.add("; tables first, the program starts behind them");
+        lines.add("\tDB $01, $02");
+        for (int t = 0; t < tables; t++) {
+            lines.add("table" + t + ":");
+            for (int i = 0; i < 40; i++) {
+                lines.add("\tDB $" + Integer.toHexString(0x10 + i) + ", $FF");
+            }
+            lines.add("\tLD I, table" + (t + 1));
+            lines.add("\tCALL table" + Math.max(0, t - 3));
+        }
+        lines.add("table" + tables + ":");
+        lines.add("\tJP table0");
+        return lines;
+    }
+
+    @Test
+    void matchesSequentialAssembly() {
+        List<String> source = dataHeavySource(200);
+
+        assertSameResult(assembler.assemble(source), parallel.assemble(source));
+    }
+
+    @Test
+    void reportsTheSameErrors() {
+        List<String> source = dataHeavySource(50);
+        source.set(100, "\tLD Rx, $100");
+        source.set(700, "\tJP nowhere");
+        source.set(1500, "table7:");
+
+        AssemblyResult expected = assembler.assemble(source);
+        assertTrue(expected.hasErrors());
+        assertSameResult(expected, parallel.assemble(source));
+    }
+
+    @Test
+    void constantsMayUseConstantsOfEarlierChunks() {
+        List<String> source = List.of("A EQU $10", "\tCLS", "Q EQU A+1", "\tLD Rx, Q");
+        ParallelAssembler pairs = new ParallelAssembler(assembler, ForkJoinPool.commonPool(), 2);
+
+        AssemblyResult expected = assembler.assemble(source);
+        assertFalse(expected.hasErrors());
+        assertSameResult(expected, pairs.assemble(source));
+    }
+
+    @Test
+    void oversizedProgramFallsBackToSequential() {
+        List<String> source = new ArrayList<>();
+        for (int i = 0; i < 0x10000 / 2; i++) {
+            source.add("\tDB $AA, $55");
+        }
+
+        assertSameResult(assembler.assemble(source), parallel.assemble(source));
+    }
+
+}
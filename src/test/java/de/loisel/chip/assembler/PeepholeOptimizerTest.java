@@ -0,0 +1,100 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeepholeOptimizerTest {
+
+    private final Assembler assembler = new Assembler();
+
+    private final Assembler optimizing = new Assembler(InstructionSet.loChip(), Metrics.NONE,
+            IncludeCache.shared(), PeepholeOptimizer.standard());
+
+    @Test
+    void optimizedCodeMatchesHandWrittenCode() {
+        AssemblyResult optimized = optimizing.assemble(List.of(
+                "start:",
+                "\tJP next",
+                "next:",
+                "\tLD I, $0100",
+                "\tLD I, data",
+                "\tADD Rx, $00",
+                "\tCALL sub",
+                "\tRET",
+                "sub:",
+                "\tLD Rx, LOW(data)",
+                "\tJP start",
+                "data:",
+                "\tDB $01, HIGH(data)"));
+
+        AssemblyResult written = assembler.assemble(List.of(
+                "start:",
+                "next:",
+                "\tLD I, data",
+                "sub:",
+                "\tLD Rx, LOW(data)",
+                "\tJP start",
+                "data:",
+                "\tDB $01, HIGH(data)"));
+
+        assertTrue(optimized.diagnostics().isEmpty(), optimized.diagnostics().toString());
+        assertArrayEquals(written.program(), optimized.program());
+        assertEquals(written.symbols(), optimized.symbols());
+    }
+
+    @Test
+    void jumpTablesAndJumpTargetsStay() {
+        List<String> source = List.of(
+                "\tJP Rx, table",
+                "table:",
+                "\tJP next",
+                "next:",
+                "\tCALL sub",
+                "back:",
+                "\tRET",
+                "sub:",
+                "\tJP back");
+
+        AssemblyResult optimized = optimizing.assemble(source);
+        AssemblyResult plain = assembler.assemble(source);
+
+        // only the call becomes a jump, the RET is a jump target
+        assertEquals(plain.size(), optimized.size());
+        assertEquals(plain.symbols(), optimized.symbols());
+        assertEquals(0x10, optimized.program()[plain.symbols().get("next")] & 0xFF);
+    }
+
+    @Test
+    void literalAddressIntoMovedCodeIsReported() {
+        AssemblyResult optimized = optimizing.assemble(List.of(
+                "\tADD Rx, $00",
+                "\tCLS",
+                "\tJP $0004"));
+
+        assertFalse(optimized.hasErrors());
+        assertEquals(1, optimized.diagnostics().size());
+        assertEquals(3, optimized.diagnostics().get(0).line);
+        assertArrayEquals(new byte[]{0x00, 0x02, (byte) 0xE0, 0x10, 0x00, 0x04}, optimized.program());
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SourceWatcherTest {
+
+    @TempDir
+    Path temp;
+
+    private final Assembler assembler = new Assembler();
+
+    private final List<BatchAssembler.Entry> entries = new ArrayList<>();
+
+    @Test
+    void changedIncludeReassemblesItsDependents() throws Exception {
+        Path src = Files.createDirectories(temp.resolve("src"));
+        Path lib = Files.writeString(src.resolve("lib.inc"), "lib:\nRET\n");
+        Path main = Files.writeString(src.resolve("main.asm"), "CALL lib\nEXIT\nINCLUDE \"lib.inc\"\n");
+        Files.writeString(src.resolve("other.asm"), "EXIT\n");
+        Path out = temp.resolve("out");
+
+        try (SourceWatcher watcher = new SourceWatcher(assembler, List.of(src), out, 20, entries::add)) {
+            assertEquals(2, watcher.assembleAll());
+            assertEquals(Set.of(main.toAbsolutePath()), watcher.dependents(lib));
+
+            entries.clear();
+            Files.writeString(lib, "lib:\nCLS\nRET\n");
+            assertEquals(1, watcher.awaitChanges(10_000));
+
+            assertEquals(main.toAbsolutePath(), entries.get(0).source.file);
+            assertArrayEquals(assembler.assemble(main).program(), Files.readAllBytes(out.resolve("main.bin")));
+        }
+    }
+
+    @Test
+    void newSourcesArePickedUp() throws Exception {
+        try (SourceWatcher watcher = new SourceWatcher(assembler, List.of(temp), null, 20, entries::add)) {
+            assertEquals(0, watcher.assembleAll());
+
+            Path added = Files.writeString(temp.resolve("added.asm"), "CLS\nEXIT\n");
+            assertEquals(1, watcher.awaitChanges(10_000));
+
+            assertFalse(entries.get(0).failed());
+            assertArrayEquals(assembler.assemble(added).program(), Files.readAllBytes(temp.resolve("added.bin")));
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 Elias Taufer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.loisel.chip.assembler;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SymbolTableTest {
+
+    @Test
+    void internedNamesKeepTheirId() {
+        SymbolTable symbols = new SymbolTable();
+        char[] line = "\tJP loop ; again".toCharArray();
+
+        int loop = symbols.intern("loop", 3);
+        assertEquals(loop, symbols.intern(line, 4, 8, 7));
+        assertEquals(loop, symbols.find(line, 4, 8));
+        assertEquals(3, symbols.line(loop));
+        assertEquals(-1, symbols.find("again"));
+        assertFalse(symbols.isDefined(loop));
+
+        symbols.define(loop, 0xFFFE);
+        assertEquals(0xFFFE, symbols.address(loop));
+        assertEquals(0xFFFE, symbols.toMap().get("loop"));
+    }
+
+    @Test
+    void growsAndResolvesFixups() {
+        SymbolTable symbols = new SymbolTable();
+        for (int i = 0; i < 1000; i++) {
+            symbols.define(symbols.intern("label" + i, i), 0x8000 + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, symbols.find("label" + i));
+        }
+
+        CodeEmitter emitter = new CodeEmitter();
+        emitter.emitWord(0);
+        symbols.addFixup(symbols.find("label999"), 0);
+        symbols.addFixup(symbols.intern("missing", 1), 0);
+
+        assertEquals(1, symbols.resolve(emitter));
+        assertArrayEquals(new byte[] {(byte) 0x83, (byte) 0xE7}, emitter.toByteArray());
+
+        symbols.clear();
+        assertEquals(0, symbols.size());
+        assertEquals(-1, symbols.find("label1"));
+    }
+
+}